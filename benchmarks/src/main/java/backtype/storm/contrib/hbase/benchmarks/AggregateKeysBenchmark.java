@@ -0,0 +1,101 @@
+package backtype.storm.contrib.hbase.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import storm.trident.state.OpaqueValue;
+import backtype.storm.contrib.hbase.trident.AggregateKeys;
+import backtype.storm.contrib.hbase.utils.BinaryOpaqueSerializer;
+import backtype.storm.contrib.hbase.utils.TridentConfig;
+
+/**
+ * Measures the key encoding around <tt>HBaseAggregateState</tt>'s multiGet and multiPut: grouping
+ * a batch of Trident keys by row into Gets, mapping the Results back to the keys, and building the
+ * Puts. Reported per key
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+@SuppressWarnings("rawtypes")
+public class AggregateKeysBenchmark {
+  private static final int BATCH = 1000;
+
+  @Param({ "100", "1000" })
+  public int distinctRows;
+
+  private TridentConfig<OpaqueValue> config;
+  private List<List<Object>> keys;
+  private Object[] results;
+  private List<byte[]> values;
+
+  @Setup
+  public void setup() {
+    config = new TridentConfig<OpaqueValue>("shorturl", "shortid");
+    keys = SyntheticTuples.aggregateKeys(BATCH, distinctRows);
+
+    byte[] value = new BinaryOpaqueSerializer().serialize(new OpaqueValue<Long>(7L, 42L, 41L));
+    values = new ArrayList<byte[]>(BATCH);
+    for (int i = 0; i < BATCH; i++) {
+      values.add(value);
+    }
+
+    // Every key exists, as for a warm state
+    List<Get> gets = new AggregateKeys(keys, config).toGets();
+    results = new Object[gets.size()];
+    for (int r = 0; r < results.length; r++) {
+      Get g = gets.get(r);
+      List<KeyValue> kvs = new ArrayList<KeyValue>();
+      for (Map.Entry<byte[], NavigableSet<byte[]>> e : g.getFamilyMap().entrySet()) {
+        for (byte[] qualifier : e.getValue()) {
+          kvs.add(new KeyValue(g.getRow(), e.getKey(), qualifier, value));
+        }
+      }
+      results[r] = new Result(kvs);
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(BATCH)
+  public List<Get> toGets() {
+    return new AggregateKeys(keys, config).toGets();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(BATCH)
+  public void valueOf(final Blackhole bh) {
+    AggregateKeys encoded = new AggregateKeys(keys, config);
+    for (int i = 0; i < BATCH; i++) {
+      bh.consume(encoded.valueOf(i, results));
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(BATCH)
+  public List<Put> toPuts() {
+    return new AggregateKeys(keys, config).toPuts(values);
+  }
+}
@@ -0,0 +1,90 @@
+package backtype.storm.contrib.hbase.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import storm.trident.state.OpaqueValue;
+import backtype.storm.contrib.hbase.trident.HBaseAggregateState;
+import backtype.storm.contrib.hbase.utils.BinaryOpaqueSerializer;
+import backtype.storm.contrib.hbase.utils.MemoryHTableFactory;
+import backtype.storm.contrib.hbase.utils.MemoryTable;
+import backtype.storm.contrib.hbase.utils.TridentConfig;
+
+/**
+ * Measures <tt>HBaseAggregateState</tt>'s multiGet and multiPut end to end, from the Trident keys
+ * to the table and back, against an in-memory table so no HBase is needed. Set <tt>latency</tt>
+ * to add a fixed number of microseconds to every call to the table. Reported per key
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+@SuppressWarnings({ "rawtypes", "unchecked" })
+public class AggregateStateBenchmark {
+  private static final String TABLE = "shorturl";
+  private static final int BATCH = 1000;
+
+  @Param({ "100", "1000" })
+  public int distinctRows;
+
+  @Param({ "0" })
+  public long latency;
+
+  private HBaseAggregateState<OpaqueValue> state;
+  private List<List<Object>> keys;
+  private List<OpaqueValue> values;
+
+  @Setup
+  public void setup() {
+    MemoryTable.create(TABLE, "daily", "weekly", "monthly");
+
+    TridentConfig<OpaqueValue> config = new TridentConfig<OpaqueValue>(TABLE, "shortid");
+    config.setStateSerializer(new BinaryOpaqueSerializer());
+    config.setTableFactory(new MemoryHTableFactory(latency));
+    state = new HBaseAggregateState<OpaqueValue>(config);
+
+    keys = SyntheticTuples.aggregateKeys(BATCH, distinctRows);
+    values = new ArrayList<OpaqueValue>(BATCH);
+    for (int i = 0; i < BATCH; i++) {
+      values.add(new OpaqueValue<Long>(7L, 42L, 41L));
+    }
+
+    // Every key exists, as for a warm state
+    state.multiPut(keys, values);
+  }
+
+  @TearDown
+  public void tearDown() {
+    state.close();
+    MemoryTable.drop(TABLE);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(BATCH)
+  public List<OpaqueValue> multiGet() {
+    return state.multiGet(keys);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(BATCH)
+  public void multiPut() {
+    state.multiPut(keys, values);
+  }
+}
@@ -0,0 +1,88 @@
+package backtype.storm.contrib.hbase.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.hbase.client.Increment;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import backtype.storm.contrib.hbase.utils.CounterAccumulator;
+import backtype.storm.contrib.hbase.utils.TupleTableConfig;
+import backtype.storm.tuple.Tuple;
+
+/**
+ * Measures summing a batch of tuples' counters into one increment per row, as
+ * <tt>HBaseCountersBatchBolt</tt> and the combining <tt>HBaseCountersBolt</tt> do. Compares the
+ * {@link CounterAccumulator} with merging Increments in a TreeMap via
+ * {@link TupleTableConfig#addIncrement}, the way the batch bolt used to. Reported per tuple
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CounterBenchmark {
+  private static final int BATCH = 10000;
+
+  @Param({ "100", "10000" })
+  public int distinctRows;
+
+  private TupleTableConfig conf;
+  private Tuple[] tuples;
+
+  @Setup
+  public void setup() {
+    conf = SyntheticTuples.counterConfig();
+    tuples = SyntheticTuples.clicks(BATCH, distinctRows);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(BATCH)
+  public List<Increment> accumulator() {
+    CounterAccumulator counters = new CounterAccumulator();
+    for (Tuple t : tuples) {
+      conf.addIncrementFromTuple(counters, t, TupleTableConfig.DEFAULT_INCREMENT);
+    }
+    return counters.toIncrements(conf.isWriteToWAL());
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(BATCH)
+  public List<Increment> treeMap() {
+    Map<byte[], Increment> counters = new TreeMap<byte[], Increment>(Bytes.BYTES_COMPARATOR);
+    for (Tuple t : tuples) {
+      Increment newInc = conf.getIncrementFromTuple(t, TupleTableConfig.DEFAULT_INCREMENT);
+      Increment extInc = counters.get(newInc.getRow());
+
+      if (extInc == null) {
+        counters.put(newInc.getRow(), newInc);
+        continue;
+      }
+      for (Entry<byte[], NavigableMap<byte[], Long>> families : newInc.getFamilyMap().entrySet()) {
+        for (Entry<byte[], Long> columns : families.getValue().entrySet()) {
+          TupleTableConfig.addIncrement(extInc, families.getKey(), columns.getKey(),
+            columns.getValue());
+        }
+      }
+    }
+    return new ArrayList<Increment>(counters.values());
+  }
+}
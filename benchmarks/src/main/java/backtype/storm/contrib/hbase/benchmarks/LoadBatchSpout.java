@@ -0,0 +1,118 @@
+package backtype.storm.contrib.hbase.benchmarks;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import storm.trident.operation.TridentCollector;
+import storm.trident.spout.IBatchSpout;
+import backtype.storm.task.TopologyContext;
+import backtype.storm.tuple.Fields;
+import backtype.storm.tuple.Values;
+
+/**
+ * The Trident counterpart of {@link LoadSpout}. Emits batches of click tuples at a fixed rate, and
+ * records the end-to-end latency of every tuple in a batch in {@link LoadStats} when the batch is
+ * committed. A replayed batch is emitted with the same tuples, so the transactional states stay
+ * exact
+ */
+@SuppressWarnings("serial")
+public class LoadBatchSpout implements IBatchSpout {
+  private final int distinctIds;
+  private final double skew;
+  private final int tuplesPerSec;
+  private final int batchSize;
+
+  private transient Random random;
+  private transient long nextDue;
+  private transient Map<Long, Batch> pending;
+
+  /**
+   * @param distinctIds The number of distinct short ids
+   * @param skew The skew of the ids, see {@link SyntheticTuples#skewed(Random, int, double)}
+   * @param tuplesPerSec The rate, 0 for as fast as possible
+   * @param batchSize The number of tuples in each batch
+   */
+  public LoadBatchSpout(final int distinctIds, final double skew, final int tuplesPerSec,
+      final int batchSize) {
+    this.distinctIds = distinctIds;
+    this.skew = skew;
+    this.tuplesPerSec = tuplesPerSec;
+    this.batchSize = batchSize;
+  }
+
+  /** {@inheritDoc} */
+  @SuppressWarnings("rawtypes")
+  @Override
+  public void open(Map conf, TopologyContext context) {
+    this.random = new Random(context.getThisTaskId());
+    this.nextDue = System.nanoTime();
+    this.pending = new HashMap<Long, Batch>();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void emitBatch(long batchId, TridentCollector collector) {
+    Batch batch = pending.get(batchId);
+    if (batch == null) {
+      if (tuplesPerSec > 0) {
+        long wait = nextDue - System.nanoTime();
+        if (wait > 0) {
+          try {
+            Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+          } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return;
+          }
+        }
+        nextDue += batchSize * 1000000000L / tuplesPerSec;
+      }
+
+      batch = new Batch();
+      for (int i = 0; i < batchSize; i++) {
+        int shortId = SyntheticTuples.skewed(random, distinctIds, skew);
+        batch.tuples.add(new Values(SyntheticTuples.shortId(shortId), "www.example.com/"
+            + shortId, "user" + random.nextInt(1000), "201208" + (10 + random.nextInt(20))));
+      }
+      pending.put(batchId, batch);
+    }
+
+    for (Values v : batch.tuples) {
+      collector.emit(v);
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void ack(long batchId) {
+    Batch batch = pending.remove(batchId);
+    if (batch != null) {
+      LoadStats.acked(batch.tuples.size(), batch.emitted);
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void close() {
+  }
+
+  /** {@inheritDoc} */
+  @SuppressWarnings("rawtypes")
+  @Override
+  public Map getComponentConfiguration() {
+    return null;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public Fields getOutputFields() {
+    return SyntheticTuples.FIELDS;
+  }
+
+  private static class Batch {
+    final long emitted = System.nanoTime();
+    final List<Values> tuples = new ArrayList<Values>();
+  }
+}
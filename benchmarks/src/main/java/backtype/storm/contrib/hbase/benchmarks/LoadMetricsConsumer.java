@@ -0,0 +1,41 @@
+package backtype.storm.contrib.hbase.benchmarks;
+
+import java.util.Collection;
+import java.util.Map;
+
+import backtype.storm.metric.api.IMetricsConsumer;
+import backtype.storm.task.IErrorReporter;
+import backtype.storm.task.TopologyContext;
+
+/**
+ * Adds the calls to HBase reported in the bolts' and states' {@link
+ * backtype.storm.contrib.hbase.utils.HBaseMetrics} to {@link LoadStats}
+ */
+public class LoadMetricsConsumer implements IMetricsConsumer {
+
+  /** {@inheritDoc} */
+  @SuppressWarnings("rawtypes")
+  @Override
+  public void prepare(Map stormConf, Object registrationArgument, TopologyContext context,
+      IErrorReporter errorReporter) {
+  }
+
+  /** {@inheritDoc} */
+  @SuppressWarnings("rawtypes")
+  @Override
+  public void handleDataPoints(TaskInfo taskInfo, Collection<DataPoint> dataPoints) {
+    for (DataPoint p : dataPoints) {
+      if (p.name.startsWith("hbase-") && p.value instanceof Map) {
+        Object calls = ((Map) p.value).get("calls");
+        if (calls instanceof Number) {
+          LoadStats.calls(((Number) calls).longValue());
+        }
+      }
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void cleanup() {
+  }
+}
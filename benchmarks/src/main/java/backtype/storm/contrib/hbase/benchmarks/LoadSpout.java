@@ -0,0 +1,88 @@
+package backtype.storm.contrib.hbase.benchmarks;
+
+import java.util.Map;
+import java.util.Random;
+
+import backtype.storm.spout.SpoutOutputCollector;
+import backtype.storm.task.TopologyContext;
+import backtype.storm.topology.OutputFieldsDeclarer;
+import backtype.storm.topology.base.BaseRichSpout;
+import backtype.storm.tuple.Values;
+
+/**
+ * Emits click tuples at a fixed rate, with a given number of distinct short ids and skew. Each
+ * tuple is anchored, and its end-to-end latency is recorded in {@link LoadStats} when it is acked
+ */
+@SuppressWarnings("serial")
+public class LoadSpout extends BaseRichSpout {
+  // The most tuples emitted per call when catching up
+  private static final int MAX_BURST = 100;
+
+  private final int distinctIds;
+  private final double skew;
+  private final int tuplesPerSec;
+
+  private transient SpoutOutputCollector collector;
+  private transient Random random;
+  private transient long intervalNanos;
+  private transient long nextDue;
+  private transient long lastId;
+
+  /**
+   * @param distinctIds The number of distinct short ids
+   * @param skew The skew of the ids, see {@link SyntheticTuples#skewed(Random, int, double)}
+   * @param tuplesPerSec The rate of each spout task, 0 for as fast as possible
+   */
+  public LoadSpout(final int distinctIds, final double skew, final int tuplesPerSec) {
+    this.distinctIds = distinctIds;
+    this.skew = skew;
+    this.tuplesPerSec = tuplesPerSec;
+  }
+
+  /** {@inheritDoc} */
+  @SuppressWarnings("rawtypes")
+  @Override
+  public void open(Map conf, TopologyContext context, SpoutOutputCollector collector) {
+    this.collector = collector;
+    this.random = new Random(context.getThisTaskId());
+    this.intervalNanos = tuplesPerSec > 0 ? 1000000000L / tuplesPerSec : 0;
+    this.nextDue = System.nanoTime();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void nextTuple() {
+    for (int i = 0; i < MAX_BURST; i++) {
+      long now = System.nanoTime();
+      if (now < nextDue) {
+        return;
+      }
+      nextDue += intervalNanos;
+
+      // The message id is the emit time, kept unique so every tuple is tracked
+      long id = Math.max(now, lastId + 1);
+      lastId = id;
+      int shortId = SyntheticTuples.skewed(random, distinctIds, skew);
+      collector.emit(new Values(SyntheticTuples.shortId(shortId), "www.example.com/" + shortId,
+          "user" + random.nextInt(1000), "201208" + (10 + random.nextInt(20))), id);
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void ack(Object msgId) {
+    LoadStats.acked(1, (Long) msgId);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void fail(Object msgId) {
+    LoadStats.failed(1);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void declareOutputFields(OutputFieldsDeclarer declarer) {
+    declarer.declare(SyntheticTuples.FIELDS);
+  }
+}
@@ -0,0 +1,73 @@
+package backtype.storm.contrib.hbase.benchmarks;
+
+import backtype.storm.contrib.hbase.utils.Histogram;
+
+/**
+ * The results of a load test, shared by the spouts and the metrics consumer. The load test runs
+ * the topology in a {@link backtype.storm.LocalCluster}, so every component is in this JVM
+ */
+public final class LoadStats {
+  private static final Histogram LATENCY_MICROS = new Histogram();
+  private static long acked;
+  private static long failed;
+  private static long calls;
+  private static long started = System.nanoTime();
+
+  private LoadStats() {
+  }
+
+  /**
+   * @param tuples The number of tuples fully processed
+   * @param emittedNanos The {@link System#nanoTime()} when they were emitted
+   */
+  public static synchronized void acked(final int tuples, final long emittedNanos) {
+    long micros = (System.nanoTime() - emittedNanos) / 1000L;
+    for (int i = 0; i < tuples; i++) {
+      LATENCY_MICROS.record(micros);
+    }
+    acked += tuples;
+  }
+
+  /**
+   * @param tuples The number of tuples that failed or timed out
+   */
+  public static synchronized void failed(final int tuples) {
+    failed += tuples;
+  }
+
+  /**
+   * @param count The number of calls made to HBase
+   */
+  public static synchronized void calls(final long count) {
+    calls += count;
+  }
+
+  /**
+   * Starts a new measurement, e.g. at the end of the warm up
+   */
+  public static synchronized void reset() {
+    LATENCY_MICROS.reset();
+    acked = 0;
+    failed = 0;
+    calls = 0;
+    started = System.nanoTime();
+  }
+
+  /**
+   * @param mode The name of the write mode measured
+   * @return A report of the measurement so far, one line of tab-separated values
+   */
+  public static synchronized String report(final String mode) {
+    double secs = (System.nanoTime() - started) / 1e9;
+    return String.format("%s\t%.0f\t%.2f\t%.2f\t%.3f\t%d", mode, acked / secs,
+      LATENCY_MICROS.percentile(0.5) / 1000.0, LATENCY_MICROS.percentile(0.99) / 1000.0,
+      acked == 0 ? 0.0 : (double) calls / acked, failed);
+  }
+
+  /**
+   * @return The column headings of {@link #report(String)}
+   */
+  public static String header() {
+    return "mode\ttuples/s\tp50 ms\tp99 ms\tcalls/tuple\tfailed";
+  }
+}
@@ -0,0 +1,252 @@
+package backtype.storm.contrib.hbase.benchmarks;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.HBaseTestingUtility;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import storm.trident.TridentTopology;
+import storm.trident.operation.BaseFunction;
+import storm.trident.operation.TridentCollector;
+import storm.trident.operation.builtin.Count;
+import storm.trident.state.OpaqueValue;
+import storm.trident.tuple.TridentTuple;
+import backtype.storm.Config;
+import backtype.storm.LocalCluster;
+import backtype.storm.contrib.hbase.bolts.HBaseBolt;
+import backtype.storm.contrib.hbase.bolts.HBaseCountersBolt;
+import backtype.storm.contrib.hbase.trident.HBaseAggregateState;
+import backtype.storm.contrib.hbase.utils.MemoryHTableFactory;
+import backtype.storm.contrib.hbase.utils.MemoryTable;
+import backtype.storm.contrib.hbase.utils.TridentConfig;
+import backtype.storm.contrib.hbase.utils.TupleTableConfig;
+import backtype.storm.generated.StormTopology;
+import backtype.storm.topology.TopologyBuilder;
+import backtype.storm.tuple.Fields;
+import backtype.storm.tuple.Values;
+import backtype.storm.utils.Utils;
+
+/**
+ * A load test of the bolts and Trident states in a {@link LocalCluster} against a HBase
+ * mini-cluster or an in-memory table, one write mode at a time.
+ * <p>
+ * For each mode it reports the sustained throughput in tuples per second, the median and 99th
+ * percentile end-to-end latency from spout emit to ack, the number of calls to HBase per tuple, and
+ * the number of failed tuples. Options are given as <tt>name=value</tt> arguments:
+ * <ul>
+ * <li><tt>modes</tt>: comma-separated modes to run, from {@link #MODES}, all by default</li>
+ * <li><tt>ids</tt>: the number of distinct row keys, default 100000</li>
+ * <li><tt>skew</tt>: the skew of the row keys, 0 for uniform, default 1</li>
+ * <li><tt>rate</tt>: the tuples per second offered by each spout task, 0 for as fast as
+ * possible (the default), bounded by the maximum pending tuples</li>
+ * <li><tt>spouts</tt>, <tt>bolts</tt>: the parallelism of the spout and the HBase bolt, default 1
+ * and 2</li>
+ * <li><tt>maxPending</tt>: the maximum pending tuples per spout task, default 1000, or batches for
+ * the Trident modes, default 5</li>
+ * <li><tt>batchSize</tt>: the number of tuples in a Trident batch, default 1000</li>
+ * <li><tt>warmup</tt>, <tt>duration</tt>: the seconds to warm up for, then to measure for, default
+ * 10 and 30</li>
+ * <li><tt>backend</tt>: <tt>minicluster</tt> (the default) or <tt>memory</tt>, to write to a
+ * {@link MemoryTable} and measure the topology without HBase itself. With the memory backend the
+ * <tt>put-bulk</tt> mode puts the cells of its HFiles into the table rather than bulk loading
+ * them</li>
+ * <li><tt>latency</tt>: with the memory backend, the microseconds each call to HBase takes, default
+ * 0</li>
+ * </ul>
+ * The HBase mini-cluster's ZooKeeper listens on the client port of the <tt>hbase-site.xml</tt> in
+ * the classpath, 2181 by default, so the bolts connect to it as they would to a real cluster.
+ */
+public class LoadTest {
+  public static final String TABLE = "shorturl";
+
+  public static final List<String> MODES = Arrays.asList("put", "put-sync", "put-ack-on-flush",
+    "put-async", "put-bulk", "counters", "counters-combine", "trident-opaque");
+
+  private final Map<String, String> opts;
+
+  public LoadTest(final Map<String, String> opts) {
+    this.opts = opts;
+  }
+
+  /**
+   * @param args The options, as <tt>name=value</tt>
+   * @throws Exception If the HBase mini-cluster can't be started
+   */
+  public static void main(String[] args) throws Exception {
+    Map<String, String> opts = new HashMap<String, String>();
+    for (String arg : args) {
+      int eq = arg.indexOf('=');
+      if (eq < 0) {
+        throw new IllegalArgumentException("Options must be given as name=value: " + arg);
+      }
+      opts.put(arg.substring(0, eq), arg.substring(eq + 1));
+    }
+    LoadTest test = new LoadTest(opts);
+
+    List<String> modes = MODES;
+    if (opts.containsKey("modes")) {
+      modes = Arrays.asList(opts.get("modes").split(","));
+    }
+
+    HBaseTestingUtility hbase = null;
+    if (test.isMemory()) {
+      MemoryTable.create(TABLE, "data", "daily");
+    } else {
+      hbase = startHBase();
+    }
+    try {
+      System.out.println(LoadStats.header());
+      for (String mode : modes) {
+        System.out.println(test.run(mode));
+      }
+    } finally {
+      if (hbase != null) {
+        hbase.shutdownMiniCluster();
+      }
+      MemoryTable.drop(TABLE);
+    }
+  }
+
+  /**
+   * @return True if the topologies write to an in-memory table rather than a HBase mini-cluster
+   */
+  public boolean isMemory() {
+    String backend = opts.containsKey("backend") ? opts.get("backend") : "minicluster";
+    if (!backend.equals("memory") && !backend.equals("minicluster")) {
+      throw new IllegalArgumentException("Unknown backend: " + backend);
+    }
+    return backend.equals("memory");
+  }
+
+  /**
+   * Runs the topology for a write mode, warms up, then measures
+   * @param mode The write mode
+   * @return The report line
+   */
+  public String run(final String mode) {
+    boolean trident = mode.startsWith("trident");
+
+    Config conf = new Config();
+    conf.setMaxSpoutPending(intOpt("maxPending", trident ? 5 : 1000));
+    conf.registerMetricsConsumer(LoadMetricsConsumer.class, 1);
+
+    String name = "load-" + mode;
+    LocalCluster cluster = new LocalCluster();
+    cluster.submitTopology(name, conf, trident ? tridentTopology(mode) : boltTopology(mode));
+
+    Utils.sleep(intOpt("warmup", 10) * 1000L);
+    LoadStats.reset();
+    Utils.sleep(intOpt("duration", 30) * 1000L);
+    String report = LoadStats.report(mode);
+
+    cluster.killTopology(name);
+    cluster.shutdown();
+    return report;
+  }
+
+  private StormTopology boltTopology(final String mode) {
+    boolean counters = mode.startsWith("counters");
+    TupleTableConfig conf = counters ? SyntheticTuples.counterConfig()
+        : SyntheticTuples.putConfig();
+    conf.setMetricsBucketSecs(1);
+    setBackend(conf);
+
+    HBaseBolt bolt;
+    if (counters) {
+      HBaseCountersBolt countersBolt = new HBaseCountersBolt(conf);
+      countersBolt.setCombine(mode.equals("counters-combine"));
+      bolt = countersBolt;
+    } else {
+      bolt = new HBaseBolt(conf);
+      if (mode.equals("put-sync")) {
+        conf.setBatch(false);
+      } else if (mode.equals("put-ack-on-flush")) {
+        bolt.setAckOnFlush(true);
+      } else if (mode.equals("put-async")) {
+        conf.setAsyncBatchSize(1000);
+      } else if (mode.equals("put-bulk")) {
+        // Tuples are acked once their HFiles are loaded, well within the message timeout
+        conf.setBulkLoadDir("/tmp/storm-hbase-bulk");
+        bolt.setAckOnFlush(true);
+        bolt.setFlushIntervalSecs(5);
+      } else if (!mode.equals("put")) {
+        throw new IllegalArgumentException("Unknown mode: " + mode);
+      }
+    }
+
+    TopologyBuilder builder = new TopologyBuilder();
+    builder.setSpout("load", new LoadSpout(intOpt("ids", 100000), doubleOpt("skew", 1.0),
+        intOpt("rate", 0)), intOpt("spouts", 1));
+    builder.setBolt("hbase", bolt, intOpt("bolts", 2))
+        .fieldsGrouping("load", new Fields("shortid"));
+    return builder.createTopology();
+  }
+
+  @SuppressWarnings("rawtypes")
+  private StormTopology tridentTopology(final String mode) {
+    TridentConfig<OpaqueValue> config = new TridentConfig<OpaqueValue>(TABLE, "shortid");
+    config.setMetricsBucketSecs(1);
+    setBackend(config);
+    if (!mode.equals("trident-opaque")) {
+      throw new IllegalArgumentException("Unknown mode: " + mode);
+    }
+
+    TridentTopology topology = new TridentTopology();
+    topology
+        .newStream("load", new LoadBatchSpout(intOpt("ids", 100000), doubleOpt("skew", 1.0),
+            intOpt("rate", 0), intOpt("batchSize", 1000))).parallelismHint(intOpt("spouts", 1))
+        .each(new Fields("date"), new DailyColumn(), new Fields("cf"))
+        .groupBy(new Fields("shortid", "cf", "date"))
+        .persistentAggregate(HBaseAggregateState.opaque(config), new Count(), new Fields("count"))
+        .parallelismHint(intOpt("bolts", 2));
+    return topology.build();
+  }
+
+  /**
+   * Starts a HBase mini-cluster and creates the load test table
+   * @return The running mini-cluster
+   * @throws Exception If the mini-cluster can't be started
+   */
+  private static HBaseTestingUtility startHBase() throws Exception {
+    Configuration client = HBaseConfiguration.create();
+    HBaseTestingUtility util = new HBaseTestingUtility();
+    util.getConfiguration().setInt("test.hbase.zookeeper.property.clientPort",
+      client.getInt(HConstants.ZOOKEEPER_CLIENT_PORT, HConstants.DEFAULT_ZOOKEPER_CLIENT_PORT));
+    util.startMiniCluster();
+    util.createTable(Bytes.toBytes(TABLE), new byte[][] { Bytes.toBytes("data"),
+        Bytes.toBytes("daily") });
+    return util;
+  }
+
+  private void setBackend(final TupleTableConfig conf) {
+    if (isMemory()) {
+      conf.setTableFactory(new MemoryHTableFactory(intOpt("latency", 0)));
+    }
+  }
+
+  private int intOpt(final String name, final int defaultValue) {
+    return opts.containsKey(name) ? Integer.parseInt(opts.get(name)) : defaultValue;
+  }
+
+  private double doubleOpt(final String name, final double defaultValue) {
+    return opts.containsKey(name) ? Double.parseDouble(opts.get(name)) : defaultValue;
+  }
+
+  /**
+   * Adds the column family of the daily counts
+   */
+  @SuppressWarnings("serial")
+  public static class DailyColumn extends BaseFunction {
+    /** {@inheritDoc} */
+    @Override
+    public void execute(TridentTuple tuple, TridentCollector collector) {
+      collector.emit(new Values("daily"));
+    }
+  }
+}
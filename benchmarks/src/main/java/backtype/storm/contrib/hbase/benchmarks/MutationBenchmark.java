@@ -0,0 +1,66 @@
+package backtype.storm.contrib.hbase.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.Increment;
+import org.apache.hadoop.hbase.client.Put;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import backtype.storm.contrib.hbase.utils.TupleTableConfig;
+import backtype.storm.tuple.Tuple;
+
+/**
+ * Measures building a mutation from a tuple with {@link TupleTableConfig}, the per-tuple cost of
+ * every bolt
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MutationBenchmark {
+  private static final int TUPLES = 4096;
+
+  private TupleTableConfig putConf;
+  private TupleTableConfig counterConf;
+  private Tuple[] tuples;
+  private int next;
+
+  @Setup
+  public void setup() {
+    putConf = SyntheticTuples.putConfig();
+    counterConf = SyntheticTuples.counterConfig();
+    tuples = SyntheticTuples.clicks(TUPLES, 1000);
+  }
+
+  private Tuple nextTuple() {
+    next = (next + 1) & (TUPLES - 1);
+    return tuples[next];
+  }
+
+  @Benchmark
+  public Put putFromTuple() {
+    return putConf.getPutFromTuple(nextTuple());
+  }
+
+  @Benchmark
+  public Get getFromTuple() {
+    return putConf.getGetFromTuple(nextTuple());
+  }
+
+  @Benchmark
+  public Increment incrementFromTuple() {
+    return counterConf.getIncrementFromTuple(nextTuple(), TupleTableConfig.DEFAULT_INCREMENT);
+  }
+}
@@ -0,0 +1,76 @@
+package backtype.storm.contrib.hbase.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import storm.trident.state.JSONNonTransactionalSerializer;
+import storm.trident.state.JSONOpaqueSerializer;
+import storm.trident.state.JSONTransactionalSerializer;
+import storm.trident.state.OpaqueValue;
+import storm.trident.state.Serializer;
+import storm.trident.state.TransactionalValue;
+import backtype.storm.contrib.hbase.utils.BinaryNonTransactionalSerializer;
+import backtype.storm.contrib.hbase.utils.BinaryOpaqueSerializer;
+import backtype.storm.contrib.hbase.utils.BinaryTransactionalSerializer;
+
+/**
+ * Measures serializing and deserializing Trident state values, the binary serializers against
+ * Storm's JSON serializers, for a running count as kept by <tt>HBaseTridentAggregateTopology</tt>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+@SuppressWarnings({ "rawtypes", "unchecked" })
+public class SerializerBenchmark {
+  @Param({ "binary", "json" })
+  public String format;
+
+  @Param({ "opaque", "transactional", "non-transactional" })
+  public String stateType;
+
+  private Serializer serializer;
+  private Object value;
+  private byte[] bytes;
+
+  @Setup
+  public void setup() {
+    boolean binary = "binary".equals(format);
+    if ("opaque".equals(stateType)) {
+      serializer = binary ? new BinaryOpaqueSerializer() : new JSONOpaqueSerializer();
+      value = new OpaqueValue<Long>(123456L, 987654321L, 987654000L);
+    } else if ("transactional".equals(stateType)) {
+      serializer = binary ? new BinaryTransactionalSerializer()
+          : new JSONTransactionalSerializer();
+      value = new TransactionalValue<Long>(123456L, 987654321L);
+    } else {
+      serializer = binary ? new BinaryNonTransactionalSerializer()
+          : new JSONNonTransactionalSerializer();
+      value = 987654321L;
+    }
+    bytes = serializer.serialize(value);
+  }
+
+  @Benchmark
+  public byte[] serialize() {
+    return serializer.serialize(value);
+  }
+
+  @Benchmark
+  public Object deserialize() {
+    return serializer.deserialize(bytes);
+  }
+}
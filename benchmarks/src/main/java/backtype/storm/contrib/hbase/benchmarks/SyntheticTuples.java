@@ -0,0 +1,146 @@
+package backtype.storm.contrib.hbase.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import backtype.storm.contrib.hbase.utils.TupleTableConfig;
+import backtype.storm.generated.Bolt;
+import backtype.storm.generated.SpoutSpec;
+import backtype.storm.generated.StateSpoutSpec;
+import backtype.storm.generated.StormTopology;
+import backtype.storm.task.GeneralTopologyContext;
+import backtype.storm.tuple.Fields;
+import backtype.storm.tuple.MessageId;
+import backtype.storm.tuple.Tuple;
+import backtype.storm.tuple.TupleImpl;
+import backtype.storm.tuple.Values;
+
+/**
+ * Generates tuples shaped like the example topologies' short URL clicks, without a running
+ * topology.
+ * <p>
+ * Each tuple has the fields <tt>shortid</tt>, <tt>url</tt>, <tt>user</tt> and <tt>date</tt>. The
+ * short ids are drawn from a fixed number of distinct ids with a skewed distribution, so a few ids
+ * are hot, as they are for real click streams. The same seed always generates the same tuples, so
+ * results can be compared across runs and releases.
+ */
+public final class SyntheticTuples {
+  public static final String COMPONENT = "clicks";
+  public static final Fields FIELDS = new Fields("shortid", "url", "user", "date");
+
+  private static final int TASK_ID = 1;
+  private static final long SEED = 42L;
+
+  private SyntheticTuples() {
+  }
+
+  /**
+   * @param count The number of tuples
+   * @param distinctIds The number of distinct short ids
+   * @return The tuples
+   */
+  public static Tuple[] clicks(final int count, final int distinctIds) {
+    GeneralTopologyContext context = context();
+    Random random = new Random(SEED);
+
+    Tuple[] tuples = new Tuple[count];
+    for (int i = 0; i < count; i++) {
+      int id = skewed(random, distinctIds, 1.0);
+      Values values = new Values(shortId(id),
+          "www.example.com/" + id + "/index.html", "user" + random.nextInt(1000),
+          "201208" + (10 + random.nextInt(20)));
+      tuples[i] = new TupleImpl(context, values, TASK_ID, "default", MessageId.makeUnanchored());
+    }
+    return tuples;
+  }
+
+  /**
+   * @return A {@link TupleTableConfig} writing the url and user of each click, as in
+   *         <tt>HBaseExampleTopology</tt>
+   */
+  public static TupleTableConfig putConfig() {
+    TupleTableConfig conf = new TupleTableConfig("shorturl", "shortid");
+    conf.addColumn("data", "url");
+    conf.addColumn("data", "user");
+    conf.compile();
+    return conf;
+  }
+
+  /**
+   * @return A {@link TupleTableConfig} counting clicks in total and per day, as in
+   *         <tt>HBaseCountersTopology</tt>
+   */
+  public static TupleTableConfig counterConfig() {
+    TupleTableConfig conf = new TupleTableConfig("shorturl", "shortid");
+    conf.addColumn("data", "clicks");
+    conf.addColumn("daily", "date");
+    conf.compile();
+    return conf;
+  }
+
+  /**
+   * @param count The number of keys
+   * @param distinctRows The number of distinct rows
+   * @return Trident aggregate keys of row, column family and column qualifier, with several keys
+   *         per row as in <tt>HBaseTridentAggregateTopology</tt>
+   */
+  public static List<List<Object>> aggregateKeys(final int count, final int distinctRows) {
+    Random random = new Random(SEED);
+    String[] families = { "daily", "weekly", "monthly" };
+
+    List<List<Object>> keys = new ArrayList<List<Object>>(count);
+    for (int i = 0; i < count; i++) {
+      int row = skewed(random, distinctRows, 1.0);
+      String family = families[random.nextInt(families.length)];
+      keys.add(new Values(shortId(row), family,
+          "201208" + (10 + random.nextInt(20))));
+    }
+    return keys;
+  }
+
+  /**
+   * @return A topology context that knows the fields of the synthetic stream
+   */
+  private static GeneralTopologyContext context() {
+    StormTopology topology = new StormTopology(new HashMap<String, SpoutSpec>(),
+        new HashMap<String, Bolt>(), new HashMap<String, StateSpoutSpec>());
+
+    Map<Integer, String> taskToComponent = new HashMap<Integer, String>();
+    taskToComponent.put(TASK_ID, COMPONENT);
+    Map<String, List<Integer>> componentToTasks = new HashMap<String, List<Integer>>();
+    componentToTasks.put(COMPONENT, Collections.singletonList(TASK_ID));
+    Map<String, Fields> streams = new HashMap<String, Fields>();
+    streams.put("default", FIELDS);
+    Map<String, Map<String, Fields>> componentToStreams =
+        new HashMap<String, Map<String, Fields>>();
+    componentToStreams.put(COMPONENT, streams);
+
+    return new GeneralTopologyContext(topology, new HashMap<String, Object>(), taskToComponent,
+        componentToTasks, componentToStreams, "benchmark");
+  }
+
+  /**
+   * @param random The random number generator
+   * @param n The number of distinct ids
+   * @param skew 0 for uniformly distributed ids, larger to make small ids more likely. At 1 the
+   *          lowest 10% of ids get ~30% of hits, at 3 ~56%
+   * @return An id between 0 and n - 1
+   */
+  public static int skewed(final Random random, final int n, final double skew) {
+    // Raising a uniform value to a power greater than 1 gives roughly a power law
+    double u = random.nextDouble();
+    return (int) (Math.pow(u, 1.0 + skew) * n);
+  }
+
+  /**
+   * @param id The id
+   * @return The short URL id the example topologies use as the row key
+   */
+  public static String shortId(final int id) {
+    return "http://bit.ly/" + Integer.toString(id, 36);
+  }
+}
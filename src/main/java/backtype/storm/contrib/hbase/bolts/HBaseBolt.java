@@ -1,11 +1,22 @@
 package backtype.storm.contrib.hbase.bolts;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.UUID;
 
+import org.apache.hadoop.hbase.client.Put;
 import org.apache.log4j.Logger;
 
+import backtype.storm.Config;
+import backtype.storm.contrib.hbase.utils.AsyncBatchWriter;
+import backtype.storm.contrib.hbase.utils.HBaseMetrics;
+import backtype.storm.contrib.hbase.utils.HFileBulkLoader;
 import backtype.storm.contrib.hbase.utils.HTableConnector;
+import backtype.storm.contrib.hbase.utils.OverloadPolicy;
+import backtype.storm.contrib.hbase.utils.TupleHelpers;
 import backtype.storm.contrib.hbase.utils.TupleTableConfig;
 import backtype.storm.task.OutputCollector;
 import backtype.storm.task.TopologyContext;
@@ -19,6 +30,35 @@ import backtype.storm.tuple.Tuple;
  * By default works in batch mode by enabling HBase's client-side write buffer. Enabling batch mode
  * is recommended for high throughput, but it can be disabled in {@link TupleTableConfig}.
  * <p>
+ * By default tuples are acked as soon as their put has been handed to the table, which in batch
+ * mode means they may still be sitting in the client-side write buffer. Enable ack-on-flush mode
+ * with {@link #setAckOnFlush(boolean)} to hold tuples until the write buffer they belong to has
+ * been flushed to HBase. They are then acked, or failed, as a group. The buffer is flushed when it
+ * fills up, when the oldest held tuple is older than the flush interval, and on every tick tuple.
+ * <p>
+ * For the highest throughput enable the asynchronous batch write path with
+ * {@link TupleTableConfig#setAsyncBatchSize(int)}. Puts are then collected in the bolt and sent to
+ * HBase in multi-row batch calls on a background thread, and tuples are acked once their batch has
+ * been written. Batches are sent when they reach the configured size, when they are older than the
+ * flush interval, and on every tick tuple.
+ * <p>
+ * In ack-on-flush mode and on the asynchronous batch write path the puts that haven't been written
+ * yet can be bounded with {@link TupleTableConfig#setMaxPendingMutations(int)} and
+ * {@link TupleTableConfig#setMaxPendingBytes(long)}. Once the budget is used up the bolt either
+ * waits for the pending puts to be written, so the unacked tuples throttle the spouts, or fails new
+ * tuples straight away and counts them as rejected, depending on the {@link OverloadPolicy}.
+ * <p>
+ * For backfills enable bulk load mode with {@link TupleTableConfig#setBulkLoadDir(String)}. Puts
+ * are then written to sorted HFiles by each task and bulk loaded into the table at every
+ * checkpoint, i.e. when the oldest put not yet loaded is older than the flush interval and on every
+ * tick tuple, so they bypass the region servers' memstores and write-ahead logs. Every checkpoint
+ * adds files to the regions, so raise the flush interval to minutes rather than seconds. Whether or
+ * not ack-on-flush mode is enabled, tuples are held until their puts have been loaded, and failed
+ * if the load fails, so the topology's message timeout must be longer than the flush interval.
+ * <p>
+ * The latency of the puts and flushes, the size of each flush, failed writes, rejected tuples and
+ * the puts waiting to be written are reported in the bolt's {@link HBaseMetrics}.
+ * <p>
  * The HBase configuration is picked up from the first <tt>hbase-site.xml</tt> encountered in the
  * classpath
  * @see TupleTableConfig
@@ -32,6 +72,24 @@ public class HBaseBolt implements IRichBolt {
   protected HTableConnector connector;
   protected TupleTableConfig conf;
   protected boolean autoAck = true;
+  protected boolean ackOnFlush = false;
+  protected int flushIntervalSecs = 1;
+  protected HBaseMetrics metrics;
+
+  // Tuples whose puts are in the write buffer, waiting to be flushed (ack-on-flush mode)
+  private List<Tuple> pending;
+  private long pendingBytes;
+  private long oldestPending;
+
+  // Asynchronous batch write path, null if disabled
+  private AsyncBatchWriter<Tuple> writer;
+
+  // Bulk load mode, null if disabled
+  private HFileBulkLoader bulk;
+  private long oldestUnloaded;
+
+  // Set by cleanup, once the collector can't be relied on
+  private boolean closing;
 
   public HBaseBolt(TupleTableConfig conf) {
     this.conf = conf;
@@ -42,6 +100,9 @@ public class HBaseBolt implements IRichBolt {
   @Override
   public void prepare(Map stormConf, TopologyContext context, OutputCollector collector) {
     this.collector = collector;
+    this.pending = new ArrayList<Tuple>();
+    this.conf.compile();
+    this.metrics = HBaseMetrics.register(context, conf);
 
     try {
       this.connector = new HTableConnector(conf);
@@ -49,27 +110,364 @@ public class HBaseBolt implements IRichBolt {
       throw new RuntimeException(e);
     }
 
+    if (conf.isBulkLoad()) {
+      // Outside a topology, e.g. in tests, each bolt stages its files in a directory of its own
+      String taskName = context == null ? UUID.randomUUID().toString() : context.getStormId()
+          + "/" + context.getThisComponentId() + "-" + context.getThisTaskId();
+      try {
+        this.bulk = new HFileBulkLoader(connector, conf, taskName, metrics);
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    } else if (conf.getAsyncBatchSize() > 0) {
+      AsyncBatchWriter.FlushListener<Tuple> acker = new AsyncBatchWriter.FlushListener<Tuple>() {
+        @Override
+        public void flushed(List<Tuple> anchors) {
+          if (closing) {
+            return;
+          }
+          for (Tuple t : anchors) {
+            HBaseBolt.this.collector.ack(t);
+          }
+        }
+
+        @Override
+        public void failed(List<Tuple> anchors, IOException ex) {
+          if (closing) {
+            return;
+          }
+          for (Tuple t : anchors) {
+            HBaseBolt.this.collector.fail(t);
+          }
+        }
+      };
+      this.writer = new AsyncBatchWriter<Tuple>(connector, acker, conf.getAsyncBatchSize(),
+          conf.getAsyncBatchBytes(), metrics);
+    }
+
+    metrics.setOccupancy(new HBaseMetrics.Occupancy() {
+      @Override
+      public int pendingMutations() {
+        if (bulk != null) {
+          return bulk.pendingPuts();
+        }
+        if (writer != null) {
+          return writer.pendingCount();
+        }
+        return connector.getWriteBuffer().size();
+      }
+
+      @Override
+      public long pendingBytes() {
+        if (bulk != null) {
+          return bulk.bufferedBytes();
+        }
+        if (writer != null) {
+          return writer.pendingBytes();
+        }
+        long bytes = 0;
+        for (Put p : connector.getWriteBuffer()) {
+          bytes += p.heapSize();
+        }
+        return bytes;
+      }
+    });
+
     LOG.info("Preparing HBaseBolt for table: " + this.conf.getTableName());
   }
 
   /** {@inheritDoc} */
   @Override
   public void execute(Tuple input) {
+    if (bulk != null) {
+      executeBulk(input);
+      return;
+    }
+    if (writer != null) {
+      executeBatch(input);
+      return;
+    }
+
+    if (isHoldUntilFlushed() && TupleHelpers.isTickTuple(input)) {
+      flush();
+      this.collector.ack(input);
+      return;
+    }
+
+    Put p = conf.getPutFromTuple(input);
+    long heapSize = 0;
+    if (isHoldUntilFlushed()) {
+      heapSize = p.heapSize();
+      if (conf.isOverBudget(pending.size() + 1, pendingBytes + heapSize)) {
+        long flushStart = System.currentTimeMillis();
+        boolean flushed = flush();
+        if (conf.getOverloadPolicy() == OverloadPolicy.FAIL_FAST
+            && (!flushed || isSlow(flushStart))) {
+          reject(input);
+          return;
+        }
+      }
+    }
+
+    long start = System.nanoTime();
     try {
-      this.connector.getTable().put(conf.getPutFromTuple(input));
+      this.connector.getTable().put(p);
     } catch (IOException ex) {
+      metrics.errors(1);
+      if (isHoldUntilFlushed()) {
+        // The write buffer is cleared on failure, so everything held with it is lost
+        hold(input, heapSize);
+        failPending(ex);
+        return;
+      }
       throw new RuntimeException(ex);
     }
+    metrics.latency(HBaseMetrics.Op.PUT, start);
+    if (!conf.isBatch() || this.connector.getWriteBuffer().isEmpty()) {
+      // Sent straight away, or the put filled the write buffer and it was flushed
+      metrics.calls(1);
+    }
 
-    if (this.autoAck) {
+    if (isHoldUntilFlushed()) {
+      hold(input, heapSize);
+
+      if (this.connector.getWriteBuffer().isEmpty()) {
+        // The put filled the write buffer and it was flushed to HBase
+        ackPending();
+      } else if (System.currentTimeMillis() - oldestPending >= flushIntervalSecs * 1000L) {
+        flush();
+      }
+    } else if (this.autoAck) {
       this.collector.ack(input);
     }
   }
 
-  /** {@inheritDoc} */
+  /**
+   * Adds the tuple's put to the asynchronous batch writer, which acks the tuple once its batch has
+   * been written
+   * @param input The {@link Tuple}
+   */
+  private void executeBatch(final Tuple input) {
+    if (TupleHelpers.isTickTuple(input)) {
+      writer.flush();
+      this.collector.ack(input);
+      return;
+    }
+
+    Put p = conf.getPutFromTuple(input);
+    long heapSize = p.heapSize();
+
+    if (conf.isOverBudget(writer.pendingCount() + 1, writer.pendingBytes() + heapSize)) {
+      if (conf.getOverloadPolicy() == OverloadPolicy.FAIL_FAST) {
+        // The batch in flight may have completed since the last tuple
+        writer.drain();
+        if (conf.isOverBudget(writer.pendingCount() + 1, writer.pendingBytes() + heapSize)) {
+          reject(input);
+          return;
+        }
+      } else {
+        writer.flush();
+        if (conf.isOverBudget(writer.pendingCount() + 1, writer.pendingBytes() + heapSize)) {
+          writer.await();
+        }
+      }
+    }
+    writer.add(p, heapSize, this.autoAck ? input : null);
+
+    if (writer.age() >= flushIntervalSecs * 1000L) {
+      writer.flush();
+    }
+  }
+
+  /**
+   * Adds the tuple's put to the HFiles of the bulk loader, which are loaded into the table at the
+   * next checkpoint
+   * @param input The {@link Tuple}
+   */
+  private void executeBulk(final Tuple input) {
+    if (TupleHelpers.isTickTuple(input)) {
+      checkpoint();
+      this.collector.ack(input);
+      return;
+    }
+
+    Put p = conf.getPutFromTuple(input);
+    long heapSize = p.heapSize();
+    if (conf.isOverBudget(bulk.pendingPuts() + 1, bulk.bufferedBytes() + heapSize)) {
+      long loadStart = System.currentTimeMillis();
+      boolean loaded = checkpoint();
+      if (conf.getOverloadPolicy() == OverloadPolicy.FAIL_FAST && (!loaded || isSlow(loadStart))) {
+        reject(input);
+        return;
+      }
+    }
+
+    if (bulk.pendingPuts() == 0) {
+      oldestUnloaded = System.currentTimeMillis();
+    }
+    long start = System.nanoTime();
+    try {
+      bulk.add(p);
+    } catch (IOException ex) {
+      metrics.errors(1);
+      LOG.error("Unable to write put to HFiles for HBase table " + conf.getTableName(), ex);
+      this.collector.fail(input);
+      return;
+    }
+    metrics.latency(HBaseMetrics.Op.PUT, start);
+
+    // A put isn't written until it is loaded, so the tuple can't be acked before then
+    if (this.autoAck) {
+      hold(input, heapSize);
+    }
+
+    if (System.currentTimeMillis() - oldestUnloaded >= flushIntervalSecs * 1000L) {
+      checkpoint();
+    }
+  }
+
+  /**
+   * Bulk loads the HFiles written since the last checkpoint, then acks the tuples that were held
+   * with them. If the load fails the held tuples are failed, and their files discarded, so they can
+   * be replayed. Without auto ack the files are kept and loaded at the next checkpoint instead
+   * @return False if the load failed
+   */
+  protected boolean checkpoint() {
+    if (bulk.pendingPuts() == 0) {
+      return true;
+    }
+
+    try {
+      bulk.load();
+    } catch (IOException ex) {
+      if (this.autoAck) {
+        failPending(ex);
+        try {
+          bulk.discard();
+        } catch (IOException e) {
+          LOG.error("Unable to discard HFiles for HBase table " + conf.getTableName(), e);
+        }
+      } else {
+        LOG.error("Unable to bulk load HFiles into HBase table " + conf.getTableName()
+            + ", retrying at the next checkpoint", ex);
+        oldestUnloaded = System.currentTimeMillis();
+      }
+      return false;
+    }
+    ackPending();
+    return true;
+  }
+
+  /**
+   * Flushes the client-side write buffer to HBase, then acks the tuples that were held with it. If
+   * the flush fails the held tuples are failed so they can be replayed
+   * @return False if the flush failed
+   */
+  protected boolean flush() {
+    if (pending.isEmpty()) {
+      return true;
+    }
+
+    metrics.batch(pending.size(), pendingBytes);
+    long start = System.nanoTime();
+    try {
+      this.connector.getTable().flushCommits();
+    } catch (IOException ex) {
+      metrics.errors(pending.size());
+      failPending(ex);
+      return false;
+    }
+    metrics.calls(1);
+    metrics.latency(HBaseMetrics.Op.FLUSH, start);
+    ackPending();
+    return true;
+  }
+
+  /**
+   * @param startMillis When a flush or load started
+   * @return True if it took longer than the flush interval, i.e. HBase isn't keeping up
+   */
+  protected boolean isSlow(final long startMillis) {
+    return System.currentTimeMillis() - startMillis >= flushIntervalSecs * 1000L;
+  }
+
+  private void hold(final Tuple input, final long heapSize) {
+    if (pending.isEmpty()) {
+      oldestPending = System.currentTimeMillis();
+    }
+    pending.add(input);
+    pendingBytes += heapSize;
+  }
+
+  /**
+   * Fails a tuple that was rejected because the pending mutation budget is used up
+   * @param input The {@link Tuple}
+   */
+  protected void reject(final Tuple input) {
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Pending mutation budget used up, rejecting tuple for HBase table "
+          + conf.getTableName());
+    }
+    metrics.rejected();
+    this.collector.fail(input);
+  }
+
+  private void ackPending() {
+    for (Tuple t : pending) {
+      this.collector.ack(t);
+    }
+    pending.clear();
+    pendingBytes = 0;
+  }
+
+  private void failPending(final IOException ex) {
+    LOG.error(String.format("Unable to flush %d puts to HBase table %s, failing tuples",
+      pending.size(), conf.getTableName()), ex);
+
+    for (Tuple t : pending) {
+      this.collector.fail(t);
+    }
+    pending.clear();
+    pendingBytes = 0;
+  }
+
+  /**
+   * @return True if tuples are held until their puts have been flushed to HBase
+   */
+  private boolean isHoldUntilFlushed() {
+    return this.autoAck && this.ackOnFlush;
+  }
+
+  /**
+   * Writes out the puts that haven't been written yet, then closes the connector. The collector
+   * can't be relied on during shutdown, so held tuples are neither acked nor failed: they time out
+   * and are replayed
+   */
   @Override
   public void cleanup() {
-    this.connector.close();
+    closing = true;
+    try {
+      if (bulk != null) {
+        bulk.load();
+      } else if (writer != null) {
+        writer.close();
+      } else if (!pending.isEmpty()) {
+        this.connector.getTable().flushCommits();
+      }
+    } catch (IOException ex) {
+      LOG.error("Unable to write out the puts for HBase table " + conf.getTableName()
+          + " on shutdown", ex);
+    } finally {
+      if (bulk != null) {
+        bulk.close();
+      }
+      if (!pending.isEmpty()) {
+        LOG.info(String.format("Leaving %d tuples held for HBase table %s to time out",
+          pending.size(), conf.getTableName()));
+        pending.clear();
+      }
+      this.connector.close();
+    }
   }
 
   /** {@inheritDoc} */
@@ -80,7 +478,15 @@ public class HBaseBolt implements IRichBolt {
   /** {@inheritDoc} */
   @Override
   public Map<String, Object> getComponentConfiguration() {
-    return null;
+    if (!isHoldUntilFlushed() && conf.getAsyncBatchSize() <= 0 && !conf.isBulkLoad()) {
+      return null;
+    }
+
+    // Request tick tuples so held tuples are flushed, and HFiles loaded, even when the stream goes
+    // quiet
+    Map<String, Object> componentConf = new HashMap<String, Object>();
+    componentConf.put(Config.TOPOLOGY_TICK_TUPLE_FREQ_SECS, flushIntervalSecs);
+    return componentConf;
   }
 
   /**
@@ -96,4 +502,44 @@ public class HBaseBolt implements IRichBolt {
   public void setAutoAck(boolean autoAck) {
     this.autoAck = autoAck;
   }
+
+  /**
+   * @return Whether ack-on-flush mode is enabled
+   */
+  public boolean isAckOnFlush() {
+    return ackOnFlush;
+  }
+
+  /**
+   * @param ackOnFlush Whether to hold tuples until their puts have been flushed to HBase.
+   *          <p>
+   *          When enabled tuples are only acked once the client-side write buffer they were added
+   *          to has been successfully flushed, and failed if the flush fails. This keeps
+   *          at-least-once delivery when batch mode is enabled, so large write buffers can be used
+   *          safely. Only applies when auto ack is enabled. In bulk load mode tuples are always
+   *          held until their puts have been loaded.
+   *          <p>
+   *          Disabled by default
+   */
+  public void setAckOnFlush(boolean ackOnFlush) {
+    this.ackOnFlush = ackOnFlush;
+  }
+
+  /**
+   * @return The maximum number of seconds a tuple is held before its puts are flushed
+   */
+  public int getFlushIntervalSecs() {
+    return flushIntervalSecs;
+  }
+
+  /**
+   * @param flushIntervalSecs The maximum number of seconds a tuple is held before its puts are
+   *          flushed in ack-on-flush mode, or sent in an asynchronous batch. Also sets the tick
+   *          tuple frequency for the bolt.
+   *          <p>
+   *          Default is 1 second
+   */
+  public void setFlushIntervalSecs(int flushIntervalSecs) {
+    this.flushIntervalSecs = flushIntervalSecs;
+  }
 }
@@ -2,10 +2,12 @@ package backtype.storm.contrib.hbase.bolts;
 
 import java.io.IOException;
 import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.NavigableMap;
-import java.util.TreeMap;
 
 import org.apache.hadoop.hbase.client.Get;
 import org.apache.hadoop.hbase.client.Increment;
@@ -14,11 +16,15 @@ import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.util.Bytes;
 import org.apache.log4j.Logger;
 
+import backtype.storm.contrib.hbase.utils.CounterAccumulator;
+import backtype.storm.contrib.hbase.utils.HTableBatch;
 import backtype.storm.contrib.hbase.utils.HTableConnector;
 import backtype.storm.contrib.hbase.utils.TupleTableConfig;
+import backtype.storm.contrib.hbase.utils.WorkerResources;
 import backtype.storm.coordination.BatchBoltExecutor;
 import backtype.storm.coordination.BatchOutputCollector;
 import backtype.storm.task.TopologyContext;
+import backtype.storm.topology.FailedException;
 import backtype.storm.topology.OutputFieldsDeclarer;
 import backtype.storm.topology.base.BaseTransactionalBolt;
 import backtype.storm.transactional.ICommitter;
@@ -35,9 +41,10 @@ import backtype.storm.tuple.Values;
  * <p>
  * {@link https://github.com/nathanmarz/storm/wiki/Transactional-topologies}
  * <p>
- * This bolt stores the counter and the latest transaction ID (txid) together in the HBase table.
- * The counter is only incremented if the txid in the table is different from the txid of the Tuple
- * being processed. E.g:
+ * This bolt stores the counters and the latest transaction ID (txid) together in the HBase table,
+ * with one txid cell (<tt>_txid</tt>) per row and column family. A family's counters are only
+ * incremented if the txid in the table is different from the txid of the Tuples being processed.
+ * E.g:
  * <ol>
  * <li>If the txids are different, because of Storm's strong ordering of transactions, we know that
  * the current Tuple hasn't been represented in the counter, so the counter is incremented and its
@@ -46,6 +53,26 @@ import backtype.storm.tuple.Values;
  * is skipped. The Tuple must have failed after previously incrementing the counter but before
  * reporting success back to Storm, so it was replayed</li>
  * </ol>
+ * <p>
+ * The counters and txids for a batch are read with a single multi-get when the batch finishes. The
+ * updated counters and their txids are then written with one put per row, sent together in a
+ * single batch call. The client groups both calls by region server, so the commit costs a round
+ * trip per region server rather than per counter, and the rows of a failed call are retried as
+ * configured with {@link TupleTableConfig#setMaxRetries(int)}. As a put is atomic within a row, a
+ * row's counters and txids are always updated together, so a batch that is replayed after being
+ * partially written skips exactly the rows that were written, and each tuple is counted exactly
+ * once. A failed read or write fails the batch, so it is replayed. The counters are stored as 8
+ * byte longs, the same as HBase increments, but because they are updated by read-then-write this
+ * bolt must be the only writer of its counter cells. Use a fields grouping on the row key so each
+ * row is updated by a single task.
+ * <p>
+ * <strong>Note: </strong>earlier versions stored a <tt>&lt;qualifier&gt;_txid</tt> cell per
+ * counter. Those cells are no longer read, so don't upgrade while a batch may still be replayed.
+ * <p>
+ * Storm creates a new instance of the bolt for every batch, so the connection to the HBase table is
+ * held per topology, task and table, reused by each batch's instance and closed when the worker
+ * shuts down.
+ * @see WorkerResources
  * @see BatchBoltExecutor
  * @see HTableConnector
  * @see TupleTableConfig
@@ -55,16 +82,21 @@ public class HBaseCountersBatchBolt extends BaseTransactionalBolt implements ICo
 
   private static final Logger LOG = Logger.getLogger(HBaseCountersBatchBolt.class);
 
+  // Qualifier of the latest txid cell, one per row and column family
   private static final byte[] TXID = "_txid".getBytes();
 
+  // Connectors are opened once per task and table, and shared by the instances for each batch
+  private static final Map<String, HTableConnector> CONNECTORS =
+      new HashMap<String, HTableConnector>();
+
   private HTableConnector connector;
   private TupleTableConfig conf;
 
   private TransactionAttempt attempt;
   private BatchOutputCollector collector;
 
-  // Map of row keys to increments for this batch
-  Map<byte[], Increment> counters;
+  // Summed increments for this batch
+  CounterAccumulator counters;
 
   public HBaseCountersBatchBolt(final TupleTableConfig conf) {
     this.conf = conf;
@@ -77,7 +109,10 @@ public class HBaseCountersBatchBolt extends BaseTransactionalBolt implements ICo
       TransactionAttempt id) {
     this.collector = collector;
     this.attempt = id;
-    this.counters = new TreeMap<byte[], Increment>(Bytes.BYTES_COMPARATOR);
+    this.counters = new CounterAccumulator();
+    this.conf.compile();
+    this.connector = getConnector(context.getStormId() + "/" + context.getThisTaskId() + "/"
+        + this.conf.getTableName(), this.conf);
 
     if (LOG.isDebugEnabled()) {
       LOG.debug(String.format("Preparing for tx %d (attempt %d)", id.getTransactionId(),
@@ -88,135 +123,129 @@ public class HBaseCountersBatchBolt extends BaseTransactionalBolt implements ICo
   /** {@inheritDoc} */
   @Override
   public void execute(Tuple tuple) {
-    Increment newInc = conf.getIncrementFromTuple(tuple, TupleTableConfig.DEFAULT_INCREMENT);
-    Increment extInc = counters.get(newInc.getRow());
-
-    if (extInc != null) {
-      // Increment already exists for row, add newInc to extInc
-      for (Entry<byte[], NavigableMap<byte[], Long>> families : newInc.getFamilyMap().entrySet()) {
-
-        for (Entry<byte[], Long> columns : families.getValue().entrySet()) {
-          TupleTableConfig.addIncrement(extInc, families.getKey(), columns.getKey(),
-            columns.getValue());
-        }
-      }
-      counters.put(newInc.getRow(), extInc);
-    } else {
-      counters.put(newInc.getRow(), newInc);
-    }
+    conf.addIncrementFromTuple(counters, tuple, TupleTableConfig.DEFAULT_INCREMENT);
   }
 
   /** {@inheritDoc} */
   @Override
   public void finishBatch() {
-    try {
-      connector = new HTableConnector(conf);
-    } catch (IOException ex) {
-      throw new RuntimeException(ex);
-    }
+    List<Increment> incs = counters.toIncrements(conf.isWriteToWAL());
 
     if (LOG.isDebugEnabled()) {
       LOG.debug("Finishing tx: " + attempt.getTransactionId());
       LOG.debug(String.format("Updating idempotent counters for %d rows in table '%s'",
-        counters.size(), conf.getTableName()));
+        incs.size(), conf.getTableName()));
     }
 
-    for (Increment inc : counters.values()) {
-      for (Entry<byte[], NavigableMap<byte[], Long>> e : inc.getFamilyMap().entrySet()) {
+    BigInteger txid = attempt.getTransactionId();
+    byte[] txidBytes = txid.toByteArray();
 
-        for (Entry<byte[], Long> c : e.getValue().entrySet()) {
-          // Get counters latest txid from table
-          byte[] txidCQ = txidQualifier(c.getKey());
-          BigInteger latestTxid = getLatestTxid(inc.getRow(), e.getKey(), txidCQ);
-          long counter = c.getValue();
-
-          if (latestTxid == null || !latestTxid.equals(attempt.getTransactionId())) {
-            // txids are different so safe to increment counter
-            try {
-              counter =
-                  connector.getTable().incrementColumnValue(inc.getRow(), e.getKey(), c.getKey(),
-                    c.getValue(), conf.isWriteToWAL());
-            } catch (IOException ex) {
-              throw new RuntimeException(String.format("Unable to increment counter: %s, %s, %s",
-                Bytes.toString(inc.getRow()), Bytes.toString(e.getKey()),
-                Bytes.toString(c.getKey())), ex);
-            }
-
-            putLatestTxid(inc.getRow(), e.getKey(), txidCQ);
-
-            collector.emit(new Values(inc.getRow(), e.getKey(), c.getKey(), counter));
-
-            if (LOG.isDebugEnabled()) {
-              LOG.debug(String.format(
-                "txids for counter %s, %s, %s are different [%d, %d], incrementing",
-                Bytes.toString(inc.getRow()), Bytes.toString(e.getKey()),
-                Bytes.toString(c.getKey()), latestTxid, attempt.getTransactionId()));
-            }
-
-          } else {
-            if (LOG.isDebugEnabled()) {
-              LOG.debug(String.format("txids for counter %s, %s, %s are the same [%d], skipping",
-                Bytes.toString(inc.getRow()), Bytes.toString(e.getKey()),
-                Bytes.toString(c.getKey()), latestTxid));
-            }
-          }
+    // Read the counters and latest txids for the batch in one multi-get
+    List<Get> gets = new ArrayList<Get>(incs.size());
+    for (Increment inc : incs) {
+      Get g = new Get(inc.getRow());
+      for (Entry<byte[], NavigableMap<byte[], Long>> e : inc.getFamilyMap().entrySet()) {
+        g.addColumn(e.getKey(), TXID);
+        for (byte[] cq : e.getValue().keySet()) {
+          g.addColumn(e.getKey(), cq);
         }
       }
+      gets.add(g);
     }
 
-  }
-
-  /**
-   * Updates the latest txid for the counter
-   * @param row The row key
-   * @param fam The column family
-   * @param qual The column qualifier of the txid (e.g. the counters qualifier + "_txid")
-   */
-  private void putLatestTxid(byte[] row, byte[] fam, byte[] qual) {
-    Put txidPut = new Put(row);
-    txidPut.add(fam, qual, attempt.getTransactionId().toByteArray());
+    Object[] results;
     try {
-      connector.getTable().put(txidPut);
-    } catch (IOException e) {
-      throw new RuntimeException("Unable to update txid for " + txidPut.toString(), e);
+      results = HTableBatch.batch(connector.getTable(), gets, conf.getMaxRetries(),
+        conf.getRetryBackoffMillis());
+    } catch (IOException ex) {
+      throw new FailedException("Unable to get counters for tx " + txid, ex);
     }
-  }
 
-  /**
-   * Get the latest txid to successfully update the given counter
-   * @param row The row key
-   * @param fam The column family
-   * @param qual The column qualifier of the txid (e.g. the counters qualifier + "_txid")
-   * @return The latest txid
-   */
-  private BigInteger getLatestTxid(byte[] row, byte[] fam, byte[] qual) {
-    Get getTxid = new Get(row);
-    getTxid.addColumn(fam, qual);
-    BigInteger latestTxid = null;
+    // Write the updated counters of the families whose txid is different, and their new txids,
+    // with one put per row
+    List<Put> puts = new ArrayList<Put>(incs.size());
+    List<Values> updated = new ArrayList<Values>();
+    int skipped = 0;
+    int i = 0;
+    for (Increment inc : incs) {
+      Result res = (Result) results[i++];
+      Put p = new Put(inc.getRow());
+      p.setWriteToWAL(conf.isWriteToWAL());
 
-    try {
-      Result res = connector.getTable().get(getTxid);
-      if (!res.isEmpty()) {
-        latestTxid = new BigInteger(res.getValue(fam, qual));
+      for (Entry<byte[], NavigableMap<byte[], Long>> e : inc.getFamilyMap().entrySet()) {
+        byte[] latest = res.getValue(e.getKey(), TXID);
+        BigInteger latestTxid = latest == null ? null : new BigInteger(latest);
+
+        if (latestTxid != null && latestTxid.equals(txid)) {
+          if (LOG.isDebugEnabled()) {
+            LOG.debug(String.format("txids for counters %s, %s are the same [%d], skipping",
+              Bytes.toString(inc.getRow()), Bytes.toString(e.getKey()), latestTxid));
+          }
+          skipped++;
+          continue;
+        }
+
+        // txids are different so safe to increment the family's counters
+        for (Entry<byte[], Long> c : e.getValue().entrySet()) {
+          byte[] current = res.getValue(e.getKey(), c.getKey());
+          long counter = (current == null ? 0L : Bytes.toLong(current)) + c.getValue();
+
+          p.add(e.getKey(), c.getKey(), Bytes.toBytes(counter));
+          updated.add(new Values(attempt, inc.getRow(), e.getKey(), c.getKey(), counter));
+        }
+        p.add(e.getKey(), TXID, txidBytes);
+
+        if (LOG.isDebugEnabled()) {
+          LOG.debug(String.format("txids for counters %s, %s are different [%d, %d], incrementing",
+            Bytes.toString(inc.getRow()), Bytes.toString(e.getKey()), latestTxid, txid));
+        }
       }
-    } catch (IOException e) {
-      throw new RuntimeException("Unable to get txid for " + getTxid.toString(), e);
+
+      if (!p.isEmpty()) {
+        puts.add(p);
+      }
+    }
+
+    try {
+      HTableBatch.batch(connector.getTable(), puts, conf.getMaxRetries(),
+        conf.getRetryBackoffMillis());
+    } catch (IOException ex) {
+      // The rows that were written are skipped when the batch is replayed
+      throw new FailedException("Unable to update counters for tx " + txid, ex);
     }
 
-    return latestTxid;
+    for (Values v : updated) {
+      collector.emit(v);
+    }
+
+    if (skipped > 0) {
+      // Batch bolts are created after the task is prepared, too late to register metrics
+      LOG.info(String.format("Skipped %d counter families already updated by replayed tx %d",
+        skipped, txid));
+    }
   }
 
   /**
-   * Appends "_txid" to the end of the counters column qualifier. Used as an atomic qualifier for
-   * getting / setting the latest transaction ID against the counter in HBase
-   * @param cq The counters column qualifier
-   * @return The transaction IDs column qualifier
+   * Returns the task's connector, opening it on first use. The connector is closed, and its hold on
+   * the shared connection released, when the worker shuts down
+   * @param key The topology, task and table the connector is for
+   * @param conf The {@link TupleTableConfig}
+   * @return The {@link HTableConnector}
    */
-  private static byte[] txidQualifier(final byte[] cq) {
-    byte[] txid = new byte[cq.length + TXID.length];
-    System.arraycopy(cq, 0, txid, 0, cq.length);
-    System.arraycopy(TXID, 0, txid, cq.length, TXID.length);
-    return txid;
+  private static HTableConnector getConnector(final String key, final TupleTableConfig conf) {
+    synchronized (CONNECTORS) {
+      HTableConnector connector = CONNECTORS.get(key);
+      if (connector == null) {
+        try {
+          connector = new HTableConnector(conf);
+        } catch (IOException ex) {
+          throw new RuntimeException(ex);
+        }
+        CONNECTORS.put(key, connector);
+        WorkerResources.register(connector);
+      }
+      return connector;
+    }
   }
 
   /** {@inheritDoc} */
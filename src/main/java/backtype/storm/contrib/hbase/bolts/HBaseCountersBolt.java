@@ -1,38 +1,264 @@
 package backtype.storm.contrib.hbase.bolts;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
+import org.apache.hadoop.hbase.client.Increment;
+import org.apache.log4j.Logger;
+
+import backtype.storm.Config;
+import backtype.storm.contrib.hbase.utils.CounterAccumulator;
+import backtype.storm.contrib.hbase.utils.HBaseMetrics;
+import backtype.storm.contrib.hbase.utils.OverloadPolicy;
+import backtype.storm.contrib.hbase.utils.TupleHelpers;
 import backtype.storm.contrib.hbase.utils.TupleTableConfig;
+import backtype.storm.task.OutputCollector;
+import backtype.storm.task.TopologyContext;
 import backtype.storm.tuple.Tuple;
 
 /**
  * A Storm bolt for incrementing counters in HBase
  * <p>
+ * By default every tuple is sent to HBase as its own increment. Enable combining mode with
+ * {@link #setCombine(boolean)} to sum the increments in memory per row, column family and
+ * qualifier instead. The summed increments are sent, one per row, when the number of counters
+ * reaches {@link #setMaxCombinedCounters(int)}, when the oldest tuple is older than the flush
+ * interval, and on every tick tuple. Tuples are held until their increments have been sent, then
+ * acked, or failed if the flush fails. A hot counter then costs one round trip per flush rather
+ * than one per tuple. The number of tuples held is bounded by
+ * {@link TupleTableConfig#setMaxPendingMutations(int)}, if set.
+ * <p>
  * <strong>Note: </strong>this is a non-transactional bolt. Based on Storm's guaranteed message
  * processing mechanism there is a chance of over-counting if tuples fail after updating the HBase
- * counter and before they are successfully acked and are subsequently replayed.
+ * counter and before they are successfully acked and are subsequently replayed. In combining mode
+ * a failed flush fails every held tuple, including those whose rows were already incremented.
  * @see HBaseBolt
  */
 @SuppressWarnings("serial")
 public class HBaseCountersBolt extends HBaseBolt {
+  private static final Logger LOG = Logger.getLogger(HBaseCountersBolt.class);
+
+  protected boolean combine = false;
+  protected int maxCombinedCounters = 1000;
+
+  // Summed increments, and the tuples they came from (combining mode)
+  private CounterAccumulator counters;
+  private List<Tuple> held;
+  private long oldestHeld;
 
   public HBaseCountersBolt(TupleTableConfig conf) {
     super(conf);
   }
 
+  /** {@inheritDoc} */
+  @SuppressWarnings("rawtypes")
+  @Override
+  public void prepare(Map stormConf, TopologyContext context, OutputCollector collector) {
+    if (conf.isBulkLoad()) {
+      throw new IllegalArgumentException("Counters can't be bulk loaded into HBase table "
+          + conf.getTableName());
+    }
+    super.prepare(stormConf, context, collector);
+    this.counters = new CounterAccumulator(maxCombinedCounters);
+    this.held = new ArrayList<Tuple>();
+  }
+
   /** {@inheritDoc} */
   @Override
   public void execute(Tuple input) {
+    if (TupleHelpers.isTickTuple(input)) {
+      if (combine) {
+        flushCounters();
+      }
+      this.collector.ack(input);
+      return;
+    }
+
+    if (combine) {
+      combine(input);
+      return;
+    }
+
+    long start = System.nanoTime();
     try {
       this.connector.getTable().increment(
         conf.getIncrementFromTuple(input, TupleTableConfig.DEFAULT_INCREMENT));
     } catch (IOException ex) {
+      metrics.errors(1);
       throw new RuntimeException(ex);
     }
+    metrics.latency(HBaseMetrics.Op.INCREMENT, start);
+    metrics.calls(1);
 
     if (this.autoAck) {
       this.collector.ack(input);
     }
   }
 
+  /**
+   * Adds the tuple's increments to the summed counters, flushing if there are too many counters or
+   * the oldest tuple is too old
+   * @param input The {@link Tuple}
+   */
+  private void combine(final Tuple input) {
+    if (this.autoAck && conf.isOverBudget(held.size() + 1, 0)) {
+      long flushStart = System.currentTimeMillis();
+      boolean flushed = flushCounters();
+      if (conf.getOverloadPolicy() == OverloadPolicy.FAIL_FAST
+          && (!flushed || isSlow(flushStart))) {
+        reject(input);
+        return;
+      }
+    }
+
+    boolean wasEmpty = counters.isEmpty();
+    conf.addIncrementFromTuple(counters, input, TupleTableConfig.DEFAULT_INCREMENT);
+
+    if (this.autoAck) {
+      if (held.isEmpty()) {
+        oldestHeld = System.currentTimeMillis();
+      }
+      held.add(input);
+    } else if (wasEmpty) {
+      oldestHeld = System.currentTimeMillis();
+    }
+
+    if (counters.size() >= maxCombinedCounters
+        || System.currentTimeMillis() - oldestHeld >= flushIntervalSecs * 1000L) {
+      flushCounters();
+    }
+  }
+
+  /**
+   * Sends the summed increments to HBase, one per row, then acks the tuples they came from. If an
+   * increment fails the held tuples are failed so they can be replayed
+   * @return False if an increment failed
+   */
+  protected boolean flushCounters() {
+    if (counters.isEmpty()) {
+      return true;
+    }
+
+    int rows;
+    try {
+      rows = sendCounters();
+    } catch (IOException ex) {
+      LOG.error(String.format("Unable to increment counters in HBase table %s, failing %d tuples",
+        conf.getTableName(), held.size()), ex);
+      for (Tuple t : held) {
+        this.collector.fail(t);
+      }
+      held.clear();
+      return false;
+    }
+
+    if (LOG.isDebugEnabled()) {
+      LOG.debug(String.format("Incremented counters for %d rows from %d tuples", rows,
+        held.size()));
+    }
+    for (Tuple t : held) {
+      this.collector.ack(t);
+    }
+    held.clear();
+    return true;
+  }
+
+  /**
+   * Sends the summed increments to HBase, one per row, and clears them whether or not they were
+   * sent
+   * @return The number of rows incremented
+   * @throws IOException If an increment failed
+   */
+  private int sendCounters() throws IOException {
+    List<Increment> incs = counters.toIncrements(conf.isWriteToWAL());
+    counters.clear();
+    metrics.batch(incs.size(), 0);
+    long flushStart = System.nanoTime();
+    try {
+      for (Increment inc : incs) {
+        long start = System.nanoTime();
+        this.connector.getTable().increment(inc);
+        metrics.latency(HBaseMetrics.Op.INCREMENT, start);
+        metrics.calls(1);
+      }
+    } catch (IOException ex) {
+      metrics.errors(1);
+      throw ex;
+    }
+    metrics.latency(HBaseMetrics.Op.FLUSH, flushStart);
+    return incs.size();
+  }
+
+  /**
+   * Sends the summed increments, then closes the connector. The collector can't be relied on
+   * during shutdown, so held tuples are neither acked nor failed: they time out and are replayed
+   */
+  @Override
+  public void cleanup() {
+    if (combine && !counters.isEmpty()) {
+      try {
+        sendCounters();
+      } catch (IOException ex) {
+        LOG.error("Unable to increment counters in HBase table " + conf.getTableName()
+            + " on shutdown", ex);
+      }
+    }
+    if (combine && !held.isEmpty()) {
+      LOG.info(String.format("Leaving %d tuples held for HBase table %s to time out",
+        held.size(), conf.getTableName()));
+      held.clear();
+    }
+    super.cleanup();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public Map<String, Object> getComponentConfiguration() {
+    if (!combine) {
+      return super.getComponentConfiguration();
+    }
+
+    // Request tick tuples so held tuples are flushed even when the stream goes quiet
+    Map<String, Object> componentConf = new HashMap<String, Object>();
+    componentConf.put(Config.TOPOLOGY_TICK_TUPLE_FREQ_SECS, flushIntervalSecs);
+    return componentConf;
+  }
+
+  /**
+   * @return Whether combining mode is enabled
+   */
+  public boolean isCombine() {
+    return combine;
+  }
+
+  /**
+   * @param combine Whether to sum increments in memory and flush them periodically, rather than
+   *          sending an increment per tuple. Tuples are acked once their increments have been
+   *          flushed.
+   *          <p>
+   *          Disabled by default
+   */
+  public void setCombine(boolean combine) {
+    this.combine = combine;
+  }
+
+  /**
+   * @return The number of distinct counters summed in memory before the increments are flushed
+   */
+  public int getMaxCombinedCounters() {
+    return maxCombinedCounters;
+  }
+
+  /**
+   * @param maxCombinedCounters The number of distinct counters summed in memory before the
+   *          increments are flushed in combining mode.
+   *          <p>
+   *          Default is 1000
+   */
+  public void setMaxCombinedCounters(int maxCombinedCounters) {
+    this.maxCombinedCounters = maxCombinedCounters;
+  }
 }
@@ -0,0 +1,310 @@
+package backtype.storm.contrib.hbase.bolts;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.log4j.Logger;
+
+import backtype.storm.Config;
+import backtype.storm.contrib.hbase.utils.HBaseMetrics;
+import backtype.storm.contrib.hbase.utils.HTableBatch;
+import backtype.storm.contrib.hbase.utils.HTableConnector;
+import backtype.storm.contrib.hbase.utils.MappingPlan;
+import backtype.storm.contrib.hbase.utils.TtlCache;
+import backtype.storm.contrib.hbase.utils.TupleHelpers;
+import backtype.storm.contrib.hbase.utils.TupleTableConfig;
+import backtype.storm.task.OutputCollector;
+import backtype.storm.task.TopologyContext;
+import backtype.storm.topology.IRichBolt;
+import backtype.storm.topology.OutputFieldsDeclarer;
+import backtype.storm.tuple.Fields;
+import backtype.storm.tuple.Tuple;
+
+/**
+ * A Storm bolt for enriching a stream with data read from HBase.
+ * <p>
+ * The row key and columns are mapped with a {@link TupleTableConfig}, as they are for
+ * {@link HBaseBolt}. Incoming tuples are collected and looked up with one multi-get when the batch
+ * is full, when the oldest tuple is older than the flush interval, and on every tick tuple. A row
+ * requested more than once in a batch is only read once.
+ * <p>
+ * For each tuple the given input fields are emitted, followed by the given column fields decoded
+ * with their codecs, anchored to the input tuple. Columns that don't exist are emitted as null. If
+ * the lookup fails the batch's tuples are failed so they can be replayed.
+ * <p>
+ * Hot rows can be cached with {@link #setCacheSize(int)}. Rows that don't exist are cached too, so
+ * keys that are missing from the table don't cost a round trip each time.
+ * <p>
+ * The latency and size of each multi-get and the cache hit rate are reported in the bolt's
+ * {@link HBaseMetrics}.
+ * @see TupleTableConfig
+ */
+@SuppressWarnings("serial")
+public class HBaseLookupBolt implements IRichBolt {
+  private static final Logger LOG = Logger.getLogger(HBaseLookupBolt.class);
+
+  protected OutputCollector collector;
+  protected HTableConnector connector;
+  protected TupleTableConfig conf;
+  protected Fields inputFields;
+  protected Fields columnFields;
+  protected int batchSize = 100;
+  protected int flushIntervalSecs = 1;
+  protected int cacheSize = 0;
+  protected int cacheTtlSecs = 60;
+
+  // Tuples waiting to be looked up
+  private List<Tuple> pending;
+  private long oldestPending;
+
+  private int[] columns;
+  private TtlCache<ByteBuffer, Result> cache;
+  private HBaseMetrics metrics;
+
+  /**
+   * @param conf The {@link TupleTableConfig} mapping the row key and columns
+   * @param inputFields The input fields to emit
+   * @param columnFields The column fields to emit after the input fields, each one a field a column
+   *          was added with
+   */
+  public HBaseLookupBolt(TupleTableConfig conf, Fields inputFields, Fields columnFields) {
+    this.conf = conf;
+    this.inputFields = inputFields;
+    this.columnFields = columnFields;
+  }
+
+  /** {@inheritDoc} */
+  @SuppressWarnings("rawtypes")
+  @Override
+  public void prepare(Map stormConf, TopologyContext context, OutputCollector collector) {
+    this.collector = collector;
+    this.pending = new ArrayList<Tuple>(batchSize);
+
+    MappingPlan plan = this.conf.compile();
+    this.columns = new int[columnFields.size()];
+    for (int f = 0; f < columns.length; f++) {
+      columns[f] = plan.indexOf(columnFields.get(f));
+      if (columns[f] == MappingPlan.NOT_A_FIELD) {
+        throw new IllegalArgumentException(columnFields.get(f) + " is not a configured column");
+      }
+    }
+
+    this.metrics = HBaseMetrics.register(context, conf);
+    if (cacheSize > 0) {
+      this.cache = new TtlCache<ByteBuffer, Result>(cacheSize, cacheTtlSecs * 1000L);
+      metrics.setCache(cache);
+    }
+
+    try {
+      this.connector = new HTableConnector(conf);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+
+    LOG.info("Preparing HBaseLookupBolt for table: " + this.conf.getTableName());
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void execute(Tuple input) {
+    if (TupleHelpers.isTickTuple(input)) {
+      lookup();
+      this.collector.ack(input);
+      return;
+    }
+
+    if (cache != null) {
+      Result r = cache.get(ByteBuffer.wrap(conf.compile().rowKey(input)));
+      if (r != null) {
+        emit(input, r);
+        return;
+      }
+    }
+
+    if (pending.isEmpty()) {
+      oldestPending = System.currentTimeMillis();
+    }
+    pending.add(input);
+
+    if (pending.size() >= batchSize
+        || System.currentTimeMillis() - oldestPending >= flushIntervalSecs * 1000L) {
+      lookup();
+    }
+  }
+
+  /**
+   * Looks up the pending tuples with one multi-get and emits them, or fails them if the lookup
+   * fails
+   */
+  protected void lookup() {
+    if (pending.isEmpty()) {
+      return;
+    }
+
+    // Read each row once, however many tuples it is requested by
+    Map<ByteBuffer, List<Tuple>> rows = new LinkedHashMap<ByteBuffer, List<Tuple>>();
+    List<Get> gets = new ArrayList<Get>(pending.size());
+    for (Tuple t : pending) {
+      Get g = conf.getGetFromTuple(t);
+      ByteBuffer key = ByteBuffer.wrap(g.getRow());
+      List<Tuple> tuples = rows.get(key);
+      if (tuples == null) {
+        tuples = new ArrayList<Tuple>(1);
+        rows.put(key, tuples);
+        gets.add(g);
+      }
+      tuples.add(t);
+    }
+
+    Object[] results;
+    metrics.batch(gets.size(), 0);
+    long start = System.nanoTime();
+    try {
+      results = HTableBatch.batch(connector.getTable(), gets, conf.getMaxRetries(),
+        conf.getRetryBackoffMillis(), metrics);
+    } catch (IOException ex) {
+      LOG.error(String.format("Unable to look up %d rows in HBase table %s, failing tuples",
+        gets.size(), conf.getTableName()), ex);
+      for (Tuple t : pending) {
+        this.collector.fail(t);
+      }
+      pending.clear();
+      return;
+    }
+    metrics.latency(HBaseMetrics.Op.GET, start);
+
+    int j = 0;
+    for (Map.Entry<ByteBuffer, List<Tuple>> e : rows.entrySet()) {
+      Result r = (Result) results[j++];
+      if (cache != null) {
+        // Also caches rows that don't exist, as empty results
+        cache.put(e.getKey(), r);
+      }
+      for (Tuple t : e.getValue()) {
+        emit(t, r);
+      }
+    }
+    pending.clear();
+  }
+
+  /**
+   * Emits the input fields and the looked up columns, anchored to the input tuple, then acks it
+   * @param input The input {@link Tuple}
+   * @param r The looked up {@link Result}
+   */
+  private void emit(final Tuple input, final Result r) {
+    MappingPlan plan = conf.compile();
+    List<Object> values = input.select(inputFields);
+    for (int i : columns) {
+      values.add(plan.decode(i, r.getValue(plan.family(i), plan.qualifier(i))));
+    }
+    this.collector.emit(input, values);
+    this.collector.ack(input);
+  }
+
+  /**
+   * Closes the connector without looking up the pending tuples. The collector can't be relied on
+   * during shutdown, so held tuples are neither acked nor failed: they time out and are replayed
+   */
+  @Override
+  public void cleanup() {
+    if (!pending.isEmpty()) {
+      LOG.info(String.format("Leaving %d tuples held for HBase table %s to time out",
+        pending.size(), conf.getTableName()));
+      pending.clear();
+    }
+    this.connector.close();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void declareOutputFields(OutputFieldsDeclarer declarer) {
+    List<String> fields = new ArrayList<String>(inputFields.toList());
+    fields.addAll(columnFields.toList());
+    declarer.declare(new Fields(fields));
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public Map<String, Object> getComponentConfiguration() {
+    // Request tick tuples so pending tuples are looked up even when the stream goes quiet
+    Map<String, Object> componentConf = new HashMap<String, Object>();
+    componentConf.put(Config.TOPOLOGY_TICK_TUPLE_FREQ_SECS, flushIntervalSecs);
+    return componentConf;
+  }
+
+  /**
+   * @return The maximum number of tuples looked up in one multi-get
+   */
+  public int getBatchSize() {
+    return batchSize;
+  }
+
+  /**
+   * @param batchSize The maximum number of tuples looked up in one multi-get. Set to 1 to look up
+   *          every tuple as it arrives.
+   *          <p>
+   *          Default is 100
+   */
+  public void setBatchSize(int batchSize) {
+    this.batchSize = batchSize;
+  }
+
+  /**
+   * @return The maximum number of seconds a tuple waits to be looked up
+   */
+  public int getFlushIntervalSecs() {
+    return flushIntervalSecs;
+  }
+
+  /**
+   * @param flushIntervalSecs The maximum number of seconds a tuple waits to be looked up. Also sets
+   *          the tick tuple frequency for the bolt.
+   *          <p>
+   *          Default is 1 second
+   */
+  public void setFlushIntervalSecs(int flushIntervalSecs) {
+    this.flushIntervalSecs = flushIntervalSecs;
+  }
+
+  /**
+   * @return The number of rows cached, 0 if disabled
+   */
+  public int getCacheSize() {
+    return cacheSize;
+  }
+
+  /**
+   * @param cacheSize Enables a least-recently-used (LRU) cache of looked up rows, and sets the
+   *          number of rows it holds.
+   *          <p>
+   *          Disabled (0) by default
+   */
+  public void setCacheSize(int cacheSize) {
+    this.cacheSize = cacheSize;
+  }
+
+  /**
+   * @return The number of seconds a row is cached for
+   */
+  public int getCacheTtlSecs() {
+    return cacheTtlSecs;
+  }
+
+  /**
+   * @param cacheTtlSecs The number of seconds a row is cached for, which bounds how stale an
+   *          emitted row can be.
+   *          <p>
+   *          Default is 60 seconds
+   */
+  public void setCacheTtlSecs(int cacheTtlSecs) {
+    this.cacheTtlSecs = cacheTtlSecs;
+  }
+}
@@ -0,0 +1,169 @@
+package backtype.storm.contrib.hbase.trident;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import backtype.storm.contrib.hbase.utils.RowKeyStrategy;
+import backtype.storm.contrib.hbase.utils.TridentConfig;
+import backtype.storm.contrib.hbase.utils.ValueCodec;
+
+/**
+ * A batch of persistent aggregate keys (row, column family, column qualifier) encoded to bytes and
+ * grouped by row.
+ * <p>
+ * Keys that share a row, such as the daily, weekly and monthly buckets of the same id, are read
+ * with one {@link Get} and written with one {@link Put}, and the results are mapped back to the
+ * original key order.
+ */
+public class AggregateKeys {
+  private final byte[][] rowKeys;
+  private final byte[][] families;
+  private final byte[][] qualifiers;
+  private final int[] rowIndexes;
+  private final List<byte[]> rows;
+
+  /**
+   * @param keys The Trident keys, each a list of row, column family and column qualifier
+   * @param config The {@link TridentConfig} holding the row key and qualifier codecs, and the
+   *          {@link RowKeyStrategy}
+   */
+  @SuppressWarnings("rawtypes")
+  public AggregateKeys(final List<List<Object>> keys, final TridentConfig config) {
+    ValueCodec rowKeyCodec = config.getRowKeyCodec();
+    ValueCodec qualifierCodec = config.getQualifierCodec();
+    RowKeyStrategy rowKeyStrategy = config.getRowKeyStrategy();
+
+    this.rowKeys = new byte[keys.size()][];
+    this.families = new byte[keys.size()][];
+    this.qualifiers = new byte[keys.size()][];
+    for (int i = 0; i < keys.size(); i++) {
+      List<Object> k = keys.get(i);
+      rowKeys[i] = rowKeyStrategy.toRowKey(rowKeyCodec.encode(k.get(0)));
+      families[i] = Bytes.toBytes((String) k.get(1));
+      qualifiers[i] = qualifierCodec.encode(k.get(2));
+    }
+
+    this.rowIndexes = new int[keys.size()];
+    this.rows = new ArrayList<byte[]>();
+    groupByRow();
+  }
+
+  private AggregateKeys(final byte[][] rowKeys, final byte[][] families,
+      final byte[][] qualifiers) {
+    this.rowKeys = rowKeys;
+    this.families = families;
+    this.qualifiers = qualifiers;
+    this.rowIndexes = new int[rowKeys.length];
+    this.rows = new ArrayList<byte[]>();
+    groupByRow();
+  }
+
+  private void groupByRow() {
+    Map<byte[], Integer> rowIndex = new TreeMap<byte[], Integer>(Bytes.BYTES_COMPARATOR);
+    for (int i = 0; i < rowKeys.length; i++) {
+      Integer idx = rowIndex.get(rowKeys[i]);
+      if (idx == null) {
+        idx = rows.size();
+        rowIndex.put(rowKeys[i], idx);
+        rows.add(rowKeys[i]);
+      }
+      rowIndexes[i] = idx;
+    }
+  }
+
+  /**
+   * @param indexes The indexes of the keys to select
+   * @return The selected keys, grouped by row
+   */
+  public AggregateKeys select(final List<Integer> indexes) {
+    byte[][] rk = new byte[indexes.size()][];
+    byte[][] cf = new byte[indexes.size()][];
+    byte[][] cq = new byte[indexes.size()][];
+    for (int j = 0; j < indexes.size(); j++) {
+      int i = indexes.get(j);
+      rk[j] = rowKeys[i];
+      cf[j] = families[i];
+      cq[j] = qualifiers[i];
+    }
+    return new AggregateKeys(rk, cf, cq);
+  }
+
+  /**
+   * @param i The key index
+   * @return The i'th key's row, column family and column qualifier serialized as a single byte[]
+   */
+  public byte[] cacheKey(final int i) {
+    byte[] rk = rowKeys[i];
+    byte[] cf = families[i];
+    byte[] cq = qualifiers[i];
+
+    // Length prefixes keep keys unambiguous, e.g. ("ab", "c") and ("a", "bc")
+    byte[] key = new byte[8 + rk.length + cf.length + cq.length];
+    int pos = Bytes.putInt(key, 0, rk.length);
+    pos = Bytes.putBytes(key, pos, rk, 0, rk.length);
+    pos = Bytes.putInt(key, pos, cf.length);
+    pos = Bytes.putBytes(key, pos, cf, 0, cf.length);
+    Bytes.putBytes(key, pos, cq, 0, cq.length);
+    return key;
+  }
+
+  /**
+   * @return The number of keys
+   */
+  public int size() {
+    return rowIndexes.length;
+  }
+
+  /**
+   * @return The number of distinct rows
+   */
+  public int rowCount() {
+    return rows.size();
+  }
+
+  /**
+   * @return One {@link Get} per distinct row, holding the columns of all the row's keys
+   */
+  public List<Get> toGets() {
+    List<Get> gets = new ArrayList<Get>(rows.size());
+    for (byte[] rk : rows) {
+      gets.add(new Get(rk));
+    }
+    for (int i = 0; i < rowIndexes.length; i++) {
+      gets.get(rowIndexes[i]).addColumn(families[i], qualifiers[i]);
+    }
+    return gets;
+  }
+
+  /**
+   * @param values The serialized values, in key order
+   * @return One {@link Put} per distinct row, holding the cells of all the row's keys
+   */
+  public List<Put> toPuts(final List<byte[]> values) {
+    List<Put> puts = new ArrayList<Put>(rows.size());
+    for (byte[] rk : rows) {
+      puts.add(new Put(rk));
+    }
+    for (int i = 0; i < rowIndexes.length; i++) {
+      puts.get(rowIndexes[i]).add(families[i], qualifiers[i], values.get(i));
+    }
+    return puts;
+  }
+
+  /**
+   * @param i The key index
+   * @param results The results of the {@link #toGets()} Gets, in the same order
+   * @return The stored value for the i'th key, or null if it doesn't exist
+   */
+  public byte[] valueOf(final int i, final Object[] results) {
+    Result r = (Result) results[rowIndexes[i]];
+    return r == null ? null : r.getValue(families[i], qualifiers[i]);
+  }
+}
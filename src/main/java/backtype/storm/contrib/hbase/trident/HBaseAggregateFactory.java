@@ -8,12 +8,16 @@ import storm.trident.state.State;
 import storm.trident.state.StateFactory;
 import storm.trident.state.StateType;
 import storm.trident.state.map.CachedMap;
+import storm.trident.state.map.IBackingMap;
 import storm.trident.state.map.MapState;
 import storm.trident.state.map.NonTransactionalMap;
 import storm.trident.state.map.OpaqueMap;
 import storm.trident.state.map.SnapshottableMap;
 import storm.trident.state.map.TransactionalMap;
+import backtype.storm.Config;
+import backtype.storm.contrib.hbase.utils.HBaseMetrics;
 import backtype.storm.contrib.hbase.utils.TridentConfig;
+import backtype.storm.contrib.hbase.utils.WorkerResources;
 import backtype.storm.task.IMetricsContext;
 import backtype.storm.tuple.Values;
 
@@ -48,8 +52,15 @@ public class HBaseAggregateFactory implements StateFactory {
   /** {@inheritDoc} */
   @Override
   public State makeState(Map conf, IMetricsContext metrics, int partitionIndex, int numPartitions) {
-    HBaseAggregateState state = new HBaseAggregateState(config);
-    CachedMap c = new CachedMap(state, config.getStateCacheSize());
+    HBaseAggregateState state = new HBaseAggregateState(config,
+        HBaseMetrics.register(metrics, config), (String) conf.get(Config.STORM_ID));
+    WorkerResources.register(state);
+
+    // The shared off-heap cache, if enabled, is used by the state in place of a CachedMap
+    IBackingMap c = state;
+    if (config.getSharedCacheBytes() <= 0) {
+      c = new CachedMap(state, config.getStateCacheSize());
+    }
 
     MapState ms;
     if (type == StateType.NON_TRANSACTIONAL) {
@@ -1,13 +1,12 @@
 package backtype.storm.contrib.hbase.trident;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
 import org.apache.hadoop.hbase.client.Get;
 import org.apache.hadoop.hbase.client.Put;
-import org.apache.hadoop.hbase.client.Result;
-import org.apache.hadoop.hbase.util.Bytes;
 
 import storm.trident.state.OpaqueValue;
 import storm.trident.state.Serializer;
@@ -15,16 +14,33 @@ import storm.trident.state.StateFactory;
 import storm.trident.state.StateType;
 import storm.trident.state.TransactionalValue;
 import storm.trident.state.map.IBackingMap;
+import backtype.storm.contrib.hbase.utils.HBaseMetrics;
+import backtype.storm.contrib.hbase.utils.HTableBatch;
 import backtype.storm.contrib.hbase.utils.HTableConnector;
+import backtype.storm.contrib.hbase.utils.OffHeapCache;
+import backtype.storm.contrib.hbase.utils.OverloadPolicy;
 import backtype.storm.contrib.hbase.utils.TridentConfig;
+import backtype.storm.contrib.hbase.utils.WorkerResources;
+import backtype.storm.topology.FailedException;
 
 /**
  * A HBase persistentAggregate source of state for Storm Trident topologies
+ * <p>
+ * Keys that share a row are read with one Get and written with one Put. If a shared cache is
+ * configured with {@link TridentConfig#setSharedCacheBytes(long)}, values are cached off-heap once
+ * written and only the keys that aren't cached are read from HBase. The latency and size of the
+ * reads and writes are reported in the state's {@link HBaseMetrics}. The shared cache is reported
+ * in the metrics of one of the states using it, see {@link OffHeapCache}. Keys that still can't be
+ * read or written once their retries are used up fail the batch with a {@link FailedException},
+ * so Trident replays it. A batch whose writes are over the pending mutation budget, see
+ * {@link TridentConfig#setMaxPendingMutations(int)}, is written in chunks within it, or is failed
+ * with the {@link OverloadPolicy#FAIL_FAST} policy. States made by {@link HBaseAggregateFactory}
+ * are closed by {@link WorkerResources} when the worker shuts down.
  * @param <T> The type of value being persisted. Either {@link OpaqueValue} or
  *          {@link TransactionalValue}
  */
 @SuppressWarnings({ "rawtypes", "unchecked" })
-public class HBaseAggregateState<T> implements IBackingMap<T> {
+public class HBaseAggregateState<T> implements IBackingMap<T>, Closeable {
   /**
    * @param config The {@link TridentConfig}
    * @return {@link StateFactory} for opaque transactional topologies
@@ -50,10 +66,36 @@ public class HBaseAggregateState<T> implements IBackingMap<T> {
   }
 
   private HTableConnector connector;
+  private TridentConfig config;
   private Serializer serializer;
+  private OffHeapCache cache;
+  private HBaseMetrics metrics;
 
   public HBaseAggregateState(TridentConfig config) {
+    this(config, new HBaseMetrics());
+  }
+
+  /**
+   * @param config The {@link TridentConfig}
+   * @param metrics The {@link HBaseMetrics} to record the state's reads and writes in
+   */
+  public HBaseAggregateState(TridentConfig config, HBaseMetrics metrics) {
+    this(config, metrics, "");
+  }
+
+  /**
+   * @param config The {@link TridentConfig}
+   * @param metrics The {@link HBaseMetrics} to record the state's reads and writes in
+   * @param topologyId The ID of the topology, whose states share the off-heap cache if it is
+   *          enabled
+   */
+  public HBaseAggregateState(TridentConfig config, HBaseMetrics metrics, String topologyId) {
+    this.config = config;
+    this.metrics = metrics;
     this.serializer = config.getStateSerializer();
+    if (config.getSharedCacheBytes() > 0) {
+      this.cache = OffHeapCache.acquire(topologyId, config, metrics);
+    }
     try {
       this.connector = new HTableConnector(config);
     } catch (IOException e) {
@@ -64,38 +106,51 @@ public class HBaseAggregateState<T> implements IBackingMap<T> {
   /** {@inheritDoc} */
   @Override
   public List<T> multiGet(List<List<Object>> keys) {
-    List<Get> gets = new ArrayList<Get>(keys.size());
-    byte[] rk;
-    byte[] cf;
-    byte[] cq;
-
-    for (List<Object> k : keys) {
-      rk = Bytes.toBytes((String) k.get(0));
-      cf = Bytes.toBytes((String) k.get(1));
-      cq = Bytes.toBytes((String) k.get(2));
-      Get g = new Get(rk);
-      gets.add(g.addColumn(cf, cq));
+    AggregateKeys encoded = new AggregateKeys(keys, config);
+    byte[][] values = new byte[keys.size()][];
+
+    // Only read the keys that aren't in the shared cache
+    List<Integer> misses = new ArrayList<Integer>(keys.size());
+    for (int i = 0; i < keys.size(); i++) {
+      if (cache != null) {
+        values[i] = cache.get(encoded.cacheKey(i));
+      }
+      if (values[i] == null) {
+        misses.add(i);
+      }
     }
 
-    // Log.debug("GETS: " + gets.toString());
+    if (!misses.isEmpty()) {
+      AggregateKeys missed = cache == null ? encoded : encoded.select(misses);
+      List<Get> gets = missed.toGets();
+
+      // Log.debug("GETS: " + gets.toString());
+
+      Object[] results;
+      metrics.batch(gets.size(), 0);
+      long start = System.nanoTime();
+      try {
+        results = HTableBatch.batch(connector.getTable(), gets, config.getMaxRetries(),
+          config.getRetryBackoffMillis(), metrics);
+      } catch (IOException e) {
+        // Fails the batch, so Trident replays it
+        throw new FailedException("Unable to get state from HBase table "
+            + config.getTableName(), e);
+      }
+      metrics.latency(HBaseMetrics.Op.GET, start);
 
-    Result[] results = null;
-    try {
-      results = connector.getTable().get(gets);
-    } catch (IOException e) {
-      new RuntimeException(e);
+      for (int j = 0; j < misses.size(); j++) {
+        values[misses.get(j)] = missed.valueOf(j, results);
+      }
     }
 
     List<T> rtn = new ArrayList<T>(keys.size());
 
     for (int i = 0; i < keys.size(); i++) {
-      cf = Bytes.toBytes((String) keys.get(i).get(1));
-      cq = Bytes.toBytes((String) keys.get(i).get(2));
-      Result r = results[i];
-      if (r.isEmpty()) {
+      if (values[i] == null) {
         rtn.add(null);
       } else {
-        rtn.add((T) serializer.deserialize(r.getValue(cf, cq)));
+        rtn.add((T) serializer.deserialize(values[i]));
       }
     }
 
@@ -105,24 +160,68 @@ public class HBaseAggregateState<T> implements IBackingMap<T> {
   /** {@inheritDoc} */
   @Override
   public void multiPut(List<List<Object>> keys, List<T> vals) {
-    List<Put> puts = new ArrayList<Put>();
-
-    for (int i = 0; i < keys.size(); i++) {
-      byte[] rk = Bytes.toBytes((String) keys.get(i).get(0));
-      byte[] cf = Bytes.toBytes((String) keys.get(i).get(1));
-      byte[] cq = Bytes.toBytes((String) keys.get(i).get(2));
-      byte[] cv = serializer.serialize(vals.get(i));
-      Put p = new Put(rk);
-      puts.add(p.add(cf, cq, cv));
+    List<byte[]> values = new ArrayList<byte[]>(vals.size());
+    for (T val : vals) {
+      values.add(serializer.serialize(val));
     }
+    AggregateKeys encoded = new AggregateKeys(keys, config);
+    List<Put> puts = encoded.toPuts(values);
 
     // Log.debug("PUTS: " + puts.toString());
 
+    long bytes = 0;
+    for (Put p : puts) {
+      bytes += p.heapSize();
+    }
+    if (config.getOverloadPolicy() == OverloadPolicy.FAIL_FAST
+        && config.isOverBudget(puts.size(), bytes)) {
+      metrics.rejected();
+      throw new FailedException(String.format(
+        "%d puts of %d bytes are over the budget of HBase table %s", puts.size(), bytes,
+        config.getTableName()));
+    }
+
+    for (List<Put> chunk : HTableBatch.split(puts, config)) {
+      put(chunk);
+    }
+
+    // Only cache values once they have been written
+    if (cache != null) {
+      for (int i = 0; i < keys.size(); i++) {
+        cache.put(encoded.cacheKey(i), values.get(i));
+      }
+    }
+  }
+
+  /**
+   * Writes the puts with one batch call, retrying the puts that fail
+   * @param puts The puts
+   * @throws FailedException If the puts couldn't be written, which fails the batch
+   */
+  private void put(final List<Put> puts) {
+    long bytes = 0;
+    for (Put p : puts) {
+      bytes += p.heapSize();
+    }
+    metrics.batch(puts.size(), bytes);
+    long start = System.nanoTime();
     try {
-      connector.getTable().put(puts);
-      connector.getTable().flushCommits();
+      HTableBatch.batch(connector.getTable(), puts, config.getMaxRetries(),
+        config.getRetryBackoffMillis(), metrics);
     } catch (IOException e) {
-      new RuntimeException(e);
+      throw new FailedException("Unable to put state to HBase table " + config.getTableName(), e);
+    }
+    metrics.latency(HBaseMetrics.Op.PUT, start);
+  }
+
+  /**
+   * Closes the state's connector and releases the shared cache
+   */
+  @Override
+  public void close() {
+    connector.close();
+    if (cache != null) {
+      cache.release(metrics);
     }
   }
-}
\ No newline at end of file
+}
@@ -1,26 +1,39 @@
 package backtype.storm.contrib.hbase.trident;
 
 import java.util.Map;
+import java.util.UUID;
 
 import storm.trident.state.State;
 import storm.trident.state.StateFactory;
+import backtype.storm.Config;
+import backtype.storm.contrib.hbase.utils.HBaseMetrics;
 import backtype.storm.contrib.hbase.utils.TridentConfig;
+import backtype.storm.contrib.hbase.utils.WorkerResources;
 import backtype.storm.task.IMetricsContext;
 
 /**
  * Factory for creating {@link HBaseValueState}
+ * <p>
+ * Each factory is given an ID when the topology is built, which is serialized with it, so in bulk
+ * load mode the states of two factories writing to the same table stage their HFiles apart, while
+ * a restarted partition still finds, and discards, the files its previous run left behind.
  */
 @SuppressWarnings({ "serial", "rawtypes" })
 public class HBaseValueFactory implements StateFactory {
   private TridentConfig _conf;
+  private String _id;
 
   public HBaseValueFactory(final TridentConfig conf) {
     this._conf = conf;
+    this._id = UUID.randomUUID().toString();
   }
 
   /** {@inheritDoc} */
   @Override
   public State makeState(Map conf, IMetricsContext metrics, int partitionIndex, int numPartitions) {
-    return new HBaseValueState(_conf);
+    HBaseValueState state = new HBaseValueState(_conf, HBaseMetrics.register(metrics, _conf),
+        conf.get(Config.STORM_ID) + "/" + _id + "-" + partitionIndex);
+    WorkerResources.register(state);
+    return state;
   }
 }
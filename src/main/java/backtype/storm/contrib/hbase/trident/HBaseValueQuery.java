@@ -0,0 +1,78 @@
+package backtype.storm.contrib.hbase.trident;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.Result;
+
+import storm.trident.operation.TridentCollector;
+import storm.trident.state.BaseQueryFunction;
+import storm.trident.tuple.TridentTuple;
+import backtype.storm.contrib.hbase.utils.MappingPlan;
+import backtype.storm.tuple.Fields;
+
+/**
+ * Storm Trident query function for {@link HBaseValueState}, for DRPC and <tt>stateQuery</tt>
+ * lookups against a HBase table.
+ * <p>
+ * The Gets for every tuple in a batch are sent as one multi-get, and a row requested more than once
+ * in a batch is only read once. Hot rows can be cached with
+ * {@link backtype.storm.contrib.hbase.utils.TridentConfig#setQueryCacheSize(int)}.
+ * <p>
+ * For each tuple the configured columns are emitted in the order of the given output fields, which
+ * are matched to the tuple fields the columns were added with. Columns that don't exist are emitted
+ * as null. E.g.
+ *
+ * <pre>
+ * Fields columns = new Fields(&quot;url&quot;, &quot;user&quot;);
+ * stream.stateQuery(state, new Fields(&quot;shortid&quot;), new HBaseValueQuery(columns), columns);
+ * </pre>
+ */
+@SuppressWarnings("serial")
+public class HBaseValueQuery extends BaseQueryFunction<HBaseValueState, List<Object>> {
+  private Fields _outputFields;
+
+  /**
+   * @param outputFields The fields to emit, each one a field a column was added with
+   */
+  public HBaseValueQuery(final Fields outputFields) {
+    this._outputFields = outputFields;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public List<List<Object>> batchRetrieve(HBaseValueState state, List<TridentTuple> args) {
+    List<Get> gets = new ArrayList<Get>(args.size());
+    for (TridentTuple t : args) {
+      gets.add(state.getConf().getGetFromTridentTuple(t));
+    }
+    List<Result> results = state.getValues(gets);
+
+    MappingPlan plan = state.getConf().compile();
+    int[] columns = new int[_outputFields.size()];
+    for (int f = 0; f < columns.length; f++) {
+      columns[f] = plan.indexOf(_outputFields.get(f));
+    }
+
+    List<List<Object>> rtn = new ArrayList<List<Object>>(results.size());
+    for (Result r : results) {
+      List<Object> values = new ArrayList<Object>(columns.length);
+      for (int i : columns) {
+        byte[] value = null;
+        if (i != MappingPlan.NOT_A_FIELD && r != null) {
+          value = r.getValue(plan.family(i), plan.qualifier(i));
+        }
+        values.add(plan.decode(i, value));
+      }
+      rtn.add(values);
+    }
+    return rtn;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void execute(TridentTuple tuple, List<Object> result, TridentCollector collector) {
+    collector.emit(result);
+  }
+}
@@ -1,30 +1,96 @@
 package backtype.storm.contrib.hbase.trident;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.UUID;
 
 import org.apache.hadoop.hbase.client.Get;
 import org.apache.hadoop.hbase.client.Put;
 import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.util.Bytes;
 import org.apache.log4j.Logger;
 
 import storm.trident.state.State;
+import backtype.storm.contrib.hbase.utils.HBaseMetrics;
+import backtype.storm.contrib.hbase.utils.HFileBulkLoader;
+import backtype.storm.contrib.hbase.utils.HTableBatch;
 import backtype.storm.contrib.hbase.utils.HTableConnector;
+import backtype.storm.contrib.hbase.utils.OverloadPolicy;
 import backtype.storm.contrib.hbase.utils.TridentConfig;
+import backtype.storm.contrib.hbase.utils.TtlCache;
+import backtype.storm.contrib.hbase.utils.WorkerResources;
+import backtype.storm.topology.FailedException;
 
 /**
  * Storm Trident state implementation for putting and getting values from a HBase table
+ * <p>
+ * The connection to the table is opened once, when the state is created for its partition, and
+ * reused by every batch. In bulk load mode, see {@link TridentConfig#setBulkLoadDir(String)}, each
+ * batch's puts are written to HFiles and the files are bulk loaded into the table when the batch
+ * commits. Otherwise a batch whose puts are over the pending mutation budget, see
+ * {@link TridentConfig#setMaxPendingMutations(int)}, is written in chunks within it, or is failed
+ * with a {@link FailedException} under the {@link OverloadPolicy#FAIL_FAST} policy.
+ * <p>
+ * Rows can be read with {@link HBaseValueQuery}. Rows written through the state are removed from
+ * its query cache, so reads see the state's own writes. The latency and size of the reads and
+ * writes, and the query cache hit rate, are reported in the state's {@link HBaseMetrics}
+ * <p>
+ * States made by {@link HBaseValueFactory} are closed by {@link WorkerResources} when the worker
+ * shuts down.
  */
 @SuppressWarnings("rawtypes")
-public class HBaseValueState implements State {
+public class HBaseValueState implements State, Closeable {
   private static final Logger LOG = Logger.getLogger(HBaseValueState.class);
 
   private HTableConnector _connector;
   private TridentConfig _conf;
+  private HFileBulkLoader _bulk;
+  private TtlCache<ByteBuffer, Result> _cache;
+  private boolean _timestamped;
+  private HBaseMetrics _metrics;
 
   public HBaseValueState(final TridentConfig conf) {
+    this(conf, new HBaseMetrics());
+  }
+
+  /**
+   * @param conf The {@link TridentConfig}
+   * @param metrics The {@link HBaseMetrics} to record the state's reads and writes in
+   */
+  public HBaseValueState(final TridentConfig conf, final HBaseMetrics metrics) {
+    this(conf, metrics, UUID.randomUUID().toString());
+  }
+
+  /**
+   * @param conf The {@link TridentConfig}
+   * @param metrics The {@link HBaseMetrics} to record the state's reads and writes in
+   * @param partitionName A name for the state's partition, unique within the table, that names its
+   *          HFile staging directory in bulk load mode
+   */
+  public HBaseValueState(final TridentConfig conf, final HBaseMetrics metrics,
+      final String partitionName) {
     this._conf = conf;
+    this._metrics = metrics;
+    this._timestamped = this._conf.compile().hasTimestamp();
+    if (_conf.getQueryCacheSize() > 0 && !_timestamped) {
+      _cache = new TtlCache<ByteBuffer, Result>(_conf.getQueryCacheSize(),
+          _conf.getQueryCacheTtlMillis());
+      _metrics.setCache(_cache);
+    }
+    try {
+      _connector = new HTableConnector(_conf);
+      if (_conf.isBulkLoad()) {
+        _bulk = new HFileBulkLoader(_connector, _conf, partitionName, _metrics);
+      }
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
   }
 
   /** {@inheritDoc} */
@@ -33,11 +99,6 @@ public class HBaseValueState implements State {
     if (LOG.isDebugEnabled()) {
       LOG.debug("Beginning commit for tx " + txid);
     }
-    try {
-      _connector = new HTableConnector(_conf);
-    } catch (IOException e) {
-      throw new RuntimeException(e);
-    }
   }
 
   /** {@inheritDoc} */
@@ -46,7 +107,18 @@ public class HBaseValueState implements State {
     if (LOG.isDebugEnabled()) {
       LOG.debug("Commit tx " + txid);
     }
-    _connector.close();
+    if (_bulk != null) {
+      try {
+        _bulk.load();
+      } catch (IOException e) {
+        // The batch is replayed, and the files that weren't loaded are loaded with it
+        throw new RuntimeException(e);
+      }
+      if (_cache != null) {
+        // Rows read since the batch's puts were staged may have been cached before the load
+        _cache.clear();
+      }
+    }
   }
 
   /**
@@ -54,12 +126,60 @@ public class HBaseValueState implements State {
    * @param puts
    */
   public void setValuesBulk(final List<Put> puts) {
+    if (_cache != null) {
+      for (Put p : puts) {
+        _cache.remove(ByteBuffer.wrap(p.getRow()));
+      }
+    }
+    if (_bulk != null) {
+      try {
+        for (Put p : puts) {
+          _bulk.add(p);
+        }
+      } catch (IOException e) {
+        _metrics.errors(puts.size());
+        throw new RuntimeException(e);
+      }
+      return;
+    }
+    long bytes = 0;
+    for (Put p : puts) {
+      bytes += p.heapSize();
+    }
+    if (_conf.getOverloadPolicy() == OverloadPolicy.FAIL_FAST
+        && _conf.isOverBudget(puts.size(), bytes)) {
+      _metrics.rejected();
+      throw new FailedException(String.format(
+        "%d puts of %d bytes are over the budget of HBase table %s", puts.size(), bytes,
+        _conf.getTableName()));
+    }
+
+    for (List<Put> chunk : HTableBatch.split(puts, _conf)) {
+      put(chunk);
+    }
+  }
+
+  /**
+   * Writes the puts and flushes them
+   * @param puts The puts
+   * @throws FailedException If the puts couldn't be written, which fails the batch
+   */
+  private void put(final List<Put> puts) {
+    long bytes = 0;
+    for (Put p : puts) {
+      bytes += p.heapSize();
+    }
+    _metrics.batch(puts.size(), bytes);
+    long start = System.nanoTime();
     try {
       _connector.getTable().put(puts);
       _connector.getTable().flushCommits();
     } catch (IOException e) {
-      throw new RuntimeException(e);
+      _metrics.errors(puts.size());
+      throw new FailedException("Unable to put values to HBase table " + _conf.getTableName(), e);
     }
+    _metrics.latency(HBaseMetrics.Op.PUT, start);
+    _metrics.calls(1);
   }
 
   /**
@@ -69,18 +189,94 @@ public class HBaseValueState implements State {
    */
   public List<Result> getValuesBulk(final List<Get> gets) {
     Result[] results;
+    _metrics.batch(gets.size(), 0);
+    long start = System.nanoTime();
     try {
       results = _connector.getTable().get(gets);
     } catch (IOException e) {
+      _metrics.errors(gets.size());
       throw new RuntimeException(e);
     }
+    _metrics.latency(HBaseMetrics.Op.GET, start);
+    _metrics.calls(1);
     return Arrays.asList(results);
   }
 
+  /**
+   * Retrieve gets from HBase, reading each distinct row once and serving cached rows from the query
+   * cache, if enabled
+   * @param gets
+   * @return List of HBase results in the same order as the given gets
+   */
+  public List<Result> getValues(final List<Get> gets) {
+    Result[] results = new Result[gets.size()];
+    Map<ByteBuffer, List<Integer>> pending = new LinkedHashMap<ByteBuffer, List<Integer>>();
+    List<Get> distinct = new ArrayList<Get>();
+
+    for (int i = 0; i < gets.size(); i++) {
+      ByteBuffer key = key(gets.get(i));
+      if (_cache != null) {
+        results[i] = _cache.get(key);
+        if (results[i] != null) {
+          continue;
+        }
+      }
+
+      List<Integer> indexes = pending.get(key);
+      if (indexes == null) {
+        indexes = new ArrayList<Integer>(1);
+        pending.put(key, indexes);
+        distinct.add(gets.get(i));
+      }
+      indexes.add(i);
+    }
+
+    if (!distinct.isEmpty()) {
+      List<Result> fetched = getValuesBulk(distinct);
+      int j = 0;
+      for (Map.Entry<ByteBuffer, List<Integer>> e : pending.entrySet()) {
+        Result r = fetched.get(j++);
+        for (int i : e.getValue()) {
+          results[i] = r;
+        }
+        if (_cache != null && r != null) {
+          // Also caches rows that don't exist, as empty results
+          _cache.put(e.getKey(), r);
+        }
+      }
+    }
+    return Arrays.asList(results);
+  }
+
+  /**
+   * @param g The {@link Get}
+   * @return The key identifying the get's row, and its timestamp if one is configured
+   */
+  private ByteBuffer key(final Get g) {
+    if (_timestamped) {
+      return ByteBuffer.wrap(Bytes.add(g.getRow(), Bytes.toBytes(g.getTimeRange().getMin())));
+    }
+    return ByteBuffer.wrap(g.getRow());
+  }
+
   /**
    * @return the conf
    */
   public TridentConfig getConf() {
     return _conf;
   }
+
+  /**
+   * Discards any HFiles that weren't loaded and closes the state's connector
+   */
+  @Override
+  public void close() {
+    try {
+      if (_bulk != null) {
+        _bulk.close();
+      }
+    } finally {
+      _connector.close();
+    }
+  }
 }
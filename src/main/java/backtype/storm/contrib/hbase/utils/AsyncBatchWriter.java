@@ -0,0 +1,272 @@
+package backtype.storm.contrib.hbase.utils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.hadoop.hbase.client.Row;
+import org.apache.log4j.Logger;
+
+/**
+ * Collects HBase mutations into batches and sends each batch to HBase with a single
+ * {@link org.apache.hadoop.hbase.client.HTable#batch(List, Object[])} call on a background thread.
+ * <p>
+ * The client groups the actions of a batch by region server and sends one multi-action RPC to each
+ * server in parallel, so a batch costs roughly one round trip regardless of its size. While a batch
+ * is in flight the caller keeps adding to the next one. Only one batch is in flight at a time; if
+ * the next batch is flushed before the previous one completes, the flush waits for it.
+ * <p>
+ * Each mutation can carry an anchor (e.g. the tuple it was built from). Completed batches are
+ * reported to the {@link FlushListener} on the caller's thread, from {@link #add}, {@link #flush},
+ * {@link #drain} or {@link #close}, so the listener can safely ack or fail tuples.
+ * <p>
+ * The connector's table is used exclusively by the background thread, so it must not be shared.
+ * The latency and size of each batch, and its failed actions, are recorded in the writer's
+ * {@link HBaseMetrics}.
+ * @param <A> The anchor type
+ */
+public class AsyncBatchWriter<A> {
+  private static final Logger LOG = Logger.getLogger(AsyncBatchWriter.class);
+
+  /**
+   * Receives the anchors of completed batches
+   * @param <A> The anchor type
+   */
+  public interface FlushListener<A> {
+    /**
+     * @param anchors The anchors of a batch that was written to HBase
+     */
+    void flushed(List<A> anchors);
+
+    /**
+     * @param anchors The anchors of a batch that could not be written to HBase
+     * @param ex The cause
+     */
+    void failed(List<A> anchors, IOException ex);
+  }
+
+  private final HTableConnector connector;
+  private final FlushListener<A> listener;
+  private final int maxBatchPuts;
+  private final long maxBatchBytes;
+  private final ExecutorService executor;
+  private final HBaseMetrics metrics;
+
+  private Batch<A> current;
+  private Batch<A> inFlight;
+  private Future<Batch<A>> inFlightResult;
+
+  /**
+   * @param connector The connector, whose table will be used by the background thread only
+   * @param listener The listener notified of completed batches
+   * @param maxBatchPuts The number of mutations at which a batch is full
+   * @param maxBatchBytes The heap size of mutations at which a batch is full
+   */
+  public AsyncBatchWriter(final HTableConnector connector, final FlushListener<A> listener,
+      final int maxBatchPuts, final long maxBatchBytes) {
+    this(connector, listener, maxBatchPuts, maxBatchBytes, new HBaseMetrics());
+  }
+
+  /**
+   * @param connector The connector, whose table will be used by the background thread only
+   * @param listener The listener notified of completed batches
+   * @param maxBatchPuts The number of mutations at which a batch is full
+   * @param maxBatchBytes The heap size of mutations at which a batch is full
+   * @param metrics The {@link HBaseMetrics} batches are recorded in
+   */
+  public AsyncBatchWriter(final HTableConnector connector, final FlushListener<A> listener,
+      final int maxBatchPuts, final long maxBatchBytes, final HBaseMetrics metrics) {
+    this.metrics = metrics;
+    this.connector = connector;
+    this.listener = listener;
+    this.maxBatchPuts = maxBatchPuts;
+    this.maxBatchBytes = maxBatchBytes;
+    this.current = new Batch<A>();
+    this.executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "hbase-batch-writer-" + connector.getTableName());
+        t.setDaemon(true);
+        return t;
+      }
+    });
+  }
+
+  /**
+   * Adds a mutation to the current batch, flushing the batch if it is full
+   * @param action The mutation
+   * @param heapSize The size of the mutation in bytes
+   * @param anchor The anchor to report when the batch completes, may be null
+   */
+  public void add(final Row action, final long heapSize, final A anchor) {
+    current.add(action, heapSize, anchor);
+
+    if (current.actions.size() >= maxBatchPuts || current.bytes >= maxBatchBytes) {
+      flush();
+    } else {
+      drain();
+    }
+  }
+
+  /**
+   * Sends the current batch to HBase in the background. Waits for the previous batch if it is
+   * still in flight
+   */
+  public void flush() {
+    await();
+
+    if (current.actions.isEmpty()) {
+      return;
+    }
+
+    final Batch<A> batch = current;
+    current = new Batch<A>();
+    inFlight = batch;
+    inFlightResult = executor.submit(new Callable<Batch<A>>() {
+      @Override
+      public Batch<A> call() throws Exception {
+        write(batch);
+        return batch;
+      }
+    });
+  }
+
+  /**
+   * Waits for the in-flight batch, if any, and reports it to the listener
+   */
+  public void await() {
+    if (inFlightResult == null) {
+      return;
+    }
+
+    IOException error = null;
+    try {
+      inFlightResult.get();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      error = new IOException("Interrupted waiting for batch write", ex);
+    } catch (ExecutionException ex) {
+      error = ex.getCause() instanceof IOException ? (IOException) ex.getCause()
+          : new IOException(ex.getCause());
+    }
+
+    Batch<A> batch = inFlight;
+    inFlight = null;
+    inFlightResult = null;
+
+    if (error == null) {
+      listener.flushed(batch.anchors);
+    } else {
+      LOG.error(String.format("Unable to write batch of %d mutations to HBase table %s",
+        batch.actions.size(), connector.getTableName()), error);
+      listener.failed(batch.anchors, error);
+    }
+  }
+
+  /**
+   * Reports the in-flight batch to the listener if it has completed, without waiting
+   */
+  public void drain() {
+    if (inFlightResult != null && inFlightResult.isDone()) {
+      await();
+    }
+  }
+
+  /**
+   * @return The number of mutations in the batch currently being collected
+   */
+  public int size() {
+    return current.actions.size();
+  }
+
+  /**
+   * @return The number of mutations not yet written, in the current batch and in flight
+   */
+  public int pendingCount() {
+    return current.actions.size() + (inFlight == null ? 0 : inFlight.actions.size());
+  }
+
+  /**
+   * @return The heap size of the mutations not yet written, in the current batch and in flight
+   */
+  public long pendingBytes() {
+    return current.bytes + (inFlight == null ? 0 : inFlight.bytes);
+  }
+
+  /**
+   * @return The age in milliseconds of the batch currently being collected, or 0 if it is empty
+   */
+  public long age() {
+    return current.actions.isEmpty() ? 0 : System.currentTimeMillis() - current.started;
+  }
+
+  /**
+   * Flushes any outstanding mutations, waits for them and stops the background thread
+   */
+  public void close() {
+    flush();
+    await();
+    executor.shutdown();
+  }
+
+  private void write(final Batch<A> batch) throws IOException, InterruptedException {
+    // Sorting keeps the actions for each region together in the per-server multi-actions
+    Collections.sort(batch.actions);
+
+    Object[] results = new Object[batch.actions.size()];
+    long start = System.nanoTime();
+    try {
+      connector.getTable().batch(batch.actions, results);
+    } catch (IOException ex) {
+      metrics.errors(batch.actions.size());
+      throw ex;
+    } finally {
+      metrics.calls(1);
+      metrics.latency(HBaseMetrics.Op.FLUSH, start);
+      metrics.batch(batch.actions.size(), batch.bytes);
+    }
+
+    int failed = -1;
+    for (int i = 0; i < results.length; i++) {
+      if (results[i] == null || results[i] instanceof Throwable) {
+        metrics.errors(1);
+        if (failed < 0) {
+          failed = i;
+        }
+      }
+    }
+    if (failed >= 0) {
+      throw new IOException(String.format("Failed to apply %s to HBase table %s",
+        batch.actions.get(failed), connector.getTableName()),
+        results[failed] instanceof Throwable ? (Throwable) results[failed] : null);
+    }
+  }
+
+  /**
+   * A batch of mutations and the anchors they were built from
+   */
+  private static class Batch<A> {
+    final List<Row> actions = new ArrayList<Row>();
+    final List<A> anchors = new ArrayList<A>();
+    long bytes;
+    long started;
+
+    void add(final Row action, final long heapSize, final A anchor) {
+      if (actions.isEmpty()) {
+        started = System.currentTimeMillis();
+      }
+      actions.add(action);
+      bytes += heapSize;
+      if (anchor != null) {
+        anchors.add(anchor);
+      }
+    }
+  }
+}
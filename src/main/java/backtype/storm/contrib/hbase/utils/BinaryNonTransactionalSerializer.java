@@ -0,0 +1,33 @@
+package backtype.storm.contrib.hbase.utils;
+
+import storm.trident.state.JSONNonTransactionalSerializer;
+import storm.trident.state.Serializer;
+
+/**
+ * Compact binary {@link Serializer} for non-transactional Trident state. Reads state written by
+ * {@link JSONNonTransactionalSerializer}, but state it has written can no longer be read by that
+ * serializer
+ * @see BinaryValues
+ * @see TridentConfig#BINARY_SERIALIZERS
+ */
+@SuppressWarnings({ "serial", "rawtypes" })
+public class BinaryNonTransactionalSerializer implements Serializer {
+  private final JSONNonTransactionalSerializer legacy = new JSONNonTransactionalSerializer();
+
+  /** {@inheritDoc} */
+  @Override
+  public byte[] serialize(Object obj) {
+    BinaryValues.Output out = new BinaryValues.Output();
+    out.writeValue(obj);
+    return out.toBytes();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public Object deserialize(byte[] b) {
+    if (!BinaryValues.isBinary(b)) {
+      return legacy.deserialize(b);
+    }
+    return new BinaryValues.Input(b).readValue();
+  }
+}
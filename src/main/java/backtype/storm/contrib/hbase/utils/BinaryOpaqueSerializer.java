@@ -0,0 +1,39 @@
+package backtype.storm.contrib.hbase.utils;
+
+import storm.trident.state.JSONOpaqueSerializer;
+import storm.trident.state.OpaqueValue;
+import storm.trident.state.Serializer;
+
+/**
+ * Compact binary {@link Serializer} for opaque transactional Trident state, laid out as the
+ * current txid followed by the current and previous values. Reads state written by
+ * {@link JSONOpaqueSerializer}, but state it has written can no longer be read by that serializer
+ * @see BinaryValues
+ * @see TridentConfig#BINARY_SERIALIZERS
+ */
+@SuppressWarnings({ "serial", "rawtypes", "unchecked" })
+public class BinaryOpaqueSerializer implements Serializer<OpaqueValue> {
+  private final JSONOpaqueSerializer legacy = new JSONOpaqueSerializer();
+
+  /** {@inheritDoc} */
+  @Override
+  public byte[] serialize(OpaqueValue obj) {
+    BinaryValues.Output out = new BinaryValues.Output();
+    out.writeVarLong(obj.getCurrTxid());
+    out.writeValue(obj.getCurr());
+    out.writeValue(obj.getPrev());
+    return out.toBytes();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public OpaqueValue deserialize(byte[] b) {
+    if (!BinaryValues.isBinary(b)) {
+      return legacy.deserialize(b);
+    }
+    BinaryValues.Input in = new BinaryValues.Input(b);
+    long txid = in.readVarLong();
+    Object curr = in.readValue();
+    return new OpaqueValue(txid, curr, in.readValue());
+  }
+}
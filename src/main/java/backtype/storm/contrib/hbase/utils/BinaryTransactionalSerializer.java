@@ -0,0 +1,37 @@
+package backtype.storm.contrib.hbase.utils;
+
+import storm.trident.state.JSONTransactionalSerializer;
+import storm.trident.state.Serializer;
+import storm.trident.state.TransactionalValue;
+
+/**
+ * Compact binary {@link Serializer} for transactional Trident state, laid out as the txid followed
+ * by the value. Reads state written by {@link JSONTransactionalSerializer}, but state it has
+ * written can no longer be read by that serializer
+ * @see BinaryValues
+ * @see TridentConfig#BINARY_SERIALIZERS
+ */
+@SuppressWarnings({ "serial", "rawtypes", "unchecked" })
+public class BinaryTransactionalSerializer implements Serializer<TransactionalValue> {
+  private final JSONTransactionalSerializer legacy = new JSONTransactionalSerializer();
+
+  /** {@inheritDoc} */
+  @Override
+  public byte[] serialize(TransactionalValue obj) {
+    BinaryValues.Output out = new BinaryValues.Output();
+    out.writeVarLong(obj.getTxid());
+    out.writeValue(obj.getVal());
+    return out.toBytes();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public TransactionalValue deserialize(byte[] b) {
+    if (!BinaryValues.isBinary(b)) {
+      return legacy.deserialize(b);
+    }
+    BinaryValues.Input in = new BinaryValues.Input(b);
+    long txid = in.readVarLong();
+    return new TransactionalValue(txid, in.readValue());
+  }
+}
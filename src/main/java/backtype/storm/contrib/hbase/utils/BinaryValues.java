@@ -0,0 +1,165 @@
+package backtype.storm.contrib.hbase.utils;
+
+import java.util.Arrays;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.json.simple.JSONValue;
+
+/**
+ * Compact binary encoding of Trident state values, used by the binary state serializers.
+ * <p>
+ * Each value is written as a one byte type tag followed by its payload. Longs and integers are
+ * zig-zag varints, doubles are 8 bytes and strings are length prefixed UTF-8. Any other type falls
+ * back to length prefixed JSON, the same encoding used by Storm's JSON serializers.
+ * <p>
+ * Serialized state starts with {@link #MAGIC}. JSON text never starts with a control character, so
+ * state written by Storm's JSON serializers can still be read. The reverse is not true, so moving
+ * a state to the binary serializers is one way.
+ * <p>
+ * Integers are read back as integers, where JSON reads every whole number back as a long. An
+ * aggregator that casts its stored value to Long must not be given Integer values.
+ */
+final class BinaryValues {
+  /** First byte of state written by the binary serializers */
+  static final byte MAGIC = 0x01;
+
+  private static final byte NULL = 0;
+  private static final byte LONG = 1;
+  private static final byte INTEGER = 2;
+  private static final byte DOUBLE = 3;
+  private static final byte STRING = 4;
+  private static final byte JSON = 5;
+
+  private BinaryValues() {
+  }
+
+  /**
+   * @param bytes Serialized state
+   * @return True if the state was written by a binary serializer, false if it is legacy JSON
+   */
+  static boolean isBinary(final byte[] bytes) {
+    return bytes.length > 0 && bytes[0] == MAGIC;
+  }
+
+  /**
+   * A growable output buffer
+   */
+  static final class Output {
+    private byte[] buf = new byte[16];
+    private int pos;
+
+    Output() {
+      writeByte(MAGIC);
+    }
+
+    void writeByte(int b) {
+      ensure(1);
+      buf[pos++] = (byte) b;
+    }
+
+    void writeBytes(byte[] b) {
+      ensure(b.length);
+      System.arraycopy(b, 0, buf, pos, b.length);
+      pos += b.length;
+    }
+
+    void writeVarLong(long v) {
+      // zig-zag so small negative values stay small
+      long zz = (v << 1) ^ (v >> 63);
+      while ((zz & ~0x7FL) != 0) {
+        writeByte((int) ((zz & 0x7F) | 0x80));
+        zz >>>= 7;
+      }
+      writeByte((int) zz);
+    }
+
+    void writeValue(Object value) {
+      if (value == null) {
+        writeByte(NULL);
+      } else if (value instanceof Long) {
+        writeByte(LONG);
+        writeVarLong((Long) value);
+      } else if (value instanceof Integer) {
+        writeByte(INTEGER);
+        writeVarLong((Integer) value);
+      } else if (value instanceof Double) {
+        writeByte(DOUBLE);
+        writeBytes(Bytes.toBytes((Double) value));
+      } else if (value instanceof String) {
+        writeByte(STRING);
+        byte[] b = Bytes.toBytes((String) value);
+        writeVarLong(b.length);
+        writeBytes(b);
+      } else {
+        writeByte(JSON);
+        byte[] b = Bytes.toBytes(JSONValue.toJSONString(value));
+        writeVarLong(b.length);
+        writeBytes(b);
+      }
+    }
+
+    byte[] toBytes() {
+      return Arrays.copyOf(buf, pos);
+    }
+
+    private void ensure(int n) {
+      if (pos + n > buf.length) {
+        buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + n));
+      }
+    }
+  }
+
+  /**
+   * Reads values from a buffer written by {@link Output}
+   */
+  static final class Input {
+    private final byte[] buf;
+    private int pos;
+
+    Input(byte[] buf) {
+      this.buf = buf;
+      this.pos = 1; // skip MAGIC
+    }
+
+    long readVarLong() {
+      long zz = 0;
+      int shift = 0;
+      byte b;
+      do {
+        b = buf[pos++];
+        zz |= (long) (b & 0x7F) << shift;
+        shift += 7;
+      } while ((b & 0x80) != 0);
+      return (zz >>> 1) ^ -(zz & 1);
+    }
+
+    Object readValue() {
+      byte type = buf[pos++];
+      switch (type) {
+        case NULL:
+          return null;
+        case LONG:
+          return readVarLong();
+        case INTEGER:
+          return (int) readVarLong();
+        case DOUBLE:
+          double d = Bytes.toDouble(buf, pos);
+          pos += Bytes.SIZEOF_DOUBLE;
+          return d;
+        case STRING:
+          return Bytes.toString(readBytes());
+        case JSON:
+          return JSONValue.parse(Bytes.toString(readBytes()));
+        default:
+          throw new IllegalArgumentException("Unknown value type: " + type);
+      }
+    }
+
+    private byte[] readBytes() {
+      int len = (int) readVarLong();
+      byte[] b = Arrays.copyOfRange(buf, pos, pos + len);
+      pos += len;
+      return b;
+    }
+  }
+}
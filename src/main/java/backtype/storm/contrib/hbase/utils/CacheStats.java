@@ -0,0 +1,26 @@
+package backtype.storm.contrib.hbase.utils;
+
+/**
+ * A cache that counts its hits, misses and evictions
+ */
+public interface CacheStats {
+  /**
+   * @return The number of cache hits
+   */
+  long getHits();
+
+  /**
+   * @return The number of cache misses
+   */
+  long getMisses();
+
+  /**
+   * @return The number of entries evicted to make space for new ones
+   */
+  long getEvictions();
+
+  /**
+   * @return The number of bytes held by cached values, or -1 if the cache doesn't measure them
+   */
+  long getUsedBytes();
+}
@@ -0,0 +1,230 @@
+package backtype.storm.contrib.hbase.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.NavigableMap;
+
+import org.apache.hadoop.hbase.client.Increment;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * Sums counter increments in memory per row, column family and qualifier.
+ * <p>
+ * Counters are held in an open-addressing hash table, with the amounts in a primitive
+ * <tt>long[]</tt>, so adding to a counter doesn't box the amount or create any objects once the
+ * counter exists. The counters are only sorted when they are turned into {@link Increment}s, one
+ * per row, to be sent to HBase. Not thread-safe.
+ */
+public class CounterAccumulator {
+  private static final int EMPTY = -1;
+
+  private byte[][] rows;
+  private byte[][] families;
+  private byte[][] qualifiers;
+  private long[] amounts;
+  private int[] hashes;
+  private int size;
+
+  // Hash slots holding the index of a counter, or EMPTY
+  private int[] slots;
+  private int mask;
+
+  public CounterAccumulator() {
+    this(64);
+  }
+
+  /**
+   * @param expectedCounters The number of distinct counters expected, to size the table
+   */
+  public CounterAccumulator(final int expectedCounters) {
+    int capacity = Math.max(16, Integer.highestOneBit(Math.max(expectedCounters, 1) - 1) << 2);
+    init(capacity);
+  }
+
+  private void init(final int capacity) {
+    this.slots = new int[capacity];
+    Arrays.fill(slots, EMPTY);
+    this.mask = capacity - 1;
+
+    int cells = capacity / 2;
+    this.rows = new byte[cells][];
+    this.families = new byte[cells][];
+    this.qualifiers = new byte[cells][];
+    this.amounts = new long[cells];
+    this.hashes = new int[cells];
+    this.size = 0;
+  }
+
+  /**
+   * Adds the amount to the counter, creating it if it doesn't exist
+   * @param row The row key
+   * @param family The column family
+   * @param qualifier The column qualifier
+   * @param amount The amount to add
+   */
+  public void add(final byte[] row, final byte[] family, final byte[] qualifier,
+      final long amount) {
+    int hash = hash(row, family, qualifier);
+    int slot = hash & mask;
+
+    while (true) {
+      int i = slots[slot];
+      if (i == EMPTY) {
+        break;
+      }
+      if (hashes[i] == hash && Bytes.equals(rows[i], row) && Bytes.equals(families[i], family)
+          && Bytes.equals(qualifiers[i], qualifier)) {
+        amounts[i] += amount;
+        return;
+      }
+      slot = (slot + 1) & mask;
+    }
+
+    if (size == amounts.length) {
+      grow();
+      add(row, family, qualifier, amount);
+      return;
+    }
+
+    rows[size] = row;
+    families[size] = family;
+    qualifiers[size] = qualifier;
+    amounts[size] = amount;
+    hashes[size] = hash;
+    slots[slot] = size++;
+  }
+
+  /**
+   * Adds every counter in the {@link Increment}
+   * @param inc The {@link Increment}
+   */
+  public void add(final Increment inc) {
+    for (Entry<byte[], NavigableMap<byte[], Long>> families : inc.getFamilyMap().entrySet()) {
+      for (Entry<byte[], Long> columns : families.getValue().entrySet()) {
+        add(inc.getRow(), families.getKey(), columns.getKey(), columns.getValue());
+      }
+    }
+  }
+
+  /**
+   * @param row The row key
+   * @param family The column family
+   * @param qualifier The column qualifier
+   * @return The summed amount, 0 if the counter doesn't exist
+   */
+  public long get(final byte[] row, final byte[] family, final byte[] qualifier) {
+    int hash = hash(row, family, qualifier);
+    for (int slot = hash & mask;; slot = (slot + 1) & mask) {
+      int i = slots[slot];
+      if (i == EMPTY) {
+        return 0L;
+      }
+      if (hashes[i] == hash && Bytes.equals(rows[i], row) && Bytes.equals(families[i], family)
+          && Bytes.equals(qualifiers[i], qualifier)) {
+        return amounts[i];
+      }
+    }
+  }
+
+  /**
+   * Sorts the counters by row, family and qualifier and groups them into one {@link Increment} per
+   * row
+   * @param writeToWAL Whether the increments are written to the WAL
+   * @return The increments, in row key order
+   */
+  public List<Increment> toIncrements(final boolean writeToWAL) {
+    Integer[] order = new Integer[size];
+    for (int i = 0; i < size; i++) {
+      order[i] = i;
+    }
+    Arrays.sort(order, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer a, Integer b) {
+        int cmp = Bytes.compareTo(rows[a], rows[b]);
+        if (cmp == 0) {
+          cmp = Bytes.compareTo(families[a], families[b]);
+        }
+        if (cmp == 0) {
+          cmp = Bytes.compareTo(qualifiers[a], qualifiers[b]);
+        }
+        return cmp;
+      }
+    });
+
+    List<Increment> incs = new ArrayList<Increment>();
+    Increment inc = null;
+    for (int i : order) {
+      if (inc == null || !Bytes.equals(inc.getRow(), rows[i])) {
+        inc = new Increment(rows[i]);
+        inc.setWriteToWAL(writeToWAL);
+        incs.add(inc);
+      }
+      inc.addColumn(families[i], qualifiers[i], amounts[i]);
+    }
+    return incs;
+  }
+
+  /**
+   * @return The number of distinct counters
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @return True if there are no counters
+   */
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * Removes every counter, keeping the table's capacity
+   */
+  public void clear() {
+    Arrays.fill(slots, EMPTY);
+    Arrays.fill(rows, 0, size, null);
+    Arrays.fill(families, 0, size, null);
+    Arrays.fill(qualifiers, 0, size, null);
+    size = 0;
+  }
+
+  /**
+   * Doubles the table's capacity, keeping the load factor at or below 1/2
+   */
+  private void grow() {
+    byte[][] oldRows = rows;
+    byte[][] oldFamilies = families;
+    byte[][] oldQualifiers = qualifiers;
+    long[] oldAmounts = amounts;
+    int[] oldHashes = hashes;
+    int oldSize = size;
+
+    init(slots.length * 2);
+    System.arraycopy(oldRows, 0, rows, 0, oldSize);
+    System.arraycopy(oldFamilies, 0, families, 0, oldSize);
+    System.arraycopy(oldQualifiers, 0, qualifiers, 0, oldSize);
+    System.arraycopy(oldAmounts, 0, amounts, 0, oldSize);
+    System.arraycopy(oldHashes, 0, hashes, 0, oldSize);
+    size = oldSize;
+
+    for (int i = 0; i < size; i++) {
+      int slot = hashes[i] & mask;
+      while (slots[slot] != EMPTY) {
+        slot = (slot + 1) & mask;
+      }
+      slots[slot] = i;
+    }
+  }
+
+  private static int hash(final byte[] row, final byte[] family, final byte[] qualifier) {
+    int h = Bytes.hashCode(row);
+    h = 31 * h + Bytes.hashCode(family);
+    h = 31 * h + Bytes.hashCode(qualifier);
+    // Spread the bits, as the slot is taken from the low bits
+    return h ^ (h >>> 16);
+  }
+}
@@ -0,0 +1,243 @@
+package backtype.storm.contrib.hbase.utils;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import backtype.storm.metric.api.IMetric;
+import backtype.storm.task.IMetricsContext;
+
+/**
+ * The metrics of a HBase bolt or Trident state, reported through Storm's metrics API.
+ * <p>
+ * Reports, for each time bucket, the latency histograms in microseconds of the puts, gets,
+ * increments and flushes sent to HBase, histograms of the rows and bytes in each batch, the
+ * number of calls made to HBase, the number of actions that failed and that were retried, the
+ * number of tuples or batches rejected by the {@link OverloadPolicy}, the mutations and bytes
+ * waiting to be written and the hits, misses, evictions and bytes used of the cache, if there is
+ * one. Each is reported under its own key of a single metric named <tt>hbase-&lt;table&gt;</tt>,
+ * or <tt>hbase-&lt;table&gt;-2</tt> and so on for the second and later states on the same table in
+ * a task. Recording a value takes a short uncontended lock and a few arithmetic operations, so the
+ * metrics are enabled by default. Use {@link TupleTableConfig#setMetricsBucketSecs(int)} to change
+ * the time bucket size or disable them.
+ * <p>
+ * Values may be recorded from background writer threads.
+ */
+public class HBaseMetrics implements IMetric {
+  /**
+   * The operations whose latency is recorded
+   */
+  public enum Op {
+    PUT, GET, INCREMENT, FLUSH
+  }
+
+  /**
+   * Reports the mutations waiting to be written
+   */
+  public interface Occupancy {
+    /**
+     * @return The number of mutations waiting to be written
+     */
+    int pendingMutations();
+
+    /**
+     * @return The heap size of the mutations waiting to be written
+     */
+    long pendingBytes();
+  }
+
+  // The metric names registered with each task's context, which must be unique
+  private static final Map<IMetricsContext, Set<String>> NAMES =
+      new WeakHashMap<IMetricsContext, Set<String>>();
+
+  private final Histogram[] latencies = new Histogram[Op.values().length];
+  private final Histogram batchRows = new Histogram();
+  private final Histogram batchBytes = new Histogram();
+  private long calls;
+  private long errors;
+  private long retries;
+  private long rejected;
+
+  private Occupancy occupancy;
+  private CacheStats cache;
+  private long lastHits;
+  private long lastMisses;
+  private long lastEvictions;
+
+  public HBaseMetrics() {
+    for (int i = 0; i < latencies.length; i++) {
+      latencies[i] = new Histogram();
+    }
+  }
+
+  /**
+   * Creates the metrics and registers them with the topology, unless they are disabled
+   * @param context The {@link IMetricsContext}, e.g. the bolt's topology context, may be null
+   * @param conf The {@link TupleTableConfig}
+   * @return The metrics, which are recorded but not reported if they weren't registered
+   */
+  public static HBaseMetrics register(final IMetricsContext context,
+      final TupleTableConfig conf) {
+    HBaseMetrics metrics = new HBaseMetrics();
+    if (context != null && conf.getMetricsBucketSecs() > 0) {
+      context.registerMetric(uniqueName(context, "hbase-" + conf.getTableName()), metrics,
+        conf.getMetricsBucketSecs());
+    }
+    return metrics;
+  }
+
+  /**
+   * @param context The {@link IMetricsContext}
+   * @param name The metric name
+   * @return The name, with a suffix if it was already registered with the context
+   */
+  private static String uniqueName(final IMetricsContext context, final String name) {
+    synchronized (NAMES) {
+      Set<String> names = NAMES.get(context);
+      if (names == null) {
+        names = new HashSet<String>();
+        NAMES.put(context, names);
+      }
+      String unique = name;
+      for (int n = 2; !names.add(unique); n++) {
+        unique = name + "-" + n;
+      }
+      return unique;
+    }
+  }
+
+  /**
+   * Records the latency of an operation
+   * @param op The operation
+   * @param startNanos The {@link System#nanoTime()} when the operation started
+   */
+  public void latency(final Op op, final long startNanos) {
+    long micros = (System.nanoTime() - startNanos) / 1000L;
+    synchronized (this) {
+      latencies[op.ordinal()].record(micros);
+    }
+  }
+
+  /**
+   * Records the size of a batch sent to HBase
+   * @param rows The number of rows or actions in the batch
+   * @param bytes The heap size of the batch, 0 if unknown
+   */
+  public synchronized void batch(final int rows, final long bytes) {
+    batchRows.record(rows);
+    if (bytes > 0) {
+      batchBytes.record(bytes);
+    }
+  }
+
+  /**
+   * Counts calls to HBase, each a round trip to the cluster such as a single put or get, a flush
+   * of the write buffer or a multi-action batch. A batch whose rows are spread over several region
+   * servers costs one RPC per server, in parallel
+   * @param count The number of calls
+   */
+  public synchronized void calls(final int count) {
+    calls += count;
+  }
+
+  /**
+   * @param actions The number of actions that failed
+   */
+  public synchronized void errors(final int actions) {
+    errors += actions;
+  }
+
+  /**
+   * @param actions The number of actions that were retried
+   */
+  public synchronized void retries(final int actions) {
+    retries += actions;
+  }
+
+  /**
+   * Counts a tuple or batch rejected by the {@link OverloadPolicy}
+   */
+  public synchronized void rejected() {
+    rejected++;
+  }
+
+  /**
+   * @param occupancy Reports the mutations waiting to be written, read when the metrics are
+   *          reported
+   */
+  public synchronized void setOccupancy(final Occupancy occupancy) {
+    this.occupancy = occupancy;
+  }
+
+  /**
+   * @param cache The cache whose hits, misses, evictions and bytes used are reported, or null to
+   *          stop reporting a cache
+   */
+  public synchronized void setCache(final CacheStats cache) {
+    this.cache = cache;
+    if (cache == null) {
+      return;
+    }
+    this.lastHits = cache.getHits();
+    this.lastMisses = cache.getMisses();
+    this.lastEvictions = cache.getEvictions();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public synchronized Object getValueAndReset() {
+    Map<String, Object> values = new HashMap<String, Object>();
+
+    for (Op op : Op.values()) {
+      Histogram h = latencies[op.ordinal()];
+      if (h.getCount() > 0) {
+        values.put(op.name().toLowerCase() + "-latency-us", h.summary());
+        h.reset();
+      }
+    }
+    if (batchRows.getCount() > 0) {
+      values.put("batch-rows", batchRows.summary());
+      batchRows.reset();
+    }
+    if (batchBytes.getCount() > 0) {
+      values.put("batch-bytes", batchBytes.summary());
+      batchBytes.reset();
+    }
+
+    values.put("calls", calls);
+    values.put("errors", errors);
+    values.put("retries", retries);
+    values.put("rejected", rejected);
+    calls = 0;
+    errors = 0;
+    retries = 0;
+    rejected = 0;
+
+    if (occupancy != null) {
+      values.put("pending-mutations", occupancy.pendingMutations());
+      values.put("pending-bytes", occupancy.pendingBytes());
+    }
+
+    if (cache != null) {
+      long hits = cache.getHits();
+      long misses = cache.getMisses();
+      long lookups = (hits - lastHits) + (misses - lastMisses);
+      values.put("cache-hits", hits - lastHits);
+      values.put("cache-misses", misses - lastMisses);
+      values.put("cache-hit-rate", lookups == 0 ? 0.0 : (double) (hits - lastHits) / lookups);
+      lastHits = hits;
+      lastMisses = misses;
+
+      long evictions = cache.getEvictions();
+      values.put("cache-evictions", evictions - lastEvictions);
+      lastEvictions = evictions;
+      long usedBytes = cache.getUsedBytes();
+      if (usedBytes >= 0) {
+        values.put("cache-used-bytes", usedBytes);
+      }
+    }
+    return values;
+  }
+}
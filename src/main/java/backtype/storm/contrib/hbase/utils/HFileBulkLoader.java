@@ -0,0 +1,306 @@
+package backtype.storm.contrib.hbase.utils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.HColumnDescriptor;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.io.hfile.CacheConfig;
+import org.apache.hadoop.hbase.io.hfile.HFile;
+import org.apache.hadoop.hbase.io.hfile.HFileScanner;
+import org.apache.hadoop.hbase.mapreduce.LoadIncrementalHFiles;
+import org.apache.hadoop.hbase.regionserver.NoSuchColumnFamilyException;
+import org.apache.hadoop.hbase.regionserver.StoreFile;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.log4j.Logger;
+
+/**
+ * Writes puts to HFiles and bulk loads them into a HBase table, instead of sending them through
+ * the region servers' write path.
+ * <p>
+ * Puts are held in memory, sorted per column family, until
+ * {@link TupleTableConfig#getBulkLoadBufferBytes()} is reached, then written to a new HFile for
+ * each family in the loader's staging directory. {@link #load()} writes out what is left and hands
+ * the staged files to the table with {@link LoadIncrementalHFiles}, which assigns each file to the
+ * regions it covers, splitting it if it spans several, and has each region server move the files
+ * into its stores. A failed load can be retried with another call to {@link #load()}, which loads
+ * the files that are left along with any new ones.
+ * <p>
+ * Each loader stages files in a directory of its own under
+ * {@link TupleTableConfig#getBulkLoadDir()}, named after the table and the task using it, so a
+ * restarted task discards the files of writes that were never loaded. Cells without a timestamp
+ * are given the time they were added. The files are written with the compression, bloom filter and
+ * block size of their column family. Only a {@link HTable} can be bulk loaded, or a
+ * {@link MemoryHTable}, which has no region servers to hand the files to, so the cells of its files
+ * are read back and put into it instead.
+ */
+public class HFileBulkLoader {
+  private static final Logger LOG = Logger.getLogger(HFileBulkLoader.class);
+
+  private final HTableInterface table;
+  private final Configuration hbaseConf;
+  private final CacheConfig cacheConf;
+  private final FileSystem fs;
+  private final Path stagingDir;
+  private final long maxBufferBytes;
+  private final HBaseMetrics metrics;
+  private final LoadIncrementalHFiles loader;
+
+  private final Map<byte[], HColumnDescriptor> families = new TreeMap<byte[], HColumnDescriptor>(
+      Bytes.BYTES_COMPARATOR);
+  private final Map<byte[], TreeSet<KeyValue>> buffer = new TreeMap<byte[], TreeSet<KeyValue>>(
+      Bytes.BYTES_COMPARATOR);
+  private long bufferedBytes;
+  private int pendingPuts;
+  private int stagedFiles;
+
+  /**
+   * @param connector The connector, whose table must be a {@link HTable} or {@link MemoryHTable}
+   * @param conf The {@link TupleTableConfig}, with bulk load mode enabled
+   * @param taskName A name for the task using the loader, unique within the table, e.g. its
+   *          topology, component and task id
+   * @param metrics The {@link HBaseMetrics} the files and loads are recorded in
+   * @throws IOException If the staging directory can't be created
+   */
+  public HFileBulkLoader(final HTableConnector connector, final TupleTableConfig conf,
+      final String taskName, final HBaseMetrics metrics) throws IOException {
+    this.table = connector.getTable();
+    if (!(table instanceof HTable) && !(table instanceof MemoryHTable)) {
+      throw new IllegalArgumentException("Only a HTable can be bulk loaded, not "
+          + table.getClass().getName());
+    }
+    this.hbaseConf = table.getConfiguration();
+    this.maxBufferBytes = conf.getBulkLoadBufferBytes();
+    this.metrics = metrics;
+
+    // Blocks of the files being written are not worth caching in the worker
+    Configuration writerConf = new Configuration(hbaseConf);
+    writerConf.setFloat(HConstants.HFILE_BLOCK_CACHE_SIZE_KEY, 0.0f);
+    this.cacheConf = new CacheConfig(writerConf);
+
+    for (HColumnDescriptor family : HTableConnections.getTableDescriptor(table).getFamilies()) {
+      families.put(family.getName(), family);
+    }
+
+    Path dir = new Path(conf.getBulkLoadDir());
+    if (dir.toUri().getScheme() == null) {
+      this.fs = new Path(hbaseConf.get(HConstants.HBASE_DIR)).getFileSystem(hbaseConf);
+    } else {
+      this.fs = dir.getFileSystem(hbaseConf);
+    }
+    this.stagingDir = fs.makeQualified(new Path(new Path(dir, conf.getTableName()), taskName));
+
+    if (fs.exists(stagingDir)) {
+      LOG.warn("Discarding HFiles left in " + stagingDir + " by a previous run");
+      fs.delete(stagingDir, true);
+    }
+    fs.mkdirs(stagingDir);
+
+    if (table instanceof HTable) {
+      try {
+        this.loader = new LoadIncrementalHFiles(hbaseConf);
+      } catch (Exception ex) {
+        throw new IOException("Unable to create bulk loader for HBase table "
+            + conf.getTableName(), ex);
+      }
+    } else {
+      this.loader = null;
+    }
+    LOG.info("Staging HFiles for HBase table " + conf.getTableName() + " in " + stagingDir);
+  }
+
+  /**
+   * Adds a put to the sorted buffer, writing the buffer to HFiles if it is full
+   * @param put The {@link Put}
+   * @throws IOException If the put's column family doesn't exist, or the HFiles can't be written
+   */
+  public void add(final Put put) throws IOException {
+    byte[] now = Bytes.toBytes(System.currentTimeMillis());
+
+    for (Map.Entry<byte[], List<KeyValue>> e : put.getFamilyMap().entrySet()) {
+      TreeSet<KeyValue> cells = buffer.get(e.getKey());
+      if (cells == null) {
+        if (!families.containsKey(e.getKey())) {
+          throw new NoSuchColumnFamilyException("Column family " + Bytes.toString(e.getKey())
+              + " does not exist in table " + Bytes.toString(table.getTableName()));
+        }
+        cells = new TreeSet<KeyValue>(KeyValue.COMPARATOR);
+        buffer.put(e.getKey(), cells);
+      }
+
+      for (KeyValue kv : e.getValue()) {
+        kv.updateLatestStamp(now);
+        if (!cells.add(kv)) {
+          // The last put of a cell wins, as it would in HBase
+          cells.remove(kv);
+          cells.add(kv);
+        }
+        bufferedBytes += kv.heapSize();
+      }
+    }
+    pendingPuts++;
+
+    if (bufferedBytes >= maxBufferBytes) {
+      roll();
+    }
+  }
+
+  /**
+   * Writes the buffered puts to HFiles, then bulk loads every staged HFile into the table
+   * @throws IOException If the files can't be written or loaded. The files that weren't loaded are
+   *           kept for the next load
+   */
+  public void load() throws IOException {
+    roll();
+    if (stagedFiles == 0) {
+      pendingPuts = 0;
+      return;
+    }
+
+    long start = System.nanoTime();
+    try {
+      if (loader != null) {
+        loader.doBulkLoad(stagingDir, (HTable) table);
+      } else {
+        putStagedCells();
+      }
+    } catch (IOException ex) {
+      metrics.errors(pendingPuts);
+      throw ex;
+    } finally {
+      metrics.calls(1);
+      metrics.latency(HBaseMetrics.Op.FLUSH, start);
+    }
+
+    if (LOG.isDebugEnabled()) {
+      LOG.debug(String.format("Bulk loaded %d HFiles holding %d puts into HBase table %s",
+        stagedFiles, pendingPuts, Bytes.toString(table.getTableName())));
+    }
+    stagedFiles = 0;
+    pendingPuts = 0;
+    // The loaded files were moved into the regions, so only empty family directories are left
+    fs.delete(stagingDir, true);
+    fs.mkdirs(stagingDir);
+  }
+
+  /**
+   * Discards the buffered puts and the staged HFiles that haven't been loaded
+   * @throws IOException If the staged files can't be deleted
+   */
+  public void discard() throws IOException {
+    buffer.clear();
+    bufferedBytes = 0;
+    pendingPuts = 0;
+    stagedFiles = 0;
+    fs.delete(stagingDir, true);
+    fs.mkdirs(stagingDir);
+  }
+
+  /**
+   * @return The number of puts added since the last successful load
+   */
+  public int pendingPuts() {
+    return pendingPuts;
+  }
+
+  /**
+   * @return The heap size of the puts held in memory
+   */
+  public long bufferedBytes() {
+    return bufferedBytes;
+  }
+
+  /**
+   * Removes the staging directory. Anything not yet loaded is discarded
+   */
+  public void close() {
+    try {
+      fs.delete(stagingDir, true);
+    } catch (IOException ex) {
+      LOG.error("Unable to remove HFile staging directory " + stagingDir, ex);
+    }
+  }
+
+  /**
+   * Reads the cells of every staged HFile and puts them into the table, in place of a bulk load
+   * @throws IOException If the files can't be read or the puts fail
+   */
+  private void putStagedCells() throws IOException {
+    List<Put> puts = new ArrayList<Put>();
+    for (FileStatus familyDir : fs.listStatus(stagingDir)) {
+      for (FileStatus file : fs.listStatus(familyDir.getPath())) {
+        HFile.Reader reader = HFile.createReader(fs, file.getPath(), cacheConf);
+        try {
+          reader.loadFileInfo();
+          HFileScanner scanner = reader.getScanner(false, false);
+          if (!scanner.seekTo()) {
+            continue;
+          }
+          Put p = null;
+          do {
+            KeyValue kv = scanner.getKeyValue();
+            if (p == null || !Bytes.equals(p.getRow(), kv.getRow())) {
+              p = new Put(kv.getRow());
+              puts.add(p);
+            }
+            p.add(kv);
+          } while (scanner.next());
+        } finally {
+          reader.close();
+        }
+      }
+    }
+    HTableBatch.batch(table, puts, 0, 0L);
+  }
+
+  /**
+   * Writes the buffered cells of each column family to a new HFile
+   * @throws IOException If a file can't be written, in which case its cells stay buffered
+   */
+  private void roll() throws IOException {
+    for (Map.Entry<byte[], TreeSet<KeyValue>> e : buffer.entrySet()) {
+      TreeSet<KeyValue> cells = e.getValue();
+      if (cells.isEmpty()) {
+        continue;
+      }
+
+      HColumnDescriptor family = families.get(e.getKey());
+      StoreFile.Writer writer = new StoreFile.WriterBuilder(hbaseConf, cacheConf, fs,
+          family.getBlocksize()).withOutputDir(new Path(stagingDir, family.getNameAsString()))
+          .withCompression(family.getCompression()).withBloomType(family.getBloomFilterType())
+          .withComparator(KeyValue.COMPARATOR).withMaxKeyCount(cells.size()).build();
+      boolean written = false;
+      try {
+        for (KeyValue kv : cells) {
+          writer.append(kv);
+        }
+        writer.appendFileInfo(StoreFile.BULKLOAD_TIME_KEY,
+          Bytes.toBytes(System.currentTimeMillis()));
+        writer.appendTrackedTimestampsToMetadata();
+        written = true;
+      } finally {
+        writer.close();
+        if (!written) {
+          // The cells stay buffered, to be written again by the next roll
+          fs.delete(writer.getPath(), false);
+        }
+      }
+      metrics.batch(cells.size(), 0);
+      stagedFiles++;
+      cells.clear();
+    }
+    bufferedBytes = 0;
+  }
+}
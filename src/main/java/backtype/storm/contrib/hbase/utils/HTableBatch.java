@@ -0,0 +1,151 @@
+package backtype.storm.contrib.hbase.utils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Row;
+import org.apache.log4j.Logger;
+
+/**
+ * Batch operations with per-action retries.
+ * <p>
+ * A batch spread over many regions can partially fail, for example when a region moves. Rather than
+ * failing, and replaying, the whole batch, only the failed actions are retried with exponential
+ * backoff.
+ */
+public final class HTableBatch {
+  private static final Logger LOG = Logger.getLogger(HTableBatch.class);
+
+  private HTableBatch() {
+  }
+
+  /**
+   * Applies the actions with {@link HTableInterface#batch(List, Object[])}, retrying the failed
+   * actions
+   * @param table The table
+   * @param actions The Gets, Puts or Deletes to apply
+   * @param maxRetries The maximum number of times to retry the failed actions
+   * @param backoffMillis The time to wait before the first retry, doubled for every retry after
+   * @return The results, in the same order as the actions
+   * @throws IOException If any action still fails after the last retry
+   */
+  public static Object[] batch(final HTableInterface table, final List<? extends Row> actions,
+      final int maxRetries, final long backoffMillis) throws IOException {
+    return batch(table, actions, maxRetries, backoffMillis, null);
+  }
+
+  /**
+   * Applies the actions with {@link HTableInterface#batch(List, Object[])}, retrying the failed
+   * actions
+   * @param table The table
+   * @param actions The Gets, Puts or Deletes to apply
+   * @param maxRetries The maximum number of times to retry the failed actions
+   * @param backoffMillis The time to wait before the first retry, doubled for every retry after
+   * @param metrics The {@link HBaseMetrics} the failed and retried actions are counted in, may be
+   *          null
+   * @return The results, in the same order as the actions
+   * @throws IOException If any action still fails after the last retry
+   */
+  public static Object[] batch(final HTableInterface table, final List<? extends Row> actions,
+      final int maxRetries, final long backoffMillis, final HBaseMetrics metrics)
+      throws IOException {
+    Object[] results = new Object[actions.size()];
+
+    List<Integer> pending = new ArrayList<Integer>(actions.size());
+    for (int i = 0; i < actions.size(); i++) {
+      pending.add(i);
+    }
+
+    for (int attempt = 0;; attempt++) {
+      List<Row> subset = new ArrayList<Row>(pending.size());
+      for (int i : pending) {
+        subset.add(actions.get(i));
+      }
+
+      Object[] subResults = new Object[subset.size()];
+      IOException error = null;
+      if (metrics != null) {
+        metrics.calls(1);
+      }
+      try {
+        table.batch(subset, subResults);
+      } catch (IOException ex) {
+        // Results are still set for the actions that succeeded
+        error = ex;
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted applying batch to HBase", ex);
+      }
+
+      List<Integer> failed = new ArrayList<Integer>();
+      for (int j = 0; j < subResults.length; j++) {
+        if (subResults[j] == null || subResults[j] instanceof Throwable) {
+          failed.add(pending.get(j));
+          if (error == null && subResults[j] instanceof Throwable) {
+            error = new IOException((Throwable) subResults[j]);
+          }
+        } else {
+          results[pending.get(j)] = subResults[j];
+        }
+      }
+
+      if (failed.isEmpty()) {
+        return results;
+      }
+      if (metrics != null) {
+        metrics.errors(failed.size());
+      }
+
+      if (attempt >= maxRetries) {
+        throw new IOException(String.format("%d of %d actions failed after %d retries",
+          failed.size(), actions.size(), attempt), error);
+      }
+
+      long backoff = backoffMillis << attempt;
+      LOG.warn(String.format("%d of %d actions failed, retrying them in %d ms", failed.size(),
+        actions.size(), backoff), error);
+
+      try {
+        Thread.sleep(backoff);
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted retrying batch", ex);
+      }
+      if (metrics != null) {
+        metrics.retries(failed.size());
+      }
+      pending = failed;
+    }
+  }
+
+  /**
+   * Splits the puts into consecutive chunks that are each within the pending mutation budget, so a
+   * batch over the budget can be written one chunk at a time. A put over the budget on its own is
+   * given a chunk of its own
+   * @param puts The puts
+   * @param conf The {@link TupleTableConfig} whose budget the chunks are kept within
+   * @return The chunks, in order, a single chunk if the puts are within the budget
+   */
+  public static List<List<Put>> split(final List<Put> puts, final TupleTableConfig conf) {
+    List<List<Put>> chunks = new ArrayList<List<Put>>();
+    List<Put> chunk = new ArrayList<Put>();
+    long bytes = 0;
+    for (Put p : puts) {
+      long heapSize = p.heapSize();
+      if (!chunk.isEmpty() && conf.isOverBudget(chunk.size() + 1, bytes + heapSize)) {
+        chunks.add(chunk);
+        chunk = new ArrayList<Put>();
+        bytes = 0;
+      }
+      chunk.add(p);
+      bytes += heapSize;
+    }
+    if (!chunk.isEmpty()) {
+      chunks.add(chunk);
+    }
+    return chunks;
+  }
+}
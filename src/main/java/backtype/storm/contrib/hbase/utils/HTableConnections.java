@@ -0,0 +1,129 @@
+package backtype.storm.contrib.hbase.utils;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.HTableDescriptor;
+import org.apache.hadoop.hbase.client.HConnection;
+import org.apache.hadoop.hbase.client.HConnectionManager;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.log4j.Logger;
+
+/**
+ * Worker-wide registry of HBase connections, shared by the bolts and Trident states in a worker.
+ * <p>
+ * Connections are keyed by cluster and table name and reference counted. Every
+ * {@link HTableConnector} for the same cluster gets the same {@link Configuration}, so its
+ * {@link HTable} shares one {@link HConnection} and its region location cache instead of parsing
+ * <tt>hbase-site.xml</tt> and warming up a cache of its own. The table descriptor used to validate
+ * the configured column families is fetched once per table. When the last connector for a table
+ * is closed its entry, and its hold on the connection, is released.
+ */
+public final class HTableConnections {
+  private static final Logger LOG = Logger.getLogger(HTableConnections.class);
+
+  private static final Map<String, SharedTable> TABLES = new HashMap<String, SharedTable>();
+  private static Configuration clusterConf;
+
+  private HTableConnections() {
+  }
+
+  /**
+   * Acquires a reference to the shared connection for the given table
+   * @param tableName The HBase table name
+   * @return The shared {@link Configuration} to create the table with
+   * @throws IOException If the connection to the cluster cannot be established
+   */
+  public static synchronized Configuration acquire(final String tableName) throws IOException {
+    Configuration conf = getClusterConf();
+    String key = key(conf, tableName);
+
+    SharedTable shared = TABLES.get(key);
+    if (shared == null) {
+      LOG.info(String.format("Initializing shared connection to HBase table %s at %s", tableName,
+        conf.get("hbase.rootdir")));
+
+      shared = new SharedTable(conf, HConnectionManager.getConnection(conf));
+      TABLES.put(key, shared);
+    }
+    shared.refCount++;
+    return shared.conf;
+  }
+
+  /**
+   * Returns the table's descriptor, fetching it from HBase on first use
+   * @param table The table, cached only if it was acquired through this registry
+   * @return The cached {@link HTableDescriptor}
+   * @throws IOException
+   */
+  public static synchronized HTableDescriptor getTableDescriptor(final HTableInterface table)
+      throws IOException {
+    SharedTable shared = TABLES.get(key(table.getConfiguration(), table));
+    if (shared == null) {
+      return table.getTableDescriptor();
+    }
+    if (shared.descriptor == null) {
+      shared.descriptor = table.getTableDescriptor();
+    }
+    return shared.descriptor;
+  }
+
+  /**
+   * Releases a reference acquired with {@link #acquire(String)}
+   * @param tableName The HBase table name
+   */
+  public static synchronized void release(final String tableName) {
+    String key = key(getClusterConf(), tableName);
+    SharedTable shared = TABLES.get(key);
+    if (shared == null) {
+      return;
+    }
+
+    if (--shared.refCount <= 0) {
+      TABLES.remove(key);
+      try {
+        shared.connection.close();
+      } catch (IOException ex) {
+        LOG.error("Unable to release shared connection for HBase table " + tableName, ex);
+      }
+    }
+  }
+
+  private static Configuration getClusterConf() {
+    if (clusterConf == null) {
+      clusterConf = HBaseConfiguration.create();
+    }
+    return clusterConf;
+  }
+
+  private static String key(final Configuration conf, final HTableInterface table) {
+    return key(conf, Bytes.toString(table.getTableName()));
+  }
+
+  private static String key(final Configuration conf, final String tableName) {
+    return conf.get(HConstants.ZOOKEEPER_QUORUM) + ":"
+        + conf.get(HConstants.ZOOKEEPER_CLIENT_PORT) + ":"
+        + conf.get(HConstants.ZOOKEEPER_ZNODE_PARENT) + "/" + tableName;
+  }
+
+  /**
+   * A connection shared by all the connectors for a table
+   */
+  private static class SharedTable {
+    final Configuration conf;
+    final HConnection connection;
+    HTableDescriptor descriptor;
+    int refCount;
+
+    SharedTable(final Configuration conf, final HConnection connection) {
+      this.conf = conf;
+      this.connection = connection;
+    }
+  }
+}
@@ -1,11 +1,14 @@
 package backtype.storm.contrib.hbase.utils;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.Serializable;
+import java.util.Collections;
+import java.util.List;
 
-import org.apache.hadoop.conf.Configuration;
-import org.apache.hadoop.hbase.HBaseConfiguration;
 import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.Put;
 import org.apache.hadoop.hbase.util.Bytes;
 import org.apache.log4j.Logger;
 
@@ -14,15 +17,18 @@ import backtype.storm.generated.Bolt;
 /**
  * HTable connector for Storm {@link Bolt}
  * <p>
- * The HBase configuration is picked up from the first <tt>hbase-site.xml</tt> encountered in the
- * classpath
+ * The table is created by the {@link HTableFactory} of the {@link TupleTableConfig}. By default
+ * that is a {@link HTable}, whose HBase configuration is picked up from the first
+ * <tt>hbase-site.xml</tt> encountered in the classpath. Connectors in the same worker share their
+ * connection to the cluster through {@link HTableConnections}, but each has its own table and
+ * write buffer
  */
 @SuppressWarnings("serial")
-public class HTableConnector implements Serializable {
+public class HTableConnector implements Serializable, Closeable {
   private static final Logger LOG = Logger.getLogger(HTableConnector.class);
 
-  private Configuration conf;
-  protected HTable table;
+  private final HTableFactory factory;
+  protected HTableInterface table;
   private String tableName;
 
   /**
@@ -32,40 +38,27 @@ public class HTableConnector implements Serializable {
    */
   public HTableConnector(final TupleTableConfig conf) throws IOException {
     this.tableName = conf.getTableName();
-    this.conf = HBaseConfiguration.create();
-
-    LOG.info(String.format("Initializing connection to HBase table %s at %s", tableName,
-      this.conf.get("hbase.rootdir")));
+    this.factory = conf.getTableFactory();
 
     try {
-      this.table = new HTable(this.conf, this.tableName);
+      this.table = this.factory.createTable(conf);
     } catch (IOException ex) {
       throw new IOException("Unable to establish connection to HBase table " + this.tableName, ex);
     }
 
-    if (conf.isBatch()) {
-      // Enable client-side write buffer
-      this.table.setAutoFlush(false, true);
-      LOG.info("Enabled client-side write buffer");
-    }
-
-    // If set, override write buffer size
-    if (conf.getWriteBufferSize() > 0) {
-      try {
-        this.table.setWriteBufferSize(conf.getWriteBufferSize());
-
-        LOG.info("Setting client-side write buffer to " + conf.getWriteBufferSize());
-      } catch (IOException ex) {
-        LOG.error("Unable to set client-side write buffer size for HBase table " + this.tableName,
-          ex);
+    // Check the configured column families exist, releasing the table if they don't
+    boolean checked = false;
+    try {
+      for (String cf : conf.getColumnFamilies()) {
+        if (!columnFamilyExists(cf)) {
+          throw new RuntimeException(String.format(
+            "HBase table '%s' does not have column family '%s'", conf.getTableName(), cf));
+        }
       }
-    }
-
-    // Check the configured column families exist
-    for (String cf : conf.getColumnFamilies()) {
-      if (!columnFamilyExists(cf)) {
-        throw new RuntimeException(String.format(
-          "HBase table '%s' does not have column family '%s'", conf.getTableName(), cf));
+      checked = true;
+    } finally {
+      if (!checked) {
+        close();
       }
     }
   }
@@ -77,22 +70,46 @@ public class HTableConnector implements Serializable {
    * @throws IOException
    */
   private boolean columnFamilyExists(final String columnFamily) throws IOException {
-    return this.table.getTableDescriptor().hasFamily(Bytes.toBytes(columnFamily));
+    return HTableConnections.getTableDescriptor(this.table).hasFamily(Bytes.toBytes(columnFamily));
   }
 
   /**
    * @return the table
    */
-  public HTable getTable() {
+  public HTableInterface getTable() {
     return table;
   }
 
+  /**
+   * Returns the puts held in the table's client-side write buffer. Only {@link HTable} and
+   * {@link MemoryHTable} expose their write buffer; for other tables the buffer always looks empty,
+   * as if every put was sent straight away
+   * @return The puts in the write buffer
+   */
+  public List<Put> getWriteBuffer() {
+    if (table instanceof HTable) {
+      return ((HTable) table).getWriteBuffer();
+    }
+    if (table instanceof MemoryHTable) {
+      return ((MemoryHTable) table).getWriteBuffer();
+    }
+    return Collections.emptyList();
+  }
+
+  /**
+   * @return the table name
+   */
+  public String getTableName() {
+    return tableName;
+  }
+
   /**
    * Close the table
    */
+  @Override
   public void close() {
     try {
-      this.table.close();
+      this.factory.releaseTable(this.table);
     } catch (IOException ex) {
       LOG.error("Unable to close connection to HBase table " + tableName, ex);
     }
@@ -0,0 +1,66 @@
+package backtype.storm.contrib.hbase.utils;
+
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.log4j.Logger;
+
+/**
+ * Built-in {@link HTableFactory}s
+ */
+public enum HTableFactories implements HTableFactory {
+  /**
+   * Creates a {@link HTable} on the cluster in the first <tt>hbase-site.xml</tt> found in the
+   * classpath, sharing the connection to the cluster through {@link HTableConnections}.
+   * <p>
+   * This is the default factory
+   */
+  HTABLE {
+    @Override
+    public HTableInterface createTable(final TupleTableConfig conf) throws IOException {
+      String tableName = conf.getTableName();
+
+      Configuration hbaseConf = HTableConnections.acquire(tableName);
+      HTable table;
+      try {
+        table = new HTable(hbaseConf, tableName);
+      } catch (IOException ex) {
+        HTableConnections.release(tableName);
+        throw ex;
+      }
+
+      if (conf.isBatch()) {
+        // Enable client-side write buffer
+        table.setAutoFlush(false, true);
+        LOG.info("Enabled client-side write buffer");
+      }
+
+      // If set, override write buffer size
+      if (conf.getWriteBufferSize() > 0) {
+        try {
+          table.setWriteBufferSize(conf.getWriteBufferSize());
+
+          LOG.info("Setting client-side write buffer to " + conf.getWriteBufferSize());
+        } catch (IOException ex) {
+          LOG.error("Unable to set client-side write buffer size for HBase table " + tableName,
+            ex);
+        }
+      }
+      return table;
+    }
+
+    @Override
+    public void releaseTable(final HTableInterface table) throws IOException {
+      try {
+        table.close();
+      } finally {
+        HTableConnections.release(Bytes.toString(table.getTableName()));
+      }
+    }
+  };
+
+  private static final Logger LOG = Logger.getLogger(HTableFactories.class);
+}
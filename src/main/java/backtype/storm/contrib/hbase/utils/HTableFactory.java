@@ -0,0 +1,34 @@
+package backtype.storm.contrib.hbase.utils;
+
+import java.io.IOException;
+import java.io.Serializable;
+
+import org.apache.hadoop.hbase.client.HTableInterface;
+
+/**
+ * Creates the tables the bolts and Trident states read from and write to.
+ * <p>
+ * Set with {@link TupleTableConfig#setTableFactory(HTableFactory)}, so the same topology can run
+ * against a HBase cluster or, e.g. for tests and load tests, an in-memory table. A factory is
+ * serialized with the topology and called in the workers, once for each {@link HTableConnector}.
+ * @see HTableFactories
+ * @see MemoryHTableFactory
+ */
+public interface HTableFactory extends Serializable {
+  /**
+   * Creates a table, with its client-side write buffer set up as configured by
+   * {@link TupleTableConfig#isBatch()} and {@link TupleTableConfig#getWriteBufferSize()}
+   * @param conf The {@link TupleTableConfig}
+   * @return The table
+   * @throws IOException If the table cannot be reached
+   */
+  HTableInterface createTable(TupleTableConfig conf) throws IOException;
+
+  /**
+   * Flushes and closes a table returned by {@link #createTable(TupleTableConfig)}, releasing any
+   * resources held for it
+   * @param table The table
+   * @throws IOException If the table's write buffer cannot be flushed
+   */
+  void releaseTable(HTableInterface table) throws IOException;
+}
@@ -0,0 +1,123 @@
+package backtype.storm.contrib.hbase.utils;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A fixed-size histogram of non-negative long values, such as latencies or batch sizes.
+ * <p>
+ * Values are counted in buckets that split each power of two into eight, so a recorded value costs
+ * a few bit operations and an array increment, and the reported percentiles are within 12.5% of
+ * the exact value. The maximum and mean are exact.
+ * <p>
+ * Not thread-safe.
+ */
+public class Histogram {
+  // Each power of two from 8 up is split into 2^SUB_BITS buckets; values below 8 have their own
+  private static final int SUB_BITS = 3;
+  private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+  private final long[] counts = new long[(64 - SUB_BITS) * SUB_BUCKETS];
+  private long count;
+  private long sum;
+  private long max;
+
+  /**
+   * @param value The value to record, negative values are recorded as 0
+   */
+  public void record(final long value) {
+    long v = value < 0 ? 0 : value;
+    counts[bucket(v)]++;
+    count++;
+    sum += v;
+    if (v > max) {
+      max = v;
+    }
+  }
+
+  /**
+   * @param p The percentile, between 0 and 1
+   * @return The largest value of the bucket holding the percentile, or 0 if nothing was recorded
+   */
+  public long percentile(final double p) {
+    if (count == 0) {
+      return 0;
+    }
+
+    long rank = Math.max(1, (long) Math.ceil(p * count));
+    long seen = 0;
+    for (int i = 0; i < counts.length; i++) {
+      seen += counts[i];
+      if (seen >= rank) {
+        return Math.min(upperBound(i), max);
+      }
+    }
+    return max;
+  }
+
+  /**
+   * @return The number of values recorded
+   */
+  public long getCount() {
+    return count;
+  }
+
+  /**
+   * @return The mean of the values recorded, or 0 if nothing was recorded
+   */
+  public double getMean() {
+    return count == 0 ? 0 : (double) sum / count;
+  }
+
+  /**
+   * @return The largest value recorded
+   */
+  public long getMax() {
+    return max;
+  }
+
+  /**
+   * @return The count, mean, median, 99th percentile and maximum, keyed by name
+   */
+  public Map<String, Object> summary() {
+    Map<String, Object> m = new HashMap<String, Object>();
+    m.put("count", count);
+    m.put("mean", getMean());
+    m.put("p50", percentile(0.5));
+    m.put("p99", percentile(0.99));
+    m.put("max", max);
+    return m;
+  }
+
+  /**
+   * Forgets every value recorded
+   */
+  public void reset() {
+    if (count == 0) {
+      return;
+    }
+    Arrays.fill(counts, 0);
+    count = 0;
+    sum = 0;
+    max = 0;
+  }
+
+  private static int bucket(final long v) {
+    if (v < SUB_BUCKETS) {
+      return (int) v;
+    }
+    int exp = 63 - Long.numberOfLeadingZeros(v);
+    int sub = (int) (v >>> (exp - SUB_BITS)) & (SUB_BUCKETS - 1);
+    return (exp - SUB_BITS + 1) * SUB_BUCKETS + sub;
+  }
+
+  private static long upperBound(final int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+    int exp = bucket / SUB_BUCKETS + SUB_BITS - 1;
+    long sub = bucket % SUB_BUCKETS;
+    return ((SUB_BUCKETS + sub + 1) << (exp - SUB_BITS)) - 1;
+  }
+}
@@ -0,0 +1,292 @@
+package backtype.storm.contrib.hbase.utils;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.hadoop.hbase.util.Bytes;
+
+import storm.trident.tuple.TridentTuple;
+import backtype.storm.tuple.Fields;
+import backtype.storm.tuple.Tuple;
+
+/**
+ * An immutable, pre-compiled mapping from tuple fields to HBase columns.
+ * <p>
+ * Compiled once from a {@link TupleTableConfig} so the per-tuple path doesn't walk the configured
+ * column families or re-encode family and qualifier names. Field indexes are resolved against the
+ * {@link Fields} of each incoming stream and cached, so values are read by position rather than
+ * looked up by name.
+ */
+public final class MappingPlan {
+  /** Field index for a column qualifier that isn't a tuple field */
+  public static final int NOT_A_FIELD = -1;
+
+  private final String rowKeyField;
+  private final String timestampField;
+  private final String[] rowKeyFields;
+  private final ValueCodec[] rowKeyCodecs;
+  private final RowKeyStrategy rowKeyStrategy;
+  private final byte[][] families;
+  private final byte[][] qualifiers;
+  private final String[] qualifierNames;
+  private final ValueCodec[] codecs;
+
+  // Field indexes resolved against each stream's Fields. Copied on write, as streams are few
+  private volatile Map<Fields, Resolved> resolved = new IdentityHashMap<Fields, Resolved>();
+
+  MappingPlan(final String rowKeyField, final String timestampField,
+      final Map<String, Set<String>> columnFamilies, final ValueCodec rowKeyCodec,
+      final Map<String, ValueCodec> columnCodecs, final Map<String, ValueCodec> rowKeySuffixes,
+      final RowKeyStrategy rowKeyStrategy) {
+    this.rowKeyField = rowKeyField;
+    this.timestampField = timestampField;
+    this.rowKeyStrategy = rowKeyStrategy;
+
+    // The row key field, followed by the fields of a composite row key
+    this.rowKeyFields = new String[1 + rowKeySuffixes.size()];
+    this.rowKeyCodecs = new ValueCodec[rowKeyFields.length];
+    rowKeyFields[0] = rowKeyField;
+    rowKeyCodecs[0] = rowKeyCodec;
+    int k = 1;
+    for (Map.Entry<String, ValueCodec> e : rowKeySuffixes.entrySet()) {
+      rowKeyFields[k] = e.getKey();
+      rowKeyCodecs[k++] = e.getValue();
+    }
+
+    List<byte[]> fams = new ArrayList<byte[]>();
+    List<String> quals = new ArrayList<String>();
+    List<ValueCodec> colCodecs = new ArrayList<ValueCodec>();
+    for (Map.Entry<String, Set<String>> e : columnFamilies.entrySet()) {
+      byte[] cf = Bytes.toBytes(e.getKey());
+      for (String cq : e.getValue()) {
+        ValueCodec codec = columnCodecs.get(TupleTableConfig.columnKey(e.getKey(), cq));
+        fams.add(cf);
+        quals.add(cq);
+        colCodecs.add(codec == null ? ValueCodecs.STRING : codec);
+      }
+    }
+
+    this.families = fams.toArray(new byte[fams.size()][]);
+    this.codecs = colCodecs.toArray(new ValueCodec[colCodecs.size()]);
+    this.qualifierNames = quals.toArray(new String[quals.size()]);
+    this.qualifiers = new byte[qualifierNames.length][];
+    for (int i = 0; i < qualifierNames.length; i++) {
+      this.qualifiers[i] = Bytes.toBytes(qualifierNames[i]);
+    }
+  }
+
+  /**
+   * @return The number of mapped columns
+   */
+  public int size() {
+    return families.length;
+  }
+
+  /**
+   * @param i The column index
+   * @return The column family of the i'th column
+   */
+  public byte[] family(int i) {
+    return families[i];
+  }
+
+  /**
+   * @param i The column index
+   * @return The column qualifier of the i'th column
+   */
+  public byte[] qualifier(int i) {
+    return qualifiers[i];
+  }
+
+  /**
+   * @param i The column index
+   * @return The name of the tuple field holding the i'th column's value
+   */
+  public String field(int i) {
+    return qualifierNames[i];
+  }
+
+  /**
+   * @param field The name of a tuple field
+   * @return The index of the column holding the field's value, or {@link #NOT_A_FIELD}
+   */
+  public int indexOf(String field) {
+    for (int i = 0; i < qualifierNames.length; i++) {
+      if (qualifierNames[i].equals(field)) {
+        return i;
+      }
+    }
+    return NOT_A_FIELD;
+  }
+
+  /**
+   * @param i The column index
+   * @return The {@link ValueCodec} of the i'th column
+   */
+  public ValueCodec codec(int i) {
+    return codecs[i];
+  }
+
+  /**
+   * @param i The column index
+   * @param value The tuple value
+   * @return The value encoded with the i'th column's {@link ValueCodec}
+   */
+  public byte[] encode(int i, Object value) {
+    return codecs[i].encode(value);
+  }
+
+  /**
+   * @param i The column index
+   * @param value The stored value, may be null
+   * @return The value decoded with the i'th column's {@link ValueCodec}, or null
+   */
+  public Object decode(int i, byte[] value) {
+    return value == null ? null : codecs[i].decode(value);
+  }
+
+  /**
+   * Encodes the row key fields with their codecs, concatenates them and applies the
+   * {@link RowKeyStrategy}
+   * @param values The values of the row key fields, in order
+   * @return The row key
+   */
+  public byte[] encodeRowKey(Object[] values) {
+    byte[] key = rowKeyCodecs[0].encode(values[0]);
+    for (int k = 1; k < rowKeyCodecs.length; k++) {
+      key = Bytes.add(key, rowKeyCodecs[k].encode(values[k]));
+    }
+    return rowKeyStrategy.toRowKey(key);
+  }
+
+  /**
+   * @param tuple The {@link Tuple}
+   * @return The tuple's row key
+   */
+  public byte[] rowKey(final Tuple tuple) {
+    return rowKey(tuple.getFields(), tuple.getValues());
+  }
+
+  /**
+   * @param fields The {@link Fields} of the values, e.g. of a stream being grouped
+   * @param values The tuple values
+   * @return The row key for the values
+   */
+  public byte[] rowKey(final Fields fields, final List<Object> values) {
+    int[] parts = resolve(fields).rowKeyParts;
+    Object[] keyValues = new Object[parts.length];
+    for (int k = 0; k < parts.length; k++) {
+      keyValues[k] = values.get(parts[k]);
+    }
+    return encodeRowKey(keyValues);
+  }
+
+  /**
+   * @param tuple The {@link TridentTuple}
+   * @return The tuple's row key
+   */
+  public byte[] rowKey(final TridentTuple tuple) {
+    Object[] values = new Object[rowKeyFields.length];
+    for (int k = 0; k < rowKeyFields.length; k++) {
+      values[k] = tuple.getValueByField(rowKeyFields[k]);
+    }
+    return encodeRowKey(values);
+  }
+
+  /**
+   * @return The tuple field used to set the row key
+   */
+  public String getRowKeyField() {
+    return rowKeyField;
+  }
+
+  /**
+   * @return True if a tuple field is used to set the timestamp
+   */
+  public boolean hasTimestamp() {
+    return !timestampField.equals("");
+  }
+
+  /**
+   * @return The tuple field used to set the timestamp
+   */
+  public String getTimestampField() {
+    return timestampField;
+  }
+
+  /**
+   * Resolves the field indexes for the given tuple. The result is cached against the tuple's
+   * {@link Fields}, which are shared by all tuples of a stream
+   * @param tuple The {@link Tuple}
+   * @return The resolved field indexes
+   */
+  public Resolved resolve(final Tuple tuple) {
+    return resolve(tuple.getFields());
+  }
+
+  /**
+   * @param fields The tuple {@link Fields}
+   * @return The resolved field indexes
+   */
+  public Resolved resolve(final Fields fields) {
+    Resolved r = resolved.get(fields);
+    if (r == null) {
+      r = new Resolved(fields);
+      synchronized (this) {
+        Map<Fields, Resolved> copy = new IdentityHashMap<Fields, Resolved>(resolved);
+        copy.put(fields, r);
+        resolved = copy;
+      }
+    }
+    return r;
+  }
+
+  /**
+   * Field indexes of a {@link MappingPlan} resolved against a set of tuple {@link Fields}
+   */
+  public final class Resolved {
+    private final int rowKey;
+    private final int[] rowKeyParts;
+    private final int timestamp;
+    private final int[] columns;
+
+    private Resolved(final Fields fields) {
+      this.rowKey = fields.fieldIndex(rowKeyField);
+      this.rowKeyParts = new int[rowKeyFields.length];
+      for (int k = 0; k < rowKeyFields.length; k++) {
+        rowKeyParts[k] = fields.fieldIndex(rowKeyFields[k]);
+      }
+      this.timestamp = hasTimestamp() ? fields.fieldIndex(timestampField) : NOT_A_FIELD;
+      this.columns = new int[qualifierNames.length];
+      for (int i = 0; i < qualifierNames.length; i++) {
+        columns[i] = fields.contains(qualifierNames[i]) ? fields.fieldIndex(qualifierNames[i])
+            : NOT_A_FIELD;
+      }
+    }
+
+    /**
+     * @return The index of the row key field
+     */
+    public int rowKey() {
+      return rowKey;
+    }
+
+    /**
+     * @return The index of the timestamp field, or {@link MappingPlan#NOT_A_FIELD}
+     */
+    public int timestamp() {
+      return timestamp;
+    }
+
+    /**
+     * @param i The column index
+     * @return The index of the i'th column's field, or {@link MappingPlan#NOT_A_FIELD}
+     */
+    public int column(int i) {
+      return columns[i];
+    }
+  }
+}
@@ -0,0 +1,549 @@
+package backtype.storm.contrib.hbase.utils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.DoNotRetryIOException;
+import org.apache.hadoop.hbase.HTableDescriptor;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Append;
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.Increment;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.RetriesExhaustedWithDetailsException;
+import org.apache.hadoop.hbase.client.Row;
+import org.apache.hadoop.hbase.client.RowLock;
+import org.apache.hadoop.hbase.client.RowMutations;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.client.coprocessor.Batch;
+import org.apache.hadoop.hbase.ipc.CoprocessorProtocol;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * A {@link HTableInterface} over a {@link MemoryTable}, for running the bolts and Trident states
+ * without a HBase cluster.
+ * <p>
+ * Like {@link org.apache.hadoop.hbase.client.HTable} it has a client-side write buffer, used when
+ * auto flush is off, and each call that would be a round trip to the cluster, i.e. every get,
+ * unbuffered put, increment, batch, flush of the write buffer and fetch of scanner rows, takes at
+ * least the injected latency. Puts in a batch bypass the write buffer, as they do in HTable.
+ * <p>
+ * The underlying {@link MemoryTable} is thread-safe, but like HTable the write buffer is meant to
+ * be used by one thread at a time.
+ */
+public class MemoryHTable implements HTableInterface {
+  private static final String HOST = "memory";
+
+  private final MemoryTable table;
+  private final Configuration conf;
+  private final long latencyNanos;
+
+  private final ArrayList<Put> writeBuffer = new ArrayList<Put>();
+  private long currentWriteBufferSize;
+  private long writeBufferSize;
+  private boolean autoFlush = true;
+  private boolean clearBufferOnFail = true;
+
+  /**
+   * @param table The {@link MemoryTable}
+   * @param conf The configuration, read for the write buffer size and scanner caching
+   * @param latencyMicros The minimum time in microseconds each call to the table takes, 0 for none
+   */
+  public MemoryHTable(final MemoryTable table, final Configuration conf,
+      final long latencyMicros) {
+    this.table = table;
+    this.conf = conf;
+    this.latencyNanos = TimeUnit.MICROSECONDS.toNanos(latencyMicros);
+    this.writeBufferSize = conf.getLong("hbase.client.write.buffer", 2097152L);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public byte[] getTableName() {
+    return Bytes.toBytes(table.getName());
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public Configuration getConfiguration() {
+    return conf;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public HTableDescriptor getTableDescriptor() throws IOException {
+    return new HTableDescriptor(table.getTableDescriptor());
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public boolean exists(final Get get) throws IOException {
+    return !get(get).isEmpty();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void batch(final List<? extends Row> actions, final Object[] results)
+      throws IOException, InterruptedException {
+    call();
+
+    List<Throwable> errors = new ArrayList<Throwable>();
+    List<Row> failed = new ArrayList<Row>();
+    List<String> hosts = new ArrayList<String>();
+    for (int i = 0; i < actions.size(); i++) {
+      try {
+        results[i] = apply(actions.get(i));
+      } catch (IOException ex) {
+        results[i] = ex;
+        errors.add(ex);
+        failed.add(actions.get(i));
+        hosts.add(HOST);
+      }
+    }
+    if (!errors.isEmpty()) {
+      throw new RetriesExhaustedWithDetailsException(errors, failed, hosts);
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public Object[] batch(final List<? extends Row> actions) throws IOException,
+      InterruptedException {
+    Object[] results = new Object[actions.size()];
+    batch(actions, results);
+    return results;
+  }
+
+  /**
+   * Applies the actions as {@link #batch(List, Object[])} does, then passes each successful result
+   * to the callback
+   */
+  @SuppressWarnings("unchecked")
+  public <R> void batchCallback(final List<? extends Row> actions, final Object[] results,
+      final Batch.Callback<R> callback) throws IOException, InterruptedException {
+    try {
+      batch(actions, results);
+    } finally {
+      for (int i = 0; i < results.length; i++) {
+        if (results[i] != null && !(results[i] instanceof Throwable)) {
+          callback.update(getTableName(), actions.get(i).getRow(), (R) results[i]);
+        }
+      }
+    }
+  }
+
+  /**
+   * Applies the actions as {@link #batch(List)} does, then passes each successful result to the
+   * callback
+   */
+  public <R> Object[] batchCallback(final List<? extends Row> actions,
+      final Batch.Callback<R> callback) throws IOException, InterruptedException {
+    Object[] results = new Object[actions.size()];
+    batchCallback(actions, results, callback);
+    return results;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public Result get(final Get get) throws IOException {
+    call();
+    return table.get(get);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public Result[] get(final List<Get> gets) throws IOException {
+    call();
+    Result[] results = new Result[gets.size()];
+    for (int i = 0; i < results.length; i++) {
+      results[i] = table.get(gets.get(i));
+    }
+    return results;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public Result getRowOrBefore(final byte[] row, final byte[] family) throws IOException {
+    call();
+    return table.getRowOrBefore(row, family);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public ResultScanner getScanner(final Scan scan) throws IOException {
+    call();
+    int caching = scan.getCaching() > 0 ? scan.getCaching()
+        : conf.getInt("hbase.client.scanner.caching", 1);
+    return new MemoryScanner(table.scan(scan), caching);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public ResultScanner getScanner(final byte[] family) throws IOException {
+    Scan scan = new Scan();
+    scan.addFamily(family);
+    return getScanner(scan);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public ResultScanner getScanner(final byte[] family, final byte[] qualifier)
+      throws IOException {
+    Scan scan = new Scan();
+    scan.addColumn(family, qualifier);
+    return getScanner(scan);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public synchronized void put(final Put put) throws IOException {
+    if (put.isEmpty()) {
+      throw new IllegalArgumentException("No columns to insert");
+    }
+    if (autoFlush) {
+      call();
+      table.put(put);
+      return;
+    }
+
+    writeBuffer.add(put);
+    currentWriteBufferSize += put.heapSize();
+    if (currentWriteBufferSize > writeBufferSize) {
+      flushCommits();
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public synchronized void put(final List<Put> puts) throws IOException {
+    if (autoFlush) {
+      call();
+      for (Put put : puts) {
+        table.put(put);
+      }
+      return;
+    }
+
+    for (Put put : puts) {
+      writeBuffer.add(put);
+      currentWriteBufferSize += put.heapSize();
+    }
+    if (currentWriteBufferSize > writeBufferSize) {
+      flushCommits();
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public boolean checkAndPut(final byte[] row, final byte[] family, final byte[] qualifier,
+      final byte[] value, final Put put) throws IOException {
+    call();
+    return table.checkAndMutate(row, family, qualifier, value, put);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void delete(final Delete delete) throws IOException {
+    call();
+    table.delete(delete);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void delete(final List<Delete> deletes) throws IOException {
+    call();
+    // As with HTable, the deletes that were applied are removed from the list
+    Iterator<Delete> it = deletes.iterator();
+    while (it.hasNext()) {
+      table.delete(it.next());
+      it.remove();
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public boolean checkAndDelete(final byte[] row, final byte[] family, final byte[] qualifier,
+      final byte[] value, final Delete delete) throws IOException {
+    call();
+    return table.checkAndMutate(row, family, qualifier, value, delete);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void mutateRow(final RowMutations rm) throws IOException {
+    call();
+    table.mutateRow(rm);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public Result append(final Append append) throws IOException {
+    call();
+    return table.append(append);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public Result increment(final Increment increment) throws IOException {
+    call();
+    return table.increment(increment);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public long incrementColumnValue(final byte[] row, final byte[] family, final byte[] qualifier,
+      final long amount) throws IOException {
+    Increment inc = new Increment(row);
+    inc.addColumn(family, qualifier, amount);
+    return Bytes.toLong(increment(inc).getValue(family, qualifier));
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public long incrementColumnValue(final byte[] row, final byte[] family, final byte[] qualifier,
+      final long amount, final boolean writeToWAL) throws IOException {
+    return incrementColumnValue(row, family, qualifier, amount);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public synchronized boolean isAutoFlush() {
+    return autoFlush;
+  }
+
+  /**
+   * @param autoFlush Whether puts are sent straight away, or collected in the write buffer
+   */
+  public synchronized void setAutoFlush(final boolean autoFlush) {
+    setAutoFlush(autoFlush, autoFlush);
+  }
+
+  /**
+   * @param autoFlush Whether puts are sent straight away, or collected in the write buffer
+   * @param clearBufferOnFail Whether the write buffer is cleared when a flush fails
+   */
+  public synchronized void setAutoFlush(final boolean autoFlush,
+      final boolean clearBufferOnFail) {
+    this.autoFlush = autoFlush;
+    this.clearBufferOnFail = autoFlush || clearBufferOnFail;
+  }
+
+  /**
+   * @return The heap size at which the write buffer is flushed
+   */
+  public synchronized long getWriteBufferSize() {
+    return writeBufferSize;
+  }
+
+  /**
+   * @param writeBufferSize The heap size at which the write buffer is flushed
+   * @throws IOException If the write buffer is flushed and the flush fails
+   */
+  public synchronized void setWriteBufferSize(final long writeBufferSize) throws IOException {
+    this.writeBufferSize = writeBufferSize;
+    if (currentWriteBufferSize > writeBufferSize) {
+      flushCommits();
+    }
+  }
+
+  /**
+   * @return The puts in the write buffer, as {@link org.apache.hadoop.hbase.client.HTable}
+   *         exposes them
+   */
+  public synchronized ArrayList<Put> getWriteBuffer() {
+    return writeBuffer;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public synchronized void flushCommits() throws IOException {
+    if (writeBuffer.isEmpty()) {
+      return;
+    }
+
+    call();
+    int applied = 0;
+    try {
+      for (Put put : writeBuffer) {
+        table.put(put);
+        applied++;
+      }
+    } finally {
+      if (clearBufferOnFail || applied == writeBuffer.size()) {
+        writeBuffer.clear();
+        currentWriteBufferSize = 0;
+      } else {
+        List<Put> unapplied = new ArrayList<Put>(writeBuffer.subList(applied, writeBuffer.size()));
+        writeBuffer.clear();
+        writeBuffer.addAll(unapplied);
+        currentWriteBufferSize = 0;
+        for (Put put : writeBuffer) {
+          currentWriteBufferSize += put.heapSize();
+        }
+      }
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void close() throws IOException {
+    flushCommits();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public RowLock lockRow(final byte[] row) throws IOException {
+    throw new UnsupportedOperationException("Row locks are not supported by in-memory tables");
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void unlockRow(final RowLock rl) throws IOException {
+    throw new UnsupportedOperationException("Row locks are not supported by in-memory tables");
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public <T extends CoprocessorProtocol> T coprocessorProxy(final Class<T> protocol,
+      final byte[] row) {
+    throw new UnsupportedOperationException("Coprocessors are not supported by in-memory tables");
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public <T extends CoprocessorProtocol, R> Map<byte[], R> coprocessorExec(
+      final Class<T> protocol, final byte[] startKey, final byte[] endKey,
+      final Batch.Call<T, R> callable) throws IOException, Throwable {
+    throw new UnsupportedOperationException("Coprocessors are not supported by in-memory tables");
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public <T extends CoprocessorProtocol, R> void coprocessorExec(final Class<T> protocol,
+      final byte[] startKey, final byte[] endKey, final Batch.Call<T, R> callable,
+      final Batch.Callback<R> callback) throws IOException, Throwable {
+    throw new UnsupportedOperationException("Coprocessors are not supported by in-memory tables");
+  }
+
+  private Object apply(final Row action) throws IOException {
+    if (action instanceof Get) {
+      return table.get((Get) action);
+    } else if (action instanceof Put) {
+      table.put((Put) action);
+    } else if (action instanceof Delete) {
+      table.delete((Delete) action);
+    } else if (action instanceof Increment) {
+      return table.increment((Increment) action);
+    } else if (action instanceof Append) {
+      return table.append((Append) action);
+    } else if (action instanceof RowMutations) {
+      table.mutateRow((RowMutations) action);
+    } else {
+      throw new DoNotRetryIOException("Unsupported action " + action.getClass().getName());
+    }
+    return new Result(new ArrayList<KeyValue>());
+  }
+
+  /**
+   * Waits out the injected latency of a call
+   */
+  private void call() {
+    if (latencyNanos <= 0) {
+      return;
+    }
+    long deadline = System.nanoTime() + latencyNanos;
+    for (long left = latencyNanos; left > 0; left = deadline - System.nanoTime()) {
+      LockSupport.parkNanos(left);
+    }
+  }
+
+  /**
+   * Fetches rows lazily, with the injected latency for every <tt>caching</tt> rows after the first
+   */
+  private class MemoryScanner implements ResultScanner {
+    private final Iterator<Result> rows;
+    private final int caching;
+    private int fetched;
+    private boolean closed;
+
+    MemoryScanner(final Iterator<Result> rows, final int caching) {
+      this.rows = rows;
+      this.caching = caching;
+    }
+
+    @Override
+    public Result next() throws IOException {
+      if (closed || !rows.hasNext()) {
+        return null;
+      }
+      if (fetched > 0 && fetched % caching == 0) {
+        call();
+      }
+      fetched++;
+      return rows.next();
+    }
+
+    @Override
+    public Result[] next(final int nbRows) throws IOException {
+      List<Result> results = new ArrayList<Result>(nbRows);
+      for (int i = 0; i < nbRows; i++) {
+        Result r = next();
+        if (r == null) {
+          break;
+        }
+        results.add(r);
+      }
+      return results.toArray(new Result[results.size()]);
+    }
+
+    @Override
+    public Iterator<Result> iterator() {
+      return new Iterator<Result>() {
+        private Result next;
+
+        @Override
+        public boolean hasNext() {
+          if (next == null) {
+            try {
+              next = MemoryScanner.this.next();
+            } catch (IOException ex) {
+              throw new RuntimeException(ex);
+            }
+          }
+          return next != null;
+        }
+
+        @Override
+        public Result next() {
+          if (!hasNext()) {
+            throw new NoSuchElementException();
+          }
+          Result r = next;
+          next = null;
+          return r;
+        }
+
+        @Override
+        public void remove() {
+          throw new UnsupportedOperationException();
+        }
+      };
+    }
+
+    @Override
+    public void close() {
+      closed = true;
+    }
+  }
+}
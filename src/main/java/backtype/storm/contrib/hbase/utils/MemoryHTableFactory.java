@@ -0,0 +1,62 @@
+package backtype.storm.contrib.hbase.utils;
+
+import java.io.IOException;
+
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.TableNotFoundException;
+import org.apache.hadoop.hbase.client.HTableInterface;
+
+/**
+ * Creates {@link MemoryHTable}s over the {@link MemoryTable}s in the worker's JVM, so topologies
+ * can be run without a HBase cluster, e.g. in a <tt>LocalCluster</tt>.
+ * <p>
+ * The tables must be created with {@link MemoryTable#create(String, String...)} before the
+ * topology is submitted. Each call to a table can be given a latency, to stand in for the round
+ * trip to a region server.
+ */
+@SuppressWarnings("serial")
+public class MemoryHTableFactory implements HTableFactory {
+  private final long latencyMicros;
+
+  public MemoryHTableFactory() {
+    this(0L);
+  }
+
+  /**
+   * @param latencyMicros The minimum time in microseconds each call to a table takes
+   */
+  public MemoryHTableFactory(final long latencyMicros) {
+    this.latencyMicros = latencyMicros;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public HTableInterface createTable(final TupleTableConfig conf) throws IOException {
+    MemoryTable table = MemoryTable.get(conf.getTableName());
+    if (table == null) {
+      throw new TableNotFoundException(conf.getTableName());
+    }
+
+    MemoryHTable htable = new MemoryHTable(table, HBaseConfiguration.create(), latencyMicros);
+    if (conf.isBatch()) {
+      htable.setAutoFlush(false, true);
+    }
+    if (conf.getWriteBufferSize() > 0) {
+      htable.setWriteBufferSize(conf.getWriteBufferSize());
+    }
+    return htable;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void releaseTable(final HTableInterface table) throws IOException {
+    table.close();
+  }
+
+  /**
+   * @return The minimum time in microseconds each call to a table takes
+   */
+  public long getLatencyMicros() {
+    return latencyMicros;
+  }
+}
@@ -0,0 +1,549 @@
+package backtype.storm.contrib.hbase.utils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import org.apache.hadoop.hbase.DoNotRetryIOException;
+import org.apache.hadoop.hbase.HColumnDescriptor;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.HTableDescriptor;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Append;
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.Increment;
+import org.apache.hadoop.hbase.client.Mutation;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.RowMutations;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.io.TimeRange;
+import org.apache.hadoop.hbase.regionserver.NoSuchColumnFamilyException;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * An in-memory HBase table, holding its rows sorted by row key.
+ * <p>
+ * Tables are created with {@link #create(String, String...)} and live in a JVM-wide registry until
+ * they are dropped, so every {@link MemoryHTable} for a table in the same JVM, e.g. every bolt and
+ * state of a topology running in a <tt>LocalCluster</tt>, sees the same rows. Each column family
+ * keeps up to its {@link HColumnDescriptor#getMaxVersions()} versions of a cell.
+ * <p>
+ * The table is thread-safe. Each row is updated atomically, as it would be by a region server, but
+ * there is no atomicity across rows. Filters are not supported.
+ * @see MemoryHTable
+ * @see MemoryHTableFactory
+ */
+public final class MemoryTable {
+  private static final ConcurrentMap<String, MemoryTable> TABLES =
+      new ConcurrentHashMap<String, MemoryTable>();
+
+  private final HTableDescriptor descriptor;
+  private final Map<byte[], Integer> maxVersions = new TreeMap<byte[], Integer>(
+      Bytes.BYTES_COMPARATOR);
+  private final ConcurrentNavigableMap<byte[], MemoryRow> rows =
+      new ConcurrentSkipListMap<byte[], MemoryRow>(Bytes.BYTES_COMPARATOR);
+
+  private MemoryTable(final HTableDescriptor descriptor) {
+    this.descriptor = descriptor;
+    for (HColumnDescriptor family : descriptor.getFamilies()) {
+      maxVersions.put(family.getName(), family.getMaxVersions());
+    }
+  }
+
+  /**
+   * Creates an empty table with the given column families
+   * @param tableName The table name
+   * @param families The column families
+   * @return The table
+   * @throws IllegalStateException If the table already exists
+   */
+  public static MemoryTable create(final String tableName, final String... families) {
+    HTableDescriptor descriptor = new HTableDescriptor(tableName);
+    for (String family : families) {
+      descriptor.addFamily(new HColumnDescriptor(family));
+    }
+    return create(descriptor);
+  }
+
+  /**
+   * Creates an empty table
+   * @param descriptor The table's descriptor, including its column families
+   * @return The table
+   * @throws IllegalStateException If the table already exists
+   */
+  public static MemoryTable create(final HTableDescriptor descriptor) {
+    MemoryTable table = new MemoryTable(descriptor);
+    if (TABLES.putIfAbsent(descriptor.getNameAsString(), table) != null) {
+      throw new IllegalStateException("Table already exists: " + descriptor.getNameAsString());
+    }
+    return table;
+  }
+
+  /**
+   * @param tableName The table name
+   * @return The table, or null if it does not exist
+   */
+  public static MemoryTable get(final String tableName) {
+    return TABLES.get(tableName);
+  }
+
+  /**
+   * Drops a table and its rows. Tables already handed out keep working, but are no longer shared
+   * @param tableName The table name
+   */
+  public static void drop(final String tableName) {
+    TABLES.remove(tableName);
+  }
+
+  /**
+   * @return The table's descriptor
+   */
+  public HTableDescriptor getTableDescriptor() {
+    return descriptor;
+  }
+
+  /**
+   * @return The table name
+   */
+  public String getName() {
+    return descriptor.getNameAsString();
+  }
+
+  /**
+   * @return The number of rows that hold at least one cell
+   */
+  public int size() {
+    int size = 0;
+    for (MemoryRow row : rows.values()) {
+      synchronized (row) {
+        if (!row.families.isEmpty()) {
+          size++;
+        }
+      }
+    }
+    return size;
+  }
+
+  /**
+   * @param get The {@link Get}
+   * @return The matching cells, an empty {@link Result} if there are none
+   * @throws IOException If the get names a column family the table does not have, or has a filter
+   */
+  public Result get(final Get get) throws IOException {
+    checkFamilies(get.getFamilyMap().keySet());
+    checkNoFilter(get.getFilter() != null);
+
+    MemoryRow row = rows.get(get.getRow());
+    if (row == null) {
+      return new Result(new ArrayList<KeyValue>());
+    }
+    return new Result(row.read(get.getRow(), get.getFamilyMap(), get.getTimeRange(),
+      get.getMaxVersions()));
+  }
+
+  /**
+   * Finds the given row, or the row before it, that has cells in the given family
+   * @param rowKey The row key
+   * @param family The column family
+   * @return The latest version of the row's cells in the family, or null if there is no such row
+   * @throws IOException If the table does not have the column family
+   */
+  public Result getRowOrBefore(final byte[] rowKey, final byte[] family) throws IOException {
+    checkFamilies(Collections.singleton(family));
+
+    Map<byte[], NavigableSet<byte[]>> columns = new TreeMap<byte[], NavigableSet<byte[]>>(
+        Bytes.BYTES_COMPARATOR);
+    columns.put(family, null);
+    for (Map.Entry<byte[], MemoryRow> e : rows.headMap(rowKey, true).descendingMap().entrySet()) {
+      List<KeyValue> kvs = e.getValue().read(e.getKey(), columns, new TimeRange(), 1);
+      if (!kvs.isEmpty()) {
+        return new Result(kvs);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @param scan The {@link Scan}
+   * @return The non-empty rows in the scan's range, read lazily in row key order
+   * @throws IOException If the scan names a column family the table does not have, or has a
+   *           filter
+   */
+  public Iterator<Result> scan(final Scan scan) throws IOException {
+    checkFamilies(scan.getFamilyMap().keySet());
+    checkNoFilter(scan.getFilter() != null);
+
+    NavigableMap<byte[], MemoryRow> range = rows;
+    if (scan.getStartRow().length > 0) {
+      range = range.tailMap(scan.getStartRow(), true);
+    }
+    if (scan.getStopRow().length > 0) {
+      range = range.headMap(scan.getStopRow(), false);
+    }
+    final Iterator<Map.Entry<byte[], MemoryRow>> it = range.entrySet().iterator();
+
+    return new Iterator<Result>() {
+      private Result next;
+
+      @Override
+      public boolean hasNext() {
+        while (next == null && it.hasNext()) {
+          Map.Entry<byte[], MemoryRow> e = it.next();
+          List<KeyValue> kvs = e.getValue().read(e.getKey(), scan.getFamilyMap(),
+            scan.getTimeRange(), scan.getMaxVersions());
+          if (!kvs.isEmpty()) {
+            next = new Result(kvs);
+          }
+        }
+        return next != null;
+      }
+
+      @Override
+      public Result next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        Result r = next;
+        next = null;
+        return r;
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+  /**
+   * @param put The {@link Put}, whose cells with the latest timestamp are written at the current
+   *          time
+   * @throws IOException If the put names a column family the table does not have
+   */
+  public void put(final Put put) throws IOException {
+    checkFamilies(put.getFamilyMap().keySet());
+
+    long now = System.currentTimeMillis();
+    MemoryRow row = row(put.getRow());
+    synchronized (row) {
+      for (List<KeyValue> kvs : put.getFamilyMap().values()) {
+        for (KeyValue kv : kvs) {
+          row.write(kv.getFamily(), kv.getQualifier(), kv.isLatestTimestamp() ? now
+              : kv.getTimestamp(), kv.getValue(), maxVersions.get(kv.getFamily()));
+        }
+      }
+    }
+  }
+
+  /**
+   * @param delete The {@link Delete}; a delete without columns deletes the whole row
+   * @throws IOException If the delete names a column family the table does not have
+   */
+  public void delete(final Delete delete) throws IOException {
+    checkFamilies(delete.getFamilyMap().keySet());
+
+    MemoryRow row = rows.get(delete.getRow());
+    if (row == null) {
+      return;
+    }
+
+    long now = System.currentTimeMillis();
+    synchronized (row) {
+      if (delete.getFamilyMap().isEmpty()) {
+        long ts = delete.getTimeStamp() == HConstants.LATEST_TIMESTAMP ? now
+            : delete.getTimeStamp();
+        for (byte[] family : new ArrayList<byte[]>(row.families.keySet())) {
+          row.deleteFamily(family, ts);
+        }
+        return;
+      }
+
+      for (List<KeyValue> kvs : delete.getFamilyMap().values()) {
+        for (KeyValue kv : kvs) {
+          long ts = kv.isLatestTimestamp() ? now : kv.getTimestamp();
+          switch (KeyValue.Type.codeToType(kv.getType())) {
+          case DeleteFamily:
+            row.deleteFamily(kv.getFamily(), ts);
+            break;
+          case DeleteColumn:
+            row.deleteColumn(kv.getFamily(), kv.getQualifier(), ts);
+            break;
+          default:
+            row.deleteVersion(kv.getFamily(), kv.getQualifier(),
+              kv.isLatestTimestamp() ? null : ts);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * @param increment The {@link Increment}
+   * @return The incremented values
+   * @throws IOException If the increment names a column family the table does not have, or a
+   *           column to increment is not 64 bits wide, in which case none of the columns are
+   *           incremented
+   */
+  public Result increment(final Increment increment) throws IOException {
+    checkFamilies(increment.getFamilyMap().keySet());
+
+    List<KeyValue> kvs = new ArrayList<KeyValue>();
+    long now = System.currentTimeMillis();
+    MemoryRow row = row(increment.getRow());
+    synchronized (row) {
+      for (Map.Entry<byte[], NavigableMap<byte[], Long>> f : increment.getFamilyMap().entrySet()) {
+        for (byte[] qualifier : f.getValue().keySet()) {
+          byte[] current = row.latest(f.getKey(), qualifier);
+          if (current != null && current.length != Bytes.SIZEOF_LONG) {
+            throw new DoNotRetryIOException("Attempted to increment field that isn't 64 bits wide");
+          }
+        }
+      }
+
+      for (Map.Entry<byte[], NavigableMap<byte[], Long>> f : increment.getFamilyMap().entrySet()) {
+        for (Map.Entry<byte[], Long> c : f.getValue().entrySet()) {
+          byte[] current = row.latest(f.getKey(), c.getKey());
+          long value = (current == null ? 0L : Bytes.toLong(current)) + c.getValue();
+          long ts = Math.max(now, row.latestTimestamp(f.getKey(), c.getKey()));
+
+          byte[] bytes = Bytes.toBytes(value);
+          row.write(f.getKey(), c.getKey(), ts, bytes, maxVersions.get(f.getKey()));
+          kvs.add(new KeyValue(increment.getRow(), f.getKey(), c.getKey(), ts, bytes));
+        }
+      }
+    }
+    return new Result(kvs);
+  }
+
+  /**
+   * @param append The {@link Append}
+   * @return The appended values
+   * @throws IOException If the append names a column family the table does not have
+   */
+  public Result append(final Append append) throws IOException {
+    checkFamilies(append.getFamilyMap().keySet());
+
+    List<KeyValue> kvs = new ArrayList<KeyValue>();
+    long now = System.currentTimeMillis();
+    MemoryRow row = row(append.getRow());
+    synchronized (row) {
+      for (List<KeyValue> family : append.getFamilyMap().values()) {
+        for (KeyValue kv : family) {
+          byte[] current = row.latest(kv.getFamily(), kv.getQualifier());
+          byte[] value = current == null ? kv.getValue() : Bytes.add(current, kv.getValue());
+          long ts = Math.max(now, row.latestTimestamp(kv.getFamily(), kv.getQualifier()));
+
+          row.write(kv.getFamily(), kv.getQualifier(), ts, value, maxVersions.get(kv.getFamily()));
+          kvs.add(new KeyValue(append.getRow(), kv.getFamily(), kv.getQualifier(), ts, value));
+        }
+      }
+    }
+    Collections.sort(kvs, KeyValue.COMPARATOR);
+    return new Result(kvs);
+  }
+
+  /**
+   * Applies a mutation if the latest version of a cell has the expected value
+   * @param rowKey The row key
+   * @param family The column family
+   * @param qualifier The column qualifier
+   * @param expected The expected value, null or empty if the cell must not exist
+   * @param mutation The {@link Put} or {@link Delete} to apply to the row
+   * @return True if the mutation was applied
+   * @throws IOException
+   */
+  public boolean checkAndMutate(final byte[] rowKey, final byte[] family, final byte[] qualifier,
+      final byte[] expected, final Mutation mutation) throws IOException {
+    checkFamilies(Collections.singleton(family));
+    if (!Bytes.equals(rowKey, mutation.getRow())) {
+      throw new DoNotRetryIOException("Action's getRow must match the passed row");
+    }
+
+    MemoryRow row = row(rowKey);
+    synchronized (row) {
+      byte[] current = row.latest(family, qualifier);
+      boolean matches = expected == null || expected.length == 0 ? current == null
+          : current != null && Bytes.equals(expected, current);
+      if (matches) {
+        apply(mutation);
+      }
+      return matches;
+    }
+  }
+
+  /**
+   * Applies the puts and deletes to the row atomically
+   * @param mutations The {@link RowMutations}
+   * @throws IOException
+   */
+  public void mutateRow(final RowMutations mutations) throws IOException {
+    MemoryRow row = row(mutations.getRow());
+    synchronized (row) {
+      for (Mutation m : mutations.getMutations()) {
+        apply(m);
+      }
+    }
+  }
+
+  private void apply(final Mutation mutation) throws IOException {
+    if (mutation instanceof Put) {
+      put((Put) mutation);
+    } else if (mutation instanceof Delete) {
+      delete((Delete) mutation);
+    } else {
+      throw new DoNotRetryIOException("Unsupported mutation " + mutation.getClass().getName());
+    }
+  }
+
+  private MemoryRow row(final byte[] rowKey) {
+    MemoryRow row = rows.get(rowKey);
+    if (row == null) {
+      MemoryRow created = new MemoryRow();
+      row = rows.putIfAbsent(Arrays.copyOf(rowKey, rowKey.length), created);
+      if (row == null) {
+        row = created;
+      }
+    }
+    return row;
+  }
+
+  private void checkFamilies(final Collection<byte[]> families) throws IOException {
+    for (byte[] family : families) {
+      if (!maxVersions.containsKey(family)) {
+        throw new NoSuchColumnFamilyException("Column family " + Bytes.toString(family)
+            + " does not exist in table " + getName());
+      }
+    }
+  }
+
+  private void checkNoFilter(final boolean hasFilter) throws IOException {
+    if (hasFilter) {
+      throw new DoNotRetryIOException("Filters are not supported by in-memory table " + getName());
+    }
+  }
+
+  /**
+   * The cells of a row, by family, qualifier and timestamp, latest first. Guarded by the row's
+   * monitor. Rows are never removed from the table, so an update never races with a removal
+   */
+  private static class MemoryRow {
+    final NavigableMap<byte[], NavigableMap<byte[], NavigableMap<Long, byte[]>>> families =
+        new TreeMap<byte[], NavigableMap<byte[], NavigableMap<Long, byte[]>>>(
+            Bytes.BYTES_COMPARATOR);
+
+    synchronized List<KeyValue> read(final byte[] rowKey,
+        final Map<byte[], NavigableSet<byte[]>> columns, final TimeRange range,
+        final int maxVersions) {
+      List<KeyValue> kvs = new ArrayList<KeyValue>();
+      for (Map.Entry<byte[], NavigableMap<byte[], NavigableMap<Long, byte[]>>> f : families
+          .entrySet()) {
+        if (!columns.isEmpty() && !columns.containsKey(f.getKey())) {
+          continue;
+        }
+        NavigableSet<byte[]> qualifiers = columns.get(f.getKey());
+
+        for (Map.Entry<byte[], NavigableMap<Long, byte[]>> q : f.getValue().entrySet()) {
+          if (qualifiers != null && !qualifiers.isEmpty() && !qualifiers.contains(q.getKey())) {
+            continue;
+          }
+          int versions = 0;
+          for (Map.Entry<Long, byte[]> v : q.getValue().entrySet()) {
+            if (!range.withinTimeRange(v.getKey())) {
+              continue;
+            }
+            if (versions++ >= maxVersions) {
+              break;
+            }
+            kvs.add(new KeyValue(rowKey, f.getKey(), q.getKey(), v.getKey(), v.getValue()));
+          }
+        }
+      }
+      return kvs;
+    }
+
+    byte[] latest(final byte[] family, final byte[] qualifier) {
+      NavigableMap<Long, byte[]> versions = versions(family, qualifier);
+      return versions == null ? null : versions.firstEntry().getValue();
+    }
+
+    long latestTimestamp(final byte[] family, final byte[] qualifier) {
+      NavigableMap<Long, byte[]> versions = versions(family, qualifier);
+      return versions == null ? 0L : versions.firstKey();
+    }
+
+    void write(final byte[] family, final byte[] qualifier, final long ts, final byte[] value,
+        final int maxVersions) {
+      NavigableMap<byte[], NavigableMap<Long, byte[]>> columns = families.get(family);
+      if (columns == null) {
+        columns = new TreeMap<byte[], NavigableMap<Long, byte[]>>(Bytes.BYTES_COMPARATOR);
+        families.put(family, columns);
+      }
+      NavigableMap<Long, byte[]> versions = columns.get(qualifier);
+      if (versions == null) {
+        versions = new TreeMap<Long, byte[]>(Collections.reverseOrder());
+        columns.put(qualifier, versions);
+      }
+      versions.put(ts, value);
+      while (versions.size() > maxVersions) {
+        versions.pollLastEntry();
+      }
+    }
+
+    void deleteFamily(final byte[] family, final long ts) {
+      NavigableMap<byte[], NavigableMap<Long, byte[]>> columns = families.get(family);
+      if (columns == null) {
+        return;
+      }
+      for (byte[] qualifier : new ArrayList<byte[]>(columns.keySet())) {
+        deleteColumn(family, qualifier, ts);
+      }
+    }
+
+    void deleteColumn(final byte[] family, final byte[] qualifier, final long ts) {
+      NavigableMap<Long, byte[]> versions = versions(family, qualifier);
+      if (versions != null) {
+        // Versions are latest first, so the tail holds the versions at or before the timestamp
+        versions.tailMap(ts, true).clear();
+        removeIfEmpty(family, qualifier);
+      }
+    }
+
+    void deleteVersion(final byte[] family, final byte[] qualifier, final Long ts) {
+      NavigableMap<Long, byte[]> versions = versions(family, qualifier);
+      if (versions != null) {
+        versions.remove(ts == null ? versions.firstKey() : ts);
+        removeIfEmpty(family, qualifier);
+      }
+    }
+
+    private NavigableMap<Long, byte[]> versions(final byte[] family, final byte[] qualifier) {
+      NavigableMap<byte[], NavigableMap<Long, byte[]>> columns = families.get(family);
+      return columns == null ? null : columns.get(qualifier);
+    }
+
+    private void removeIfEmpty(final byte[] family, final byte[] qualifier) {
+      NavigableMap<byte[], NavigableMap<Long, byte[]>> columns = families.get(family);
+      if (columns.get(qualifier).isEmpty()) {
+        columns.remove(qualifier);
+      }
+      if (columns.isEmpty()) {
+        families.remove(family);
+      }
+    }
+  }
+}
@@ -0,0 +1,333 @@
+package backtype.storm.contrib.hbase.utils;
+
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.log4j.Logger;
+
+/**
+ * A byte-budgeted cache of serialized values, held off-heap and shared by every state in a worker.
+ * <p>
+ * Values are appended to a single direct {@link ByteBuffer} used as a circular log, with only a
+ * small index entry per key kept on the heap. When the log is full the oldest entries are
+ * overwritten, so a key that is written again (e.g. a hot counter updated every batch) moves to
+ * the head of the log and stays cached. The cache doesn't add to GC pressure however many keys it
+ * holds, but the JVM's <tt>-XX:MaxDirectMemorySize</tt> must allow for its capacity.
+ * <p>
+ * Caches are shared per topology, table and state serializer with
+ * {@link #acquire(String, TridentConfig)}, sized by the first state to create them, and reference
+ * counted. When the last state using a cache calls {@link #release()} the cache is emptied and its
+ * direct buffer freed, rather than waiting for the buffer to be garbage collected.
+ * <p>
+ * The hits, misses, evictions and bytes used of a shared cache are reported in the
+ * {@link HBaseMetrics} of one of the states using it, so they aren't counted once per state. When
+ * that state releases the cache, the next state to have acquired it takes over.
+ */
+public class OffHeapCache implements CacheStats {
+  private static final Logger LOG = Logger.getLogger(OffHeapCache.class);
+
+  private static final Map<String, OffHeapCache> CACHES = new HashMap<String, OffHeapCache>();
+
+  private final ByteBuffer buffer;
+  private final int capacity;
+  private String sharedKey;
+  private int refCount;
+  private final LinkedList<HBaseMetrics> reporters = new LinkedList<HBaseMetrics>();
+  private boolean freed;
+  private final Map<ByteKey, Entry> index = new HashMap<ByteKey, Entry>();
+  private final ArrayDeque<Entry> log = new ArrayDeque<Entry>();
+  private int head;
+  private long usedBytes;
+
+  private long hits;
+  private long misses;
+  private long evictions;
+
+  /**
+   * Acquires a reference to the worker's cache for a topology's state, creating it on first use
+   * @param topologyId The topology ID, e.g. from {@link backtype.storm.Config#STORM_ID}
+   * @param conf The {@link TridentConfig}, with the shared cache enabled
+   * @return The worker's cache for the topology, table and state serializer. Call
+   *         {@link #release()} when done with it
+   */
+  public static OffHeapCache acquire(final String topologyId, final TridentConfig conf) {
+    return acquire(topologyId, conf, null);
+  }
+
+  /**
+   * Acquires a reference to the worker's cache for a topology's state, creating it on first use
+   * @param topologyId The topology ID, e.g. from {@link backtype.storm.Config#STORM_ID}
+   * @param conf The {@link TridentConfig}, with the shared cache enabled
+   * @param metrics The state's {@link HBaseMetrics}, which report the cache if no other state's
+   *          do, may be null
+   * @return The worker's cache for the topology, table and state serializer. Call
+   *         {@link #release(HBaseMetrics)} with the same metrics when done with it
+   */
+  public static OffHeapCache acquire(final String topologyId, final TridentConfig conf,
+      final HBaseMetrics metrics) {
+    String key = topologyId + "/" + conf.getTableName() + "/"
+        + conf.getStateSerializer().getClass().getName();
+    synchronized (CACHES) {
+      OffHeapCache cache = CACHES.get(key);
+      if (cache == null) {
+        LOG.info(String.format("Allocating %d byte off-heap state cache for HBase table %s",
+          conf.getSharedCacheBytes(), conf.getTableName()));
+        cache = new OffHeapCache(conf.getSharedCacheBytes());
+        cache.sharedKey = key;
+        CACHES.put(key, cache);
+      }
+      cache.refCount++;
+      if (metrics != null) {
+        cache.reporters.add(metrics);
+        if (cache.reporters.size() == 1) {
+          metrics.setCache(cache);
+        }
+      }
+      return cache;
+    }
+  }
+
+  /**
+   * Releases a reference acquired with {@link #acquire(String, TridentConfig)}. The last release
+   * empties the cache and frees its buffer
+   */
+  public void release() {
+    release(null);
+  }
+
+  /**
+   * Releases a reference acquired with {@link #acquire(String, TridentConfig, HBaseMetrics)}. If
+   * the metrics were reporting the cache, the next state's metrics report it instead. The last
+   * release empties the cache and frees its buffer
+   * @param metrics The metrics the reference was acquired with, may be null
+   */
+  public void release(final HBaseMetrics metrics) {
+    synchronized (CACHES) {
+      if (metrics != null) {
+        boolean reporting = !reporters.isEmpty() && reporters.getFirst() == metrics;
+        reporters.remove(metrics);
+        if (reporting) {
+          metrics.setCache(null);
+          if (!reporters.isEmpty()) {
+            reporters.getFirst().setCache(this);
+          }
+        }
+      }
+      if (--refCount > 0) {
+        return;
+      }
+      CACHES.remove(sharedKey);
+    }
+    free();
+  }
+
+  /**
+   * Empties the cache and frees its direct buffer. Later gets miss and puts are ignored
+   */
+  public synchronized void free() {
+    if (freed) {
+      return;
+    }
+    freed = true;
+    index.clear();
+    log.clear();
+    usedBytes = 0;
+
+    // The buffer's cleaner frees its memory now, instead of when the buffer is collected
+    try {
+      Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+      cleanerMethod.setAccessible(true);
+      Object cleaner = cleanerMethod.invoke(buffer);
+      if (cleaner != null) {
+        cleaner.getClass().getMethod("clean").invoke(cleaner);
+      }
+    } catch (Exception ex) {
+      LOG.warn("Unable to free off-heap cache buffer, leaving it to be garbage collected", ex);
+    }
+  }
+
+  /**
+   * @param capacityBytes The size of the cache in bytes, at most {@link Integer#MAX_VALUE}
+   */
+  public OffHeapCache(final long capacityBytes) {
+    this.capacity = (int) Math.min(capacityBytes, Integer.MAX_VALUE);
+    this.buffer = ByteBuffer.allocateDirect(capacity);
+  }
+
+  /**
+   * @param key The serialized key
+   * @return A copy of the cached value, or null if the key isn't cached
+   */
+  public synchronized byte[] get(final byte[] key) {
+    Entry e = freed ? null : index.get(new ByteKey(key));
+    if (e == null) {
+      misses++;
+      return null;
+    }
+    hits++;
+
+    byte[] value = new byte[e.length];
+    buffer.position(e.offset);
+    buffer.get(value);
+    return value;
+  }
+
+  /**
+   * Caches the value, replacing any value already cached for the key
+   * @param key The serialized key
+   * @param value The serialized value
+   */
+  public synchronized void put(final byte[] key, final byte[] value) {
+    ByteKey k = new ByteKey(key);
+    Entry old = index.remove(k);
+    if (old != null) {
+      // The old entry stays in the log until it is overwritten
+      usedBytes -= old.length;
+    }
+    if (freed || value.length > capacity) {
+      return;
+    }
+
+    int offset = allocate(value.length);
+    buffer.position(offset);
+    buffer.put(value);
+
+    Entry e = new Entry(k, offset, value.length);
+    log.addLast(e);
+    index.put(k, e);
+    usedBytes += value.length;
+  }
+
+  /**
+   * Finds space for a value at the head of the log, evicting the oldest entries as needed
+   * @param length The length of the value
+   * @return The offset to write the value at
+   */
+  private int allocate(final int length) {
+    while (true) {
+      Entry oldest = log.peekFirst();
+      if (oldest == null) {
+        if (head + length > capacity) {
+          head = 0;
+        }
+        break;
+      }
+
+      if (oldest.offset >= head) {
+        // The oldest entry is ahead of the head, the space up to it is free
+        if (head + length <= oldest.offset) {
+          break;
+        }
+        evictOldest();
+      } else {
+        // Every entry is behind the head, the space up to the end of the buffer is free
+        if (head + length <= capacity) {
+          break;
+        }
+        head = 0;
+      }
+    }
+
+    int offset = head;
+    head += length;
+    return offset;
+  }
+
+  private void evictOldest() {
+    Entry e = log.removeFirst();
+    if (index.get(e.key) == e) {
+      index.remove(e.key);
+      usedBytes -= e.length;
+      evictions++;
+    }
+  }
+
+  /**
+   * @return The number of cache hits
+   */
+  @Override
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  /**
+   * @return The number of cache misses
+   */
+  @Override
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  /**
+   * @return The number of entries evicted to make space for new ones
+   */
+  @Override
+  public synchronized long getEvictions() {
+    return evictions;
+  }
+
+  /**
+   * @return The number of cached keys
+   */
+  public synchronized int size() {
+    return index.size();
+  }
+
+  /**
+   * @return The number of bytes held by cached values
+   */
+  @Override
+  public synchronized long getUsedBytes() {
+    return usedBytes;
+  }
+
+  /**
+   * @return The capacity of the cache in bytes
+   */
+  public int getCapacity() {
+    return capacity;
+  }
+
+  /**
+   * A byte[] key with value equality
+   */
+  private static final class ByteKey {
+    private final byte[] bytes;
+    private final int hash;
+
+    ByteKey(final byte[] bytes) {
+      this.bytes = bytes;
+      this.hash = Bytes.hashCode(bytes);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      return obj instanceof ByteKey && Bytes.equals(bytes, ((ByteKey) obj).bytes);
+    }
+  }
+
+  /**
+   * The location of a cached value in the log
+   */
+  private static final class Entry {
+    final ByteKey key;
+    final int offset;
+    final int length;
+
+    Entry(final ByteKey key, final int offset, final int length) {
+      this.key = key;
+      this.offset = offset;
+      this.length = length;
+    }
+  }
+}
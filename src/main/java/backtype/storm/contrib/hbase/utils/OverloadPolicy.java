@@ -0,0 +1,25 @@
+package backtype.storm.contrib.hbase.utils;
+
+/**
+ * What a bolt or state does with new writes once its budget of pending mutations is used up, see
+ * {@link TupleTableConfig#setMaxPendingMutations(int)}
+ */
+public enum OverloadPolicy {
+  /**
+   * Waits for the pending mutations to be written before taking more. Tuples are only acked once
+   * written, so the spouts are throttled by <tt>topology.max.spout.pending</tt>. A Trident state
+   * writes a batch that is over the budget in chunks within it.
+   * <p>
+   * This is the default policy
+   */
+  BLOCK,
+
+  /**
+   * Fails new tuples, or Trident batches, so they are replayed later, and counts them as rejected.
+   * A bolt holding its own pending writes flushes them first, and only fails the new tuple if the
+   * flush failed or took longer than the flush interval. A Trident batch over the budget is failed
+   * with a {@link backtype.storm.topology.FailedException}, so Trident batches must be sized to fit
+   * within it
+   */
+  FAIL_FAST;
+}
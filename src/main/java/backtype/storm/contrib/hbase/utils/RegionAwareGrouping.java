@@ -0,0 +1,217 @@
+package backtype.storm.contrib.hbase.utils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import org.apache.hadoop.hbase.HRegionInfo;
+import org.apache.hadoop.hbase.ServerName;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.log4j.Logger;
+
+import backtype.storm.generated.GlobalStreamId;
+import backtype.storm.grouping.CustomStreamGrouping;
+import backtype.storm.task.WorkerTopologyContext;
+import backtype.storm.tuple.Fields;
+
+/**
+ * A Storm stream grouping that sends each tuple to a task chosen by the region server hosting its
+ * row.
+ * <p>
+ * Tasks are shared out between the table's region servers, and every tuple whose row is hosted by
+ * a server is sent to one of that server's tasks. Each task's write buffer then fills with
+ * mutations for one or a few servers, so its flushes are fewer, larger multi-puts instead of a
+ * small batch for every server in the cluster. The row key is built with the same
+ * {@link TupleTableConfig} as the bolt, including any {@link RowKeyStrategy}.
+ * <p>
+ * The region locations are read when the grouping is prepared and re-read every
+ * {@link #setRefreshIntervalSecs(int)} seconds to pick up split and moved regions. If they can't
+ * be read, or the table is not a {@link HTable}, tuples are grouped on the hash of their row
+ * key. Each upstream task reads the locations on its own schedule, and falls back to the hash on
+ * its own, so upstream tasks may send the same row to different tasks for a while. The grouping
+ * is for spreading writes, and can't replace a fields grouping for bolts that need every tuple
+ * of a row to reach the same task.
+ * <p>
+ * The grouping's connector is closed by {@link WorkerResources} when the worker shuts down.
+ * <p>
+ * E.g. <tt>builder.setBolt("hbase", new HBaseBolt(conf), 8).customGrouping("spout",
+ * new RegionAwareGrouping(conf));</tt>
+ */
+@SuppressWarnings("serial")
+public class RegionAwareGrouping implements CustomStreamGrouping {
+  private static final Logger LOG = Logger.getLogger(RegionAwareGrouping.class);
+
+  private TupleTableConfig conf;
+  private int refreshIntervalSecs = 60;
+
+  private transient HTableConnector connector;
+  private transient Fields fields;
+  private transient List<List<Integer>> tasks;
+  private transient long lastRefresh;
+
+  // Region start keys, in order, and the task chosen for each region
+  private transient byte[][] startKeys;
+  private transient int[] regionTasks;
+
+  /**
+   * @param conf The {@link TupleTableConfig} of the bolt being grouped to
+   */
+  public RegionAwareGrouping(final TupleTableConfig conf) {
+    this.conf = conf;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void prepare(WorkerTopologyContext context, GlobalStreamId stream,
+      List<Integer> targetTasks) {
+    this.fields = context.getComponentOutputFields(stream);
+    this.conf.compile();
+
+    this.tasks = new ArrayList<List<Integer>>(targetTasks.size());
+    for (Integer t : targetTasks) {
+      tasks.add(Collections.singletonList(t));
+    }
+
+    try {
+      this.connector = new HTableConnector(conf);
+      WorkerResources.register(connector);
+    } catch (IOException ex) {
+      LOG.error("Unable to connect to HBase table " + conf.getTableName()
+          + ", grouping on row key hash", ex);
+    }
+    refresh();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public List<Integer> chooseTasks(int taskId, List<Object> values) {
+    if (System.currentTimeMillis() - lastRefresh >= refreshIntervalSecs * 1000L) {
+      refresh();
+    }
+
+    byte[] row = conf.compile().rowKey(fields, values);
+    if (startKeys == null) {
+      return tasks.get((Bytes.hashCode(row) & Integer.MAX_VALUE) % tasks.size());
+    }
+    return tasks.get(regionTasks[regionOf(startKeys, row)]);
+  }
+
+  /**
+   * Reads the table's region locations and shares the tasks out between its region servers
+   */
+  private void refresh() {
+    lastRefresh = System.currentTimeMillis();
+    if (connector == null) {
+      return;
+    }
+
+    if (!(connector.getTable() instanceof HTable)) {
+      // Only a HTable knows its region locations, e.g. an in-memory table has no regions
+      return;
+    }
+
+    NavigableMap<HRegionInfo, ServerName> locations;
+    try {
+      locations = ((HTable) connector.getTable()).getRegionLocations();
+    } catch (IOException ex) {
+      LOG.warn("Unable to read region locations for HBase table " + conf.getTableName()
+          + ", keeping previous grouping", ex);
+      return;
+    }
+    if (locations.isEmpty()) {
+      return;
+    }
+
+    byte[][] keys = new byte[locations.size()][];
+    String[] regionServers = new String[locations.size()];
+    int r = 0;
+    for (Map.Entry<HRegionInfo, ServerName> e : locations.entrySet()) {
+      keys[r] = e.getKey().getStartKey();
+      regionServers[r++] = e.getValue() == null ? "" : e.getValue().getHostAndPort();
+    }
+
+    this.regionTasks = shareTasks(regionServers, tasks.size());
+    this.startKeys = keys;
+
+    if (LOG.isDebugEnabled()) {
+      LOG.debug(String.format("Grouping %d regions of HBase table %s to %d tasks", keys.length,
+        conf.getTableName(), tasks.size()));
+    }
+  }
+
+  /**
+   * Shares the tasks out between the region servers, and chooses a task for each region. Servers
+   * are numbered in name order, so the choices only depend on the region layout
+   * @param regionServers The server hosting each region, in region order
+   * @param numTasks The number of tasks
+   * @return The index of the task chosen for each region
+   */
+  public static int[] shareTasks(final String[] regionServers, final int numTasks) {
+    Map<String, Integer> servers = new TreeMap<String, Integer>();
+    for (String server : regionServers) {
+      servers.put(server, 0);
+    }
+    int s = 0;
+    for (Map.Entry<String, Integer> e : servers.entrySet()) {
+      e.setValue(s++);
+    }
+
+    int numServers = servers.size();
+    int[] chosen = new int[regionServers.length];
+    int[] regionsPerServer = new int[numServers];
+    for (int r = 0; r < regionServers.length; r++) {
+      int server = servers.get(regionServers[r]);
+      if (numTasks <= numServers) {
+        // Each task takes every region of one or more servers
+        chosen[r] = server % numTasks;
+      } else {
+        // Each server has several tasks (server, server + numServers, ...) sharing its regions
+        int serverTasks = (numTasks - server + numServers - 1) / numServers;
+        chosen[r] = server + (regionsPerServer[server] % serverTasks) * numServers;
+      }
+      regionsPerServer[server]++;
+    }
+    return chosen;
+  }
+
+  /**
+   * @param startKeys The start keys of the regions, in order, the first one empty
+   * @param row The row key
+   * @return The index of the region holding the row
+   */
+  public static int regionOf(final byte[][] startKeys, final byte[] row) {
+    // The last region whose start key is at or before the row, the first region starts at ""
+    int lo = 0;
+    int hi = startKeys.length - 1;
+    while (lo < hi) {
+      int mid = (lo + hi + 1) >>> 1;
+      if (Bytes.compareTo(startKeys[mid], row) <= 0) {
+        lo = mid;
+      } else {
+        hi = mid - 1;
+      }
+    }
+    return lo;
+  }
+
+  /**
+   * @return The number of seconds between reads of the region locations
+   */
+  public int getRefreshIntervalSecs() {
+    return refreshIntervalSecs;
+  }
+
+  /**
+   * @param refreshIntervalSecs The number of seconds between reads of the region locations.
+   *          <p>
+   *          Default is 60 seconds
+   */
+  public void setRefreshIntervalSecs(int refreshIntervalSecs) {
+    this.refreshIntervalSecs = refreshIntervalSecs;
+  }
+}
@@ -0,0 +1,33 @@
+package backtype.storm.contrib.hbase.utils;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.hadoop.hbase.client.Scan;
+
+/**
+ * Built-in {@link RowKeyStrategy}s
+ */
+public enum RowKeyStrategies implements RowKeyStrategy {
+  /**
+   * Keys are stored as they are encoded.
+   * <p>
+   * This is the default strategy
+   */
+  NONE {
+    @Override
+    public byte[] toRowKey(byte[] key) {
+      return key;
+    }
+
+    @Override
+    public byte[] toKey(byte[] rowKey) {
+      return rowKey;
+    }
+
+    @Override
+    public List<Scan> getScans(Scan scan) {
+      return Collections.singletonList(scan);
+    }
+  };
+}
@@ -0,0 +1,43 @@
+package backtype.storm.contrib.hbase.utils;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.List;
+
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.Scan;
+
+/**
+ * Maps encoded keys to the row keys they are stored under, e.g. to spread sequential keys over
+ * every region of a table.
+ * <p>
+ * Applied to the encoded row key of every Put, Increment and Get built from a tuple, and to the row
+ * of persistent aggregate keys. A row key must be derived from its key alone, so a {@link Get} for
+ * a key only ever reads one row. Range reads have to cover every row key a range of keys could be
+ * stored under, see {@link #getScans(Scan)}.
+ * @see RowKeyStrategies
+ * @see SaltedRowKeyStrategy
+ */
+public interface RowKeyStrategy extends Serializable {
+  /**
+   * @param key The encoded key
+   * @return The row key to store the key under
+   */
+  byte[] toRowKey(byte[] key);
+
+  /**
+   * @param rowKey A row key returned by {@link #toRowKey(byte[])}
+   * @return The encoded key
+   */
+  byte[] toKey(byte[] rowKey);
+
+  /**
+   * Fans a scan over a range of keys out into the scans that read every row key the keys could be
+   * stored under. Each scan's results are in key order, but the scans' results need merging to get
+   * the whole range in key order
+   * @param scan The {@link Scan} over a range of encoded keys
+   * @return The scans to run in its place
+   * @throws IOException
+   */
+  List<Scan> getScans(Scan scan) throws IOException;
+}
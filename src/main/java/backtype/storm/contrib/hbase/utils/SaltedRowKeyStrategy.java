@@ -0,0 +1,96 @@
+package backtype.storm.contrib.hbase.utils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * Prefixes each key with a one byte salt, the hash of the key modulo the number of buckets.
+ * <p>
+ * Sequential keys, such as time-prefixed ids, are written to the last region of a table, so a
+ * single region server takes every write. Salting spreads them over as many key ranges as there
+ * are buckets, which should be at least the number of region servers. Pre-split the table on
+ * {@link #getSplitKeys()} to spread them from the start. A key is always stored in the same bucket,
+ * so point reads are unaffected, but a range of keys is read with one scan per bucket.
+ */
+@SuppressWarnings("serial")
+public class SaltedRowKeyStrategy implements RowKeyStrategy {
+  private final int buckets;
+
+  /**
+   * @param buckets The number of buckets, from 1 to 256
+   */
+  public SaltedRowKeyStrategy(final int buckets) {
+    if (buckets < 1 || buckets > 256) {
+      throw new IllegalArgumentException("Number of buckets must be between 1 and 256: " + buckets);
+    }
+    this.buckets = buckets;
+  }
+
+  /**
+   * @param key The encoded key
+   * @return The key's bucket
+   */
+  public int bucket(final byte[] key) {
+    return (Bytes.hashCode(key) & Integer.MAX_VALUE) % buckets;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public byte[] toRowKey(byte[] key) {
+    byte[] rowKey = new byte[key.length + 1];
+    rowKey[0] = (byte) bucket(key);
+    System.arraycopy(key, 0, rowKey, 1, key.length);
+    return rowKey;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public byte[] toKey(byte[] rowKey) {
+    return Bytes.tail(rowKey, rowKey.length - 1);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public List<Scan> getScans(Scan scan) throws IOException {
+    byte[] start = scan.getStartRow();
+    byte[] stop = scan.getStopRow();
+
+    List<Scan> scans = new ArrayList<Scan>(buckets);
+    for (int b = 0; b < buckets; b++) {
+      byte[] prefix = new byte[] { (byte) b };
+      Scan s = new Scan(scan);
+      s.setStartRow(Bytes.add(prefix, start));
+      if (Bytes.equals(stop, HConstants.EMPTY_END_ROW)) {
+        // Stop at the start of the next bucket, or the end of the table after the last one
+        s.setStopRow(b + 1 < buckets ? new byte[] { (byte) (b + 1) } : HConstants.EMPTY_END_ROW);
+      } else {
+        s.setStopRow(Bytes.add(prefix, stop));
+      }
+      scans.add(s);
+    }
+    return scans;
+  }
+
+  /**
+   * @return The split keys to pre-split a table on, one per bucket after the first
+   */
+  public byte[][] getSplitKeys() {
+    byte[][] splits = new byte[buckets - 1][];
+    for (int b = 1; b < buckets; b++) {
+      splits[b - 1] = new byte[] { (byte) b };
+    }
+    return splits;
+  }
+
+  /**
+   * @return The number of buckets
+   */
+  public int getBuckets() {
+    return buckets;
+  }
+}
@@ -6,7 +6,6 @@ import java.util.Map;
 
 import org.apache.hadoop.hbase.client.Get;
 import org.apache.hadoop.hbase.client.Put;
-import org.apache.hadoop.hbase.util.Bytes;
 
 import storm.trident.state.JSONNonTransactionalSerializer;
 import storm.trident.state.JSONOpaqueSerializer;
@@ -33,8 +32,28 @@ public class TridentConfig<T> extends TupleTableConfig {
         }
       };
 
+  /**
+   * Compact binary serializers, opted into with {@link #setStateSerializer(Serializer)}. They read
+   * state written by the JSON serializers, but the switch is one way: state they have written can
+   * no longer be read by the JSON serializers, nor by earlier versions of this connector. Integer
+   * values also keep their type, where the JSON serializers read every whole number back as a Long
+   */
+  @SuppressWarnings("rawtypes")
+  public static final Map<StateType, Serializer> BINARY_SERIALIZERS =
+      new HashMap<StateType, Serializer>() {
+        {
+          put(StateType.NON_TRANSACTIONAL, new BinaryNonTransactionalSerializer());
+          put(StateType.TRANSACTIONAL, new BinaryTransactionalSerializer());
+          put(StateType.OPAQUE, new BinaryOpaqueSerializer());
+        }
+      };
+
   private int stateCacheSize = 1000;
+  private long sharedCacheBytes = 0L;
+  private int queryCacheSize = 0;
+  private long queryCacheTtlMillis = 60000L;
   private Serializer<T> stateSerializer;
+  private ValueCodec qualifierCodec = ValueCodecs.STRING;
 
   public TridentConfig(String table, String rowKeyField) {
     super(table, rowKeyField);
@@ -50,29 +69,24 @@ public class TridentConfig<T> extends TupleTableConfig {
    * @return {@link Put}
    */
   public Put getPutFromTridentTuple(final TridentTuple tuple) {
-    byte[] rowKey = Bytes.toBytes(tuple.getStringByField(tupleRowKeyField));
+    MappingPlan plan = compile();
+    byte[] rowKey = plan.rowKey(tuple);
 
     long ts = 0;
-    if (!tupleTimestampField.equals("")) {
-      ts = tuple.getLongByField(tupleTimestampField);
+    if (plan.hasTimestamp()) {
+      ts = tuple.getLongByField(plan.getTimestampField());
     }
 
     Put p = new Put(rowKey);
     p.setWriteToWAL(writeToWAL);
 
-    if (columnFamilies.size() > 0) {
-      for (String cf : columnFamilies.keySet()) {
-        byte[] cfBytes = Bytes.toBytes(cf);
-        for (String cq : columnFamilies.get(cf)) {
-          byte[] cqBytes = Bytes.toBytes(cq);
-          byte[] val = Bytes.toBytes(tuple.getStringByField(cq));
-
-          if (ts > 0) {
-            p.add(cfBytes, cqBytes, ts, val);
-          } else {
-            p.add(cfBytes, cqBytes, val);
-          }
-        }
+    for (int i = 0; i < plan.size(); i++) {
+      byte[] val = plan.encode(i, tuple.getValueByField(plan.field(i)));
+
+      if (ts > 0) {
+        p.add(plan.family(i), plan.qualifier(i), ts, val);
+      } else {
+        p.add(plan.family(i), plan.qualifier(i), val);
       }
     }
 
@@ -85,30 +99,27 @@ public class TridentConfig<T> extends TupleTableConfig {
    * @return {@link Get}
    */
   public Get getGetFromTridentTuple(final TridentTuple tuple) {
-    byte[] rowKey = Bytes.toBytes(tuple.getStringByField(tupleRowKeyField));
+    MappingPlan plan = compile();
+    byte[] rowKey = plan.rowKey(tuple);
 
     long ts = 0;
-    if (!tupleTimestampField.equals("")) {
-      ts = tuple.getLongByField(tupleTimestampField);
+    if (plan.hasTimestamp()) {
+      ts = tuple.getLongByField(plan.getTimestampField());
     }
 
     Get g = new Get(rowKey);
 
-    if (columnFamilies.size() > 0) {
-      for (String cf : columnFamilies.keySet()) {
-        byte[] cfBytes = Bytes.toBytes(cf);
-        for (String cq : columnFamilies.get(cf)) {
-          byte[] cqBytes = Bytes.toBytes(cq);
-          g.addColumn(cfBytes, cqBytes);
-          try {
-            g.setMaxVersions(1);
-          } catch (IOException e) {
-            Log.error("Invalid number of versions", e);
-          }
-          if (ts > 0) {
-            g.setTimeStamp(ts);
-          }
-        }
+    if (plan.size() > 0) {
+      for (int i = 0; i < plan.size(); i++) {
+        g.addColumn(plan.family(i), plan.qualifier(i));
+      }
+      try {
+        g.setMaxVersions(1);
+      } catch (IOException e) {
+        Log.error("Invalid number of versions", e);
+      }
+      if (ts > 0) {
+        g.setTimeStamp(ts);
       }
     }
 
@@ -129,6 +140,81 @@ public class TridentConfig<T> extends TupleTableConfig {
     this.stateCacheSize = stateCacheSize;
   }
 
+  /**
+   * @return The size in bytes of the worker-wide off-heap state cache, 0 if disabled
+   */
+  public long getSharedCacheBytes() {
+    return sharedCacheBytes;
+  }
+
+  /**
+   * @param sharedCacheBytes Enables the worker-wide off-heap state cache and sets its size in
+   *          bytes.
+   *          <p>
+   *          When enabled the state of every partition in a worker is cached in a single
+   *          {@link OffHeapCache} per topology and table, instead of a per partition on-heap LRU
+   *          cache of {@link #getStateCacheSize()} entries. Values are held serialized, off the
+   *          heap, so a large cache doesn't add to GC pauses. The worker's
+   *          <tt>-XX:MaxDirectMemorySize</tt> must allow for it.
+   *          <p>
+   *          Disabled (0) by default
+   */
+  public void setSharedCacheBytes(long sharedCacheBytes) {
+    this.sharedCacheBytes = sharedCacheBytes;
+  }
+
+  /**
+   * @return The number of rows cached by the query function, 0 if disabled
+   */
+  public int getQueryCacheSize() {
+    return queryCacheSize;
+  }
+
+  /**
+   * @param queryCacheSize Enables a least-recently-used (LRU) cache of rows read by
+   *          {@link backtype.storm.contrib.hbase.trident.HBaseValueQuery}, and sets the number
+   *          of rows it holds. Rows that don't exist are cached too. Rows written through the same
+   *          state are removed from the cache.
+   *          <p>
+   *          The cache isn't used if a timestamp field is configured. Disabled (0) by default
+   */
+  public void setQueryCacheSize(int queryCacheSize) {
+    this.queryCacheSize = queryCacheSize;
+  }
+
+  /**
+   * @return The time in milliseconds a row is cached by the query function
+   */
+  public long getQueryCacheTtlMillis() {
+    return queryCacheTtlMillis;
+  }
+
+  /**
+   * @param queryCacheTtlMillis Sets the time in milliseconds a row is cached by the query
+   *          function, which bounds how stale a row written by another topology can be. <b>Default
+   *          is 60000
+   */
+  public void setQueryCacheTtlMillis(long queryCacheTtlMillis) {
+    this.queryCacheTtlMillis = queryCacheTtlMillis;
+  }
+
+  /**
+   * @return The {@link ValueCodec} used to encode the qualifiers of persistent aggregate keys
+   */
+  public ValueCodec getQualifierCodec() {
+    return qualifierCodec;
+  }
+
+  /**
+   * @param qualifierCodec Sets the {@link ValueCodec} used to encode the column qualifier of
+   *          persistent aggregate keys. The row key is encoded with the row key codec.
+   *          <p>
+   *          Default is {@link ValueCodecs#STRING}
+   */
+  public void setQualifierCodec(ValueCodec qualifierCodec) {
+    this.qualifierCodec = qualifierCodec;
+  }
+
   /**
    * @return The {@link Serializer} used for persisting Trident state to HBase
    */
@@ -0,0 +1,138 @@
+package backtype.storm.contrib.hbase.utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded least-recently-used (LRU) cache whose entries expire a fixed time after they were
+ * cached.
+ * <p>
+ * Used to serve hot keys from memory when reading from HBase. Absent values can be cached too (e.g.
+ * an empty {@link org.apache.hadoop.hbase.client.Result}), so keys that don't exist aren't looked
+ * up again until they expire. Not thread-safe, each bolt or state holds its own cache.
+ * @param <K> The key type, which must implement equals and hashCode
+ * @param <V> The value type
+ */
+public class TtlCache<K, V> implements CacheStats {
+  private final LinkedHashMap<K, Entry<V>> entries;
+  private final long ttlMillis;
+
+  private long hits;
+  private long misses;
+  private long evictions;
+
+  /**
+   * @param maxSize The maximum number of entries, the least-recently-used are evicted beyond it
+   * @param ttlMillis The time an entry is valid for after it was cached
+   */
+  public TtlCache(final int maxSize, final long ttlMillis) {
+    this.ttlMillis = ttlMillis;
+    this.entries = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+        if (size() > maxSize) {
+          evictions++;
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  /**
+   * @param key The key
+   * @return The cached value, or null if the key isn't cached or has expired
+   */
+  public V get(final K key) {
+    Entry<V> e = entries.get(key);
+    if (e == null) {
+      misses++;
+      return null;
+    }
+    if (e.expires <= System.currentTimeMillis()) {
+      entries.remove(key);
+      misses++;
+      return null;
+    }
+    hits++;
+    return e.value;
+  }
+
+  /**
+   * Caches the value, replacing any value already cached for the key
+   * @param key The key
+   * @param value The value
+   */
+  public void put(final K key, final V value) {
+    entries.put(key, new Entry<V>(value, System.currentTimeMillis() + ttlMillis));
+  }
+
+  /**
+   * @param key The key to remove from the cache
+   */
+  public void remove(final K key) {
+    entries.remove(key);
+  }
+
+  /**
+   * Removes every entry from the cache
+   */
+  public void clear() {
+    entries.clear();
+  }
+
+  /**
+   * @return The number of cached entries, including those that have expired but not been removed
+   */
+  public int size() {
+    return entries.size();
+  }
+
+  /**
+   * @return The number of cache hits
+   */
+  @Override
+  public long getHits() {
+    return hits;
+  }
+
+  /**
+   * @return The number of cache misses, including expired entries
+   */
+  @Override
+  public long getMisses() {
+    return misses;
+  }
+
+  /**
+   * @return The number of least-recently-used entries evicted to make space for new ones, not
+   *         counting expired entries
+   */
+  @Override
+  public long getEvictions() {
+    return evictions;
+  }
+
+  /**
+   * @return -1, the cache doesn't measure its values
+   */
+  @Override
+  public long getUsedBytes() {
+    return -1L;
+  }
+
+  /**
+   * A cached value and when it expires
+   */
+  private static final class Entry<V> {
+    final V value;
+    final long expires;
+
+    Entry(final V value, final long expires) {
+      this.value = value;
+      this.expires = expires;
+    }
+  }
+}
@@ -0,0 +1,23 @@
+package backtype.storm.contrib.hbase.utils;
+
+import backtype.storm.Constants;
+import backtype.storm.tuple.Tuple;
+
+/**
+ * Helper methods for working with Storm {@link Tuple}s
+ */
+public final class TupleHelpers {
+
+  private TupleHelpers() {
+  }
+
+  /**
+   * @param tuple The {@link Tuple}
+   * @return True if the tuple is a system tick tuple, false if not
+   * @see backtype.storm.Config#TOPOLOGY_TICK_TUPLE_FREQ_SECS
+   */
+  public static boolean isTickTuple(final Tuple tuple) {
+    return Constants.SYSTEM_COMPONENT_ID.equals(tuple.getSourceComponent())
+        && Constants.SYSTEM_TICK_STREAM_ID.equals(tuple.getSourceStreamId());
+  }
+}
@@ -3,11 +3,13 @@ package backtype.storm.contrib.hbase.utils;
 import java.io.Serializable;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.NavigableMap;
 import java.util.Set;
 import java.util.TreeMap;
 
+import org.apache.hadoop.hbase.client.Get;
 import org.apache.hadoop.hbase.client.Increment;
 import org.apache.hadoop.hbase.client.Put;
 import org.apache.hadoop.hbase.util.Bytes;
@@ -29,6 +31,22 @@ public class TupleTableConfig implements Serializable {
   private boolean batch = true;
   protected boolean writeToWAL = true;
   private long writeBufferSize = 0L;
+  private int asyncBatchSize = 0;
+  private long asyncBatchBytes = 2097152L;
+  private String bulkLoadDir = null;
+  private long bulkLoadBufferBytes = 67108864L;
+  private int maxRetries = 3;
+  private long retryBackoffMillis = 100L;
+  private int maxPendingMutations = 0;
+  private long maxPendingBytes = 0L;
+  private OverloadPolicy overloadPolicy = OverloadPolicy.BLOCK;
+  private int metricsBucketSecs = 60;
+  private HTableFactory tableFactory = HTableFactories.HTABLE;
+  private ValueCodec rowKeyCodec = ValueCodecs.STRING;
+  private Map<String, ValueCodec> rowKeySuffixes = new LinkedHashMap<String, ValueCodec>();
+  private RowKeyStrategy rowKeyStrategy = RowKeyStrategies.NONE;
+  private Map<String, ValueCodec> columnCodecs = new HashMap<String, ValueCodec>();
+  private transient MappingPlan plan;
 
   /**
    * Initialize configuration
@@ -69,6 +87,89 @@ public class TupleTableConfig implements Serializable {
     columns.add(columnQualifier);
 
     this.columnFamilies.put(columnFamily, columns);
+    this.plan = null;
+  }
+
+  /**
+   * Sets the {@link ValueCodec} used to encode a column's tuple values. Columns without a codec
+   * are stored as strings, see {@link ValueCodecs#STRING}
+   * @param columnFamily The column family name
+   * @param columnQualifier The column qualifier name
+   * @param codec The {@link ValueCodec}
+   */
+  public void setColumnCodec(final String columnFamily, final String columnQualifier,
+      final ValueCodec codec) {
+    this.columnCodecs.put(columnKey(columnFamily, columnQualifier), codec);
+    this.plan = null;
+  }
+
+  /**
+   * @return The {@link ValueCodec} used to encode the row key
+   */
+  public ValueCodec getRowKeyCodec() {
+    return rowKeyCodec;
+  }
+
+  /**
+   * @param rowKeyCodec Sets the {@link ValueCodec} used to encode the row key.
+   *          <p>
+   *          Default is {@link ValueCodecs#STRING}
+   */
+  public void setRowKeyCodec(ValueCodec rowKeyCodec) {
+    this.rowKeyCodec = rowKeyCodec;
+    this.plan = null;
+  }
+
+  /**
+   * Appends a field to the row key, making it a composite of the row key field followed by each
+   * added field, in the order they were added. E.g. a user id followed by a
+   * {@link ValueCodecs#REVERSED_LONG} timestamp stores each user's rows newest first.
+   * <p>
+   * The parts are concatenated without separators, so every part but the last should use a fixed
+   * width codec
+   * @param field The {@link Tuple} field
+   * @param codec The {@link ValueCodec} used to encode it
+   */
+  public void addRowKeyField(final String field, final ValueCodec codec) {
+    this.rowKeySuffixes.put(field, codec);
+    this.plan = null;
+  }
+
+  /**
+   * @return The {@link RowKeyStrategy} applied to the encoded row key
+   */
+  public RowKeyStrategy getRowKeyStrategy() {
+    return rowKeyStrategy;
+  }
+
+  /**
+   * @param rowKeyStrategy Sets the {@link RowKeyStrategy} applied to the encoded row key, e.g. a
+   *          {@link SaltedRowKeyStrategy} to spread sequential keys over the table's regions.
+   *          <p>
+   *          Default is {@link RowKeyStrategies#NONE}
+   */
+  public void setRowKeyStrategy(RowKeyStrategy rowKeyStrategy) {
+    this.rowKeyStrategy = rowKeyStrategy;
+    this.plan = null;
+  }
+
+  static String columnKey(final String columnFamily, final String columnQualifier) {
+    return columnFamily + ":" + columnQualifier;
+  }
+
+  /**
+   * Compiles the configured tuple to column mapping into an immutable {@link MappingPlan}. Called
+   * by the bolts and states at prepare time; the plan is recompiled if columns are added later
+   * @return The {@link MappingPlan}
+   */
+  public MappingPlan compile() {
+    MappingPlan p = this.plan;
+    if (p == null) {
+      p = new MappingPlan(tupleRowKeyField, tupleTimestampField, columnFamilies, rowKeyCodec,
+          columnCodecs, rowKeySuffixes, rowKeyStrategy);
+      this.plan = p;
+    }
+    return p;
   }
 
   /**
@@ -77,35 +178,51 @@ public class TupleTableConfig implements Serializable {
    * @return {@link Put}
    */
   public Put getPutFromTuple(final Tuple tuple) {
-    byte[] rowKey = Bytes.toBytes(tuple.getStringByField(tupleRowKeyField));
+    MappingPlan plan = compile();
+    MappingPlan.Resolved fields = plan.resolve(tuple);
+    byte[] rowKey = plan.rowKey(tuple);
 
     long ts = 0;
-    if (!tupleTimestampField.equals("")) {
-      ts = tuple.getLongByField(tupleTimestampField);
+    if (plan.hasTimestamp()) {
+      ts = tuple.getLong(fields.timestamp());
     }
 
     Put p = new Put(rowKey);
     p.setWriteToWAL(writeToWAL);
 
-    if (columnFamilies.size() > 0) {
-      for (String cf : columnFamilies.keySet()) {
-        byte[] cfBytes = Bytes.toBytes(cf);
-        for (String cq : columnFamilies.get(cf)) {
-          byte[] cqBytes = Bytes.toBytes(cq);
-          byte[] val = Bytes.toBytes(tuple.getStringByField(cq));
-
-          if (ts > 0) {
-            p.add(cfBytes, cqBytes, ts, val);
-          } else {
-            p.add(cfBytes, cqBytes, val);
-          }
-        }
+    for (int i = 0; i < plan.size(); i++) {
+      int field = fields.column(i);
+      if (field == MappingPlan.NOT_A_FIELD) {
+        throw new IllegalArgumentException(plan.field(i) + " does not exist");
+      }
+      byte[] val = plan.encode(i, tuple.getValue(field));
+
+      if (ts > 0) {
+        p.add(plan.family(i), plan.qualifier(i), ts, val);
+      } else {
+        p.add(plan.family(i), plan.qualifier(i), val);
       }
     }
 
     return p;
   }
 
+  /**
+   * Creates a HBase {@link Get} for the configured columns from a Storm {@link Tuple}. Only the row
+   * key fields are read from the tuple, the latest version of each column is returned
+   * @param tuple The {@link Tuple}
+   * @return {@link Get}
+   */
+  public Get getGetFromTuple(final Tuple tuple) {
+    MappingPlan plan = compile();
+    Get g = new Get(plan.rowKey(tuple));
+
+    for (int i = 0; i < plan.size(); i++) {
+      g.addColumn(plan.family(i), plan.qualifier(i));
+    }
+    return g;
+  }
+
   /**
    * Creates a HBase {@link Increment} from a Storm {@link Tuple}
    * @param tuple The {@link Tuple}
@@ -113,31 +230,53 @@ public class TupleTableConfig implements Serializable {
    * @return {@link Increment}
    */
   public Increment getIncrementFromTuple(final Tuple tuple, final long increment) {
-    byte[] rowKey = Bytes.toBytes(tuple.getStringByField(tupleRowKeyField));
+    MappingPlan plan = compile();
+    MappingPlan.Resolved fields = plan.resolve(tuple);
+    byte[] rowKey = plan.rowKey(tuple);
 
     Increment inc = new Increment(rowKey);
     inc.setWriteToWAL(writeToWAL);
 
-    if (columnFamilies.size() > 0) {
-      for (String cf : columnFamilies.keySet()) {
-        byte[] cfBytes = Bytes.toBytes(cf);
-        for (String cq : columnFamilies.get(cf)) {
-          byte[] val;
-          try {
-            val = Bytes.toBytes(tuple.getStringByField(cq));
-          } catch (IllegalArgumentException ex) {
-            // if cq isn't a tuple field, use cq for counter instead of tuple
-            // value
-            val = Bytes.toBytes(cq);
-          }
-          inc.addColumn(cfBytes, val, increment);
-        }
+    for (int i = 0; i < plan.size(); i++) {
+      int field = fields.column(i);
+      byte[] val;
+      if (field == MappingPlan.NOT_A_FIELD) {
+        // if cq isn't a tuple field, use cq for counter instead of tuple value
+        val = plan.qualifier(i);
+      } else {
+        val = plan.encode(i, tuple.getValue(field));
       }
+      inc.addColumn(plan.family(i), val, increment);
     }
 
     return inc;
   }
 
+  /**
+   * Adds the counters for a Storm {@link Tuple} to a {@link CounterAccumulator}. The same as adding
+   * the result of {@link #getIncrementFromTuple(Tuple, long)}, without creating the Increment
+   * @param counters The {@link CounterAccumulator}
+   * @param tuple The {@link Tuple}
+   * @param increment The amount to increment the counters by
+   */
+  public void addIncrementFromTuple(final CounterAccumulator counters, final Tuple tuple,
+      final long increment) {
+    MappingPlan plan = compile();
+    MappingPlan.Resolved fields = plan.resolve(tuple);
+    byte[] rowKey = plan.rowKey(tuple);
+
+    for (int i = 0; i < plan.size(); i++) {
+      int field = fields.column(i);
+      byte[] val;
+      if (field == MappingPlan.NOT_A_FIELD) {
+        val = plan.qualifier(i);
+      } else {
+        val = plan.encode(i, tuple.getValue(field));
+      }
+      counters.add(rowKey, plan.family(i), val, increment);
+    }
+  }
+
   /**
    * Increment the counter for the given family and column by the specified amount
    * <p>
@@ -237,6 +376,234 @@ public class TupleTableConfig implements Serializable {
     return writeBufferSize;
   }
 
+  /**
+   * @return The number of puts collected before an asynchronous batch write, 0 if disabled
+   */
+  public int getAsyncBatchSize() {
+    return asyncBatchSize;
+  }
+
+  /**
+   * @param asyncBatchSize Enables the asynchronous batch write path and sets the number of puts
+   *          collected before they are sent to HBase in a single batch call.
+   *          <p>
+   *          When enabled puts are collected in the bolt instead of the client-side write buffer
+   *          and sent with {@link org.apache.hadoop.hbase.client.HTable#batch} on a background
+   *          thread, so the bolt keeps processing tuples while the previous batch is in flight.
+   *          Tuples are acked once their batch has been written.
+   *          <p>
+   *          Disabled (0) by default
+   * @see AsyncBatchWriter
+   */
+  public void setAsyncBatchSize(int asyncBatchSize) {
+    this.asyncBatchSize = asyncBatchSize;
+  }
+
+  /**
+   * @return The size in bytes at which an asynchronous batch is sent to HBase
+   */
+  public long getAsyncBatchBytes() {
+    return asyncBatchBytes;
+  }
+
+  /**
+   * @param asyncBatchBytes Sets the size in bytes at which an asynchronous batch is sent to HBase,
+   *          even if it holds fewer than {@link #getAsyncBatchSize()} puts.
+   *          <p>
+   *          Default is 2 MB (2097152 bytes)
+   */
+  public void setAsyncBatchBytes(long asyncBatchBytes) {
+    this.asyncBatchBytes = asyncBatchBytes;
+  }
+
+  /**
+   * @return The directory HFiles are staged in before they are bulk loaded, null if bulk load mode
+   *         is disabled
+   */
+  public String getBulkLoadDir() {
+    return bulkLoadDir;
+  }
+
+  /**
+   * @return True if puts are written to HFiles and bulk loaded instead of sent to HBase
+   */
+  public boolean isBulkLoad() {
+    return bulkLoadDir != null;
+  }
+
+  /**
+   * @param bulkLoadDir Enables bulk load mode and sets the directory HFiles are staged in. Without
+   *          a scheme the directory is on the file system of <tt>hbase.rootdir</tt>, which the
+   *          region servers must be able to read and move the files from.
+   *          <p>
+   *          Meant for backfills. Puts are sorted in memory and written to HFiles per column
+   *          family in a directory of their own for each task, then handed to the table's regions
+   *          with a bulk load at every checkpoint, bypassing the region servers' memstores and
+   *          write-ahead logs. Writes are only visible once they are loaded, and tuples are only
+   *          acked then. Increments can't be bulk loaded.
+   *          <p>
+   *          Disabled (null) by default
+   * @see HFileBulkLoader
+   */
+  public void setBulkLoadDir(String bulkLoadDir) {
+    this.bulkLoadDir = bulkLoadDir;
+  }
+
+  /**
+   * @return The size in bytes of the sorted puts held in memory before they are written to HFiles
+   */
+  public long getBulkLoadBufferBytes() {
+    return bulkLoadBufferBytes;
+  }
+
+  /**
+   * @param bulkLoadBufferBytes Sets the size in bytes of the sorted puts held in memory in bulk
+   *          load mode. When full they are written to a new set of HFiles, to be loaded at the next
+   *          checkpoint.
+   *          <p>
+   *          Default is 64 MB (67108864 bytes)
+   */
+  public void setBulkLoadBufferBytes(long bulkLoadBufferBytes) {
+    this.bulkLoadBufferBytes = bulkLoadBufferBytes;
+  }
+
+  /**
+   * @return The maximum number of times failed actions of a batch are retried
+   */
+  public int getMaxRetries() {
+    return maxRetries;
+  }
+
+  /**
+   * @param maxRetries Sets the maximum number of times the failed actions of a batch are retried
+   *          before the batch is failed. Only the failed actions are retried, on top of the retries
+   *          made by the HBase client itself.
+   *          <p>
+   *          Default is 3
+   * @see HTableBatch
+   */
+  public void setMaxRetries(int maxRetries) {
+    this.maxRetries = maxRetries;
+  }
+
+  /**
+   * @return The time in milliseconds to wait before the first retry of a batch's failed actions
+   */
+  public long getRetryBackoffMillis() {
+    return retryBackoffMillis;
+  }
+
+  /**
+   * @param retryBackoffMillis Sets the time in milliseconds to wait before the first retry of a
+   *          batch's failed actions. The wait is doubled for every retry after.
+   *          <p>
+   *          Default is 100 ms
+   */
+  public void setRetryBackoffMillis(long retryBackoffMillis) {
+    this.retryBackoffMillis = retryBackoffMillis;
+  }
+
+  /**
+   * @return The maximum number of mutations waiting to be written, 0 if unbounded
+   */
+  public int getMaxPendingMutations() {
+    return maxPendingMutations;
+  }
+
+  /**
+   * @param maxPendingMutations Sets the maximum number of mutations a bolt or state holds that
+   *          haven't been written to HBase yet. Applies to ack-on-flush mode and the asynchronous
+   *          batch write path of the bolts. When HBase slows down the budget fills up and the
+   *          {@link OverloadPolicy} is applied, rather than the mutations building up in memory
+   *          until the worker runs out of heap or the tuples time out. The Trident states write
+   *          each batch before the next, so the budget applies to each batch's writes on their
+   *          own.
+   *          <p>
+   *          Unbounded (0) by default
+   */
+  public void setMaxPendingMutations(int maxPendingMutations) {
+    this.maxPendingMutations = maxPendingMutations;
+  }
+
+  /**
+   * @return The maximum heap size in bytes of the mutations waiting to be written, 0 if unbounded
+   */
+  public long getMaxPendingBytes() {
+    return maxPendingBytes;
+  }
+
+  /**
+   * @param maxPendingBytes Sets the maximum heap size in bytes of the mutations a bolt or state
+   *          holds that haven't been written to HBase yet, see
+   *          {@link #setMaxPendingMutations(int)}.
+   *          <p>
+   *          Unbounded (0) by default
+   */
+  public void setMaxPendingBytes(long maxPendingBytes) {
+    this.maxPendingBytes = maxPendingBytes;
+  }
+
+  /**
+   * @return What is done with new writes once the pending mutation budget is used up
+   */
+  public OverloadPolicy getOverloadPolicy() {
+    return overloadPolicy;
+  }
+
+  /**
+   * @param overloadPolicy Sets what is done with new writes once the pending mutation budget is
+   *          used up.
+   *          <p>
+   *          Default is {@link OverloadPolicy#BLOCK}
+   */
+  public void setOverloadPolicy(OverloadPolicy overloadPolicy) {
+    this.overloadPolicy = overloadPolicy;
+  }
+
+  /**
+   * @param mutations The number of pending mutations, including the new ones
+   * @param bytes The heap size of the pending mutations, including the new ones
+   * @return True if the mutations are over the pending mutation budget
+   */
+  public boolean isOverBudget(final int mutations, final long bytes) {
+    return (maxPendingMutations > 0 && mutations > maxPendingMutations)
+        || (maxPendingBytes > 0 && bytes > maxPendingBytes);
+  }
+
+  /**
+   * @return The time bucket size in seconds of the {@link HBaseMetrics}, 0 if disabled
+   */
+  public int getMetricsBucketSecs() {
+    return metricsBucketSecs;
+  }
+
+  /**
+   * @param metricsBucketSecs Sets the time bucket size in seconds of the {@link HBaseMetrics}
+   *          reported by bolts and states using this configuration. Set to 0 to disable them.
+   *          <p>
+   *          Default is 60 seconds
+   */
+  public void setMetricsBucketSecs(int metricsBucketSecs) {
+    this.metricsBucketSecs = metricsBucketSecs;
+  }
+
+  /**
+   * @return The {@link HTableFactory} the table is created with
+   */
+  public HTableFactory getTableFactory() {
+    return tableFactory;
+  }
+
+  /**
+   * @param tableFactory Sets the {@link HTableFactory} the table is created with, e.g. a
+   *          {@link MemoryHTableFactory} to run without a HBase cluster.
+   *          <p>
+   *          Default is {@link HTableFactories#HTABLE}
+   */
+  public void setTableFactory(HTableFactory tableFactory) {
+    this.tableFactory = tableFactory;
+  }
+
   /**
    * @return A Set of configured column families
    */
@@ -0,0 +1,23 @@
+package backtype.storm.contrib.hbase.utils;
+
+import java.io.Serializable;
+
+/**
+ * Converts tuple values to and from the bytes stored in HBase.
+ * <p>
+ * Codecs are registered per column, and for the row key, in {@link TupleTableConfig}. The built-in
+ * codecs are in {@link ValueCodecs}; implement this interface for custom encodings.
+ */
+public interface ValueCodec extends Serializable {
+  /**
+   * @param value The tuple value
+   * @return The bytes to store in HBase
+   */
+  byte[] encode(Object value);
+
+  /**
+   * @param bytes The bytes stored in HBase
+   * @return The tuple value
+   */
+  Object decode(byte[] bytes);
+}
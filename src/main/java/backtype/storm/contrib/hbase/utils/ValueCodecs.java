@@ -0,0 +1,101 @@
+package backtype.storm.contrib.hbase.utils;
+
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * Built-in {@link ValueCodec}s
+ */
+public enum ValueCodecs implements ValueCodec {
+  /**
+   * UTF-8 encoded string. Non-string values are converted with {@link Object#toString()}.
+   * <p>
+   * This is the default codec
+   */
+  STRING {
+    @Override
+    public byte[] encode(Object value) {
+      return Bytes.toBytes(value.toString());
+    }
+
+    @Override
+    public Object decode(byte[] bytes) {
+      return Bytes.toString(bytes);
+    }
+  },
+
+  /**
+   * Raw byte[] passthrough
+   */
+  BYTES {
+    @Override
+    public byte[] encode(Object value) {
+      return (byte[]) value;
+    }
+
+    @Override
+    public Object decode(byte[] bytes) {
+      return bytes;
+    }
+  },
+
+  /**
+   * 8 byte big-endian long, the same encoding used by HBase counters
+   */
+  LONG {
+    @Override
+    public byte[] encode(Object value) {
+      return Bytes.toBytes(((Number) value).longValue());
+    }
+
+    @Override
+    public Object decode(byte[] bytes) {
+      return Bytes.toLong(bytes);
+    }
+  },
+
+  /**
+   * 8 byte big-endian long, stored as <tt>Long.MAX_VALUE - value</tt>. Used for reversed
+   * timestamps, so the most recent rows for a key sort first
+   */
+  REVERSED_LONG {
+    @Override
+    public byte[] encode(Object value) {
+      return Bytes.toBytes(Long.MAX_VALUE - ((Number) value).longValue());
+    }
+
+    @Override
+    public Object decode(byte[] bytes) {
+      return Long.MAX_VALUE - Bytes.toLong(bytes);
+    }
+  },
+
+  /**
+   * 4 byte big-endian int
+   */
+  INT {
+    @Override
+    public byte[] encode(Object value) {
+      return Bytes.toBytes(((Number) value).intValue());
+    }
+
+    @Override
+    public Object decode(byte[] bytes) {
+      return Bytes.toInt(bytes);
+    }
+  },
+
+  /**
+   * 8 byte IEEE 754 double
+   */
+  DOUBLE {
+    @Override
+    public byte[] encode(Object value) {
+      return Bytes.toBytes(((Number) value).doubleValue());
+    }
+
+    @Override
+    public Object decode(byte[] bytes) {
+      return Bytes.toDouble(bytes);
+    }
+  };
+}
@@ -0,0 +1,83 @@
+package backtype.storm.contrib.hbase.utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Worker-wide registry of resources that are closed when the worker shuts down.
+ * <p>
+ * Trident states, and the bolt instances Storm creates for each transactional batch, are never
+ * told when they are discarded, so the connectors, writer threads and caches they hold are
+ * registered here instead. A single JVM shutdown hook, installed on first use, closes whatever is
+ * still registered, most recent first. A resource that is released earlier is closed straight
+ * away and unregistered.
+ */
+public final class WorkerResources {
+  private static final Logger LOG = Logger.getLogger(WorkerResources.class);
+
+  private static final Set<Closeable> RESOURCES = new LinkedHashSet<Closeable>();
+  private static boolean hookInstalled;
+
+  private WorkerResources() {
+  }
+
+  /**
+   * Registers a resource to be closed when the worker shuts down
+   * @param resource The resource
+   */
+  public static synchronized void register(final Closeable resource) {
+    if (!hookInstalled) {
+      Runtime.getRuntime().addShutdownHook(new Thread("hbase-worker-resources") {
+        @Override
+        public void run() {
+          closeAll();
+        }
+      });
+      hookInstalled = true;
+    }
+    RESOURCES.add(resource);
+  }
+
+  /**
+   * Closes a resource registered with {@link #register(Closeable)} and unregisters it
+   * @param resource The resource
+   */
+  public static void release(final Closeable resource) {
+    synchronized (WorkerResources.class) {
+      if (!RESOURCES.remove(resource)) {
+        return;
+      }
+    }
+    close(resource);
+  }
+
+  /**
+   * Closes every registered resource, most recent first
+   */
+  static void closeAll() {
+    List<Closeable> resources;
+    synchronized (WorkerResources.class) {
+      resources = new ArrayList<Closeable>(RESOURCES);
+      RESOURCES.clear();
+    }
+    for (int i = resources.size() - 1; i >= 0; i--) {
+      close(resources.get(i));
+    }
+  }
+
+  private static void close(final Closeable resource) {
+    try {
+      resource.close();
+    } catch (IOException ex) {
+      LOG.error("Unable to close " + resource, ex);
+    } catch (RuntimeException ex) {
+      LOG.error("Unable to close " + resource, ex);
+    }
+  }
+}
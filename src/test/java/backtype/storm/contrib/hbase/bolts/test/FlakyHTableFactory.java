@@ -0,0 +1,51 @@
+package backtype.storm.contrib.hbase.bolts.test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.TableNotFoundException;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.Row;
+
+import backtype.storm.contrib.hbase.utils.MemoryHTable;
+import backtype.storm.contrib.hbase.utils.MemoryHTableFactory;
+import backtype.storm.contrib.hbase.utils.MemoryTable;
+import backtype.storm.contrib.hbase.utils.TupleTableConfig;
+
+/**
+ * Creates {@link MemoryHTable}s that record the number of actions in each batch call, and fail
+ * every batch call while {@link #failing} is set
+ */
+@SuppressWarnings("serial")
+public class FlakyHTableFactory extends MemoryHTableFactory {
+  public final List<Integer> batches = Collections.synchronizedList(new ArrayList<Integer>());
+  public volatile boolean failing;
+
+  /** {@inheritDoc} */
+  @Override
+  public HTableInterface createTable(final TupleTableConfig conf) throws IOException {
+    MemoryTable table = MemoryTable.get(conf.getTableName());
+    if (table == null) {
+      throw new TableNotFoundException(conf.getTableName());
+    }
+
+    HTableInterface htable = new MemoryHTable(table, HBaseConfiguration.create(), 0) {
+      @Override
+      public void batch(final List<? extends Row> actions, final Object[] results)
+          throws IOException, InterruptedException {
+        batches.add(actions.size());
+        if (failing) {
+          throw new IOException("Region server unavailable");
+        }
+        super.batch(actions, results);
+      }
+    };
+    if (conf.isBatch()) {
+      htable.setAutoFlush(false, true);
+    }
+    return htable;
+  }
+}
@@ -0,0 +1,46 @@
+package backtype.storm.contrib.hbase.bolts.test;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import backtype.storm.task.IOutputCollector;
+import backtype.storm.tuple.Tuple;
+
+/**
+ * Records the tuples a bolt emits, acks and fails. Safe to call from a bolt's background threads
+ */
+public class RecordingCollector implements IOutputCollector {
+  public final List<List<Object>> emitted = Collections.synchronizedList(
+    new ArrayList<List<Object>>());
+  public final List<Tuple> acked = Collections.synchronizedList(new ArrayList<Tuple>());
+  public final List<Tuple> failed = Collections.synchronizedList(new ArrayList<Tuple>());
+
+  @Override
+  public List<Integer> emit(String streamId, Collection<Tuple> anchors, List<Object> tuple) {
+    emitted.add(tuple);
+    return Collections.emptyList();
+  }
+
+  @Override
+  public void emitDirect(int taskId, String streamId, Collection<Tuple> anchors,
+      List<Object> tuple) {
+    emitted.add(tuple);
+  }
+
+  @Override
+  public void ack(Tuple input) {
+    acked.add(input);
+  }
+
+  @Override
+  public void fail(Tuple input) {
+    failed.add(input);
+  }
+
+  @Override
+  public void reportError(Throwable error) {
+    throw new AssertionError(error);
+  }
+}
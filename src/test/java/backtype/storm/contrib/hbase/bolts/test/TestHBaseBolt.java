@@ -0,0 +1,165 @@
+package backtype.storm.contrib.hbase.bolts.test;
+
+import java.io.IOException;
+import java.util.HashMap;
+
+import junit.framework.Assert;
+
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import backtype.storm.contrib.hbase.bolts.HBaseBolt;
+import backtype.storm.contrib.hbase.utils.MemoryHTable;
+import backtype.storm.contrib.hbase.utils.MemoryHTableFactory;
+import backtype.storm.contrib.hbase.utils.MemoryTable;
+import backtype.storm.contrib.hbase.utils.OverloadPolicy;
+import backtype.storm.contrib.hbase.utils.TupleTableConfig;
+import backtype.storm.task.OutputCollector;
+
+public class TestHBaseBolt {
+  private static final String TABLE = "shorturl";
+
+  @Rule
+  public TemporaryFolder bulkLoadDir = new TemporaryFolder();
+
+  private MemoryTable table;
+  private TupleTableConfig conf;
+  private RecordingCollector collector;
+
+  @Before
+  public void setUp() {
+    table = MemoryTable.create(TABLE, "data");
+    conf = new TupleTableConfig(TABLE, "shortid");
+    conf.addColumn("data", "url");
+    conf.setTableFactory(new MemoryHTableFactory());
+    collector = new RecordingCollector();
+  }
+
+  @After
+  public void tearDown() {
+    MemoryTable.drop(TABLE);
+  }
+
+  private HBaseBolt prepare(final HBaseBolt bolt) {
+    bolt.prepare(new HashMap<String, Object>(), null, new OutputCollector(collector));
+    return bolt;
+  }
+
+  @Test
+  public void testAckOnFlush() {
+    conf.setBatch(true);
+    HBaseBolt bolt = new HBaseBolt(conf);
+    bolt.setAckOnFlush(true);
+    bolt.setFlushIntervalSecs(60);
+    prepare(bolt);
+
+    for (int i = 0; i < 3; i++) {
+      bolt.execute(Tuples.click("id" + i, "www.example.com/" + i, "20120810"));
+    }
+    // Held in the write buffer until it is flushed
+    Assert.assertEquals(0, collector.acked.size());
+    Assert.assertEquals(0, table.size());
+
+    bolt.execute(Tuples.tick());
+    Assert.assertEquals(4, collector.acked.size());
+    Assert.assertEquals(3, table.size());
+    bolt.cleanup();
+  }
+
+  @Test
+  public void testFailFastFlushesBeforeRejecting() {
+    conf.setBatch(true);
+    conf.setMaxPendingMutations(2);
+    conf.setOverloadPolicy(OverloadPolicy.FAIL_FAST);
+    HBaseBolt bolt = new HBaseBolt(conf);
+    bolt.setAckOnFlush(true);
+    bolt.setFlushIntervalSecs(60);
+    prepare(bolt);
+
+    for (int i = 0; i < 3; i++) {
+      bolt.execute(Tuples.click("id" + i, "www.example.com/" + i, "20120810"));
+    }
+    // The third tuple flushed the first two rather than being rejected
+    Assert.assertEquals(0, collector.failed.size());
+    Assert.assertEquals(2, collector.acked.size());
+    Assert.assertEquals(2, table.size());
+
+    // The third tuple's put is written on shutdown, but the tuple is left to time out
+    bolt.cleanup();
+    Assert.assertEquals(2, collector.acked.size());
+    Assert.assertEquals(3, table.size());
+  }
+
+  @Test
+  public void testAsyncBatch() {
+    conf.setAsyncBatchSize(2);
+    HBaseBolt bolt = prepare(new HBaseBolt(conf));
+
+    for (int i = 0; i < 5; i++) {
+      bolt.execute(Tuples.click("id" + i, "www.example.com/" + i, "20120810"));
+    }
+    // Waits for the first two batches, acking their four tuples and the tick, and sends the last
+    bolt.execute(Tuples.tick());
+    Assert.assertEquals(5, collector.acked.size());
+
+    // The last batch is written on shutdown, but its tuple is left to time out
+    bolt.cleanup();
+    Assert.assertEquals(5, collector.acked.size());
+    Assert.assertEquals(5, table.size());
+    Assert.assertEquals(0, collector.failed.size());
+  }
+
+  @Test
+  public void testBulkLoadHoldsTuplesUntilLoaded() throws IOException {
+    conf.setBulkLoadDir(bulkLoadDir.getRoot().toURI().toString());
+    HBaseBolt bolt = new HBaseBolt(conf);
+    bolt.setFlushIntervalSecs(60);
+    prepare(bolt);
+
+    for (int i = 0; i < 3; i++) {
+      bolt.execute(Tuples.click("id" + i, "www.example.com/" + i, "20120810"));
+    }
+    // Held in the staged HFiles until they are loaded
+    Assert.assertEquals(0, collector.acked.size());
+    Assert.assertEquals(0, table.size());
+
+    bolt.execute(Tuples.tick());
+    Assert.assertEquals(4, collector.acked.size());
+    Assert.assertEquals(0, collector.failed.size());
+    Assert.assertEquals(3, table.size());
+    byte[] url = new MemoryHTable(table, HBaseConfiguration.create(), 0).get(
+      new Get(Bytes.toBytes("id1"))).getValue(Bytes.toBytes("data"), Bytes.toBytes("url"));
+    Assert.assertEquals("www.example.com/1", Bytes.toString(url));
+    bolt.cleanup();
+  }
+
+  @Test
+  public void testFailedBulkLoadFailsTuples() {
+    FlakyHTableFactory factory = new FlakyHTableFactory();
+    conf.setTableFactory(factory);
+    conf.setBulkLoadDir(bulkLoadDir.getRoot().toURI().toString());
+    HBaseBolt bolt = new HBaseBolt(conf);
+    bolt.setFlushIntervalSecs(60);
+    prepare(bolt);
+
+    bolt.execute(Tuples.click("id0", "www.example.com/0", "20120810"));
+    bolt.execute(Tuples.click("id1", "www.example.com/1", "20120810"));
+    factory.failing = true;
+    bolt.execute(Tuples.tick());
+    Assert.assertEquals(2, collector.failed.size());
+    Assert.assertEquals(1, collector.acked.size()); // the tick
+    Assert.assertEquals(0, table.size());
+
+    // The failed tuples' files are discarded, to be written again when they are replayed
+    factory.failing = false;
+    bolt.execute(Tuples.tick());
+    Assert.assertEquals(0, table.size());
+    bolt.cleanup();
+  }
+}
@@ -0,0 +1,94 @@
+package backtype.storm.contrib.hbase.bolts.test;
+
+import java.io.IOException;
+import java.util.HashMap;
+
+import junit.framework.Assert;
+
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import backtype.storm.contrib.hbase.bolts.HBaseCountersBolt;
+import backtype.storm.contrib.hbase.utils.MemoryHTable;
+import backtype.storm.contrib.hbase.utils.MemoryHTableFactory;
+import backtype.storm.contrib.hbase.utils.MemoryTable;
+import backtype.storm.contrib.hbase.utils.TupleTableConfig;
+import backtype.storm.task.OutputCollector;
+
+public class TestHBaseCountersBolt {
+  private static final String TABLE = "shorturl";
+  private static final byte[] DATA = Bytes.toBytes("data");
+  private static final byte[] DAILY = Bytes.toBytes("daily");
+
+  private MemoryTable table;
+  private RecordingCollector collector;
+  private HBaseCountersBolt bolt;
+
+  @Before
+  public void setUp() {
+    table = MemoryTable.create(TABLE, "data", "daily");
+    TupleTableConfig conf = new TupleTableConfig(TABLE, "shortid");
+    conf.addColumn("data", "clicks");
+    conf.addColumn("daily", "date");
+    conf.setTableFactory(new MemoryHTableFactory());
+
+    collector = new RecordingCollector();
+    bolt = new HBaseCountersBolt(conf);
+  }
+
+  @After
+  public void tearDown() {
+    MemoryTable.drop(TABLE);
+  }
+
+  private void clicks() {
+    bolt.prepare(new HashMap<String, Object>(), null, new OutputCollector(collector));
+    bolt.execute(Tuples.click("a", "www.example.com/a", "20120810"));
+    bolt.execute(Tuples.click("a", "www.example.com/a", "20120810"));
+    bolt.execute(Tuples.click("a", "www.example.com/a", "20120811"));
+    bolt.execute(Tuples.click("b", "www.example.com/b", "20120810"));
+  }
+
+  private long counter(final String row, final byte[] family, final String qualifier)
+      throws IOException {
+    HTableInterface htable = new MemoryHTable(table, HBaseConfiguration.create(), 0);
+    Result r = htable.get(new Get(Bytes.toBytes(row)));
+    return Bytes.toLong(r.getValue(family, Bytes.toBytes(qualifier)));
+  }
+
+  @Test
+  public void testIncrementPerTuple() throws IOException {
+    clicks();
+    Assert.assertEquals(4, collector.acked.size());
+    Assert.assertEquals(3L, counter("a", DATA, "clicks"));
+    Assert.assertEquals(2L, counter("a", DAILY, "20120810"));
+    Assert.assertEquals(1L, counter("a", DAILY, "20120811"));
+    Assert.assertEquals(1L, counter("b", DATA, "clicks"));
+    bolt.cleanup();
+  }
+
+  @Test
+  public void testCombine() throws IOException {
+    bolt.setCombine(true);
+    bolt.setFlushIntervalSecs(60);
+    clicks();
+
+    // Held until the summed increments are flushed
+    Assert.assertEquals(0, collector.acked.size());
+    Assert.assertEquals(0, table.size());
+
+    bolt.execute(Tuples.tick());
+    Assert.assertEquals(5, collector.acked.size());
+    Assert.assertEquals(3L, counter("a", DATA, "clicks"));
+    Assert.assertEquals(2L, counter("a", DAILY, "20120810"));
+    Assert.assertEquals(1L, counter("a", DAILY, "20120811"));
+    Assert.assertEquals(1L, counter("b", DATA, "clicks"));
+    bolt.cleanup();
+  }
+}
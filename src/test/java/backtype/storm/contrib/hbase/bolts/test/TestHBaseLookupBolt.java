@@ -0,0 +1,137 @@
+package backtype.storm.contrib.hbase.bolts.test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import junit.framework.Assert;
+
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import backtype.storm.contrib.hbase.bolts.HBaseLookupBolt;
+import backtype.storm.contrib.hbase.utils.MemoryHTable;
+import backtype.storm.contrib.hbase.utils.MemoryTable;
+import backtype.storm.contrib.hbase.utils.TupleTableConfig;
+import backtype.storm.task.OutputCollector;
+import backtype.storm.tuple.Fields;
+import backtype.storm.tuple.Values;
+
+public class TestHBaseLookupBolt {
+  private static final String TABLE = "shorturl";
+
+  private MemoryTable table;
+  private FlakyHTableFactory factory;
+  private RecordingCollector collector;
+  private HBaseLookupBolt bolt;
+
+  @Before
+  public void setUp() throws IOException {
+    table = MemoryTable.create(TABLE, "data");
+    Put p = new Put(Bytes.toBytes("a"));
+    p.add(Bytes.toBytes("data"), Bytes.toBytes("url"), Bytes.toBytes("www.example.com/a"));
+    new MemoryHTable(table, HBaseConfiguration.create(), 0).put(p);
+
+    TupleTableConfig conf = new TupleTableConfig(TABLE, "shortid");
+    conf.addColumn("data", "url");
+    conf.addColumn("data", "title");
+    conf.setMaxRetries(0);
+    factory = new FlakyHTableFactory();
+    conf.setTableFactory(factory);
+
+    collector = new RecordingCollector();
+    bolt = new HBaseLookupBolt(conf, new Fields("shortid", "date"), new Fields("url", "title"));
+    bolt.setBatchSize(3);
+    bolt.setFlushIntervalSecs(60);
+  }
+
+  @After
+  public void tearDown() {
+    MemoryTable.drop(TABLE);
+  }
+
+  private void prepare() {
+    bolt.prepare(new HashMap<String, Object>(), null, new OutputCollector(collector));
+  }
+
+  @Test
+  public void testLooksUpFullBatch() {
+    prepare();
+    bolt.execute(Tuples.click("a", "", "20120810"));
+    bolt.execute(Tuples.click("b", "", "20120810"));
+
+    // Held until the batch is full
+    Assert.assertEquals(0, collector.emitted.size());
+    Assert.assertEquals(0, factory.batches.size());
+
+    bolt.execute(Tuples.click("a", "", "20120811"));
+    Assert.assertEquals(3, collector.acked.size());
+    // Columns that don't exist are emitted as null
+    Assert.assertEquals(Arrays.asList(new Values("a", "20120810", "www.example.com/a", null),
+      new Values("a", "20120811", "www.example.com/a", null), new Values("b", "20120810", null,
+        null)), collector.emitted);
+    bolt.cleanup();
+  }
+
+  @Test
+  public void testReadsRepeatedRowOnce() {
+    prepare();
+    bolt.execute(Tuples.click("a", "", "20120810"));
+    bolt.execute(Tuples.click("a", "", "20120811"));
+    bolt.execute(Tuples.click("a", "", "20120812"));
+
+    Assert.assertEquals(Arrays.asList(1), factory.batches);
+    Assert.assertEquals(3, collector.emitted.size());
+    bolt.cleanup();
+  }
+
+  @Test
+  public void testLooksUpOnTick() {
+    prepare();
+    bolt.execute(Tuples.click("a", "", "20120810"));
+    bolt.execute(Tuples.tick());
+
+    Assert.assertEquals(1, collector.emitted.size());
+    Assert.assertEquals(2, collector.acked.size());
+    bolt.cleanup();
+  }
+
+  @Test
+  public void testCachesMissingRows() {
+    bolt.setCacheSize(10);
+    prepare();
+    bolt.execute(Tuples.click("b", "", "20120810"));
+    bolt.execute(Tuples.tick());
+    Assert.assertEquals(1, factory.batches.size());
+
+    // Served from the cache, without waiting for a batch
+    bolt.execute(Tuples.click("b", "", "20120811"));
+    Assert.assertEquals(1, factory.batches.size());
+    Assert.assertEquals(new Values("b", "20120811", null, null), collector.emitted.get(1));
+    bolt.cleanup();
+  }
+
+  @Test
+  public void testFailsBatchOnLookupError() {
+    prepare();
+    factory.failing = true;
+    bolt.execute(Tuples.click("a", "", "20120810"));
+    bolt.execute(Tuples.click("b", "", "20120810"));
+    bolt.execute(Tuples.click("c", "", "20120810"));
+
+    Assert.assertEquals(3, collector.failed.size());
+    Assert.assertEquals(0, collector.acked.size());
+    Assert.assertEquals(0, collector.emitted.size());
+
+    // The failed tuples aren't looked up again
+    factory.failing = false;
+    bolt.execute(Tuples.tick());
+    Assert.assertEquals(1, collector.acked.size());
+    Assert.assertEquals(0, collector.emitted.size());
+    bolt.cleanup();
+  }
+}
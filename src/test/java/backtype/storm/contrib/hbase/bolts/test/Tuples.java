@@ -0,0 +1,77 @@
+package backtype.storm.contrib.hbase.bolts.test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import backtype.storm.Constants;
+import backtype.storm.generated.Bolt;
+import backtype.storm.generated.SpoutSpec;
+import backtype.storm.generated.StateSpoutSpec;
+import backtype.storm.generated.StormTopology;
+import backtype.storm.task.GeneralTopologyContext;
+import backtype.storm.tuple.Fields;
+import backtype.storm.tuple.MessageId;
+import backtype.storm.tuple.Tuple;
+import backtype.storm.tuple.TupleImpl;
+import backtype.storm.tuple.Values;
+
+/**
+ * Creates tuples for the bolt tests, without a running topology
+ */
+public final class Tuples {
+  public static final Fields FIELDS = new Fields("shortid", "url", "date");
+
+  private static final String COMPONENT = "clicks";
+  private static final int TASK_ID = 1;
+  private static final GeneralTopologyContext CONTEXT = context();
+
+  private Tuples() {
+  }
+
+  /**
+   * @param shortid The row key
+   * @param url The url
+   * @param date The date
+   * @return A tuple with the fields {@link #FIELDS}
+   */
+  public static Tuple click(final String shortid, final String url, final String date) {
+    return new TupleImpl(CONTEXT, new Values(shortid, url, date), TASK_ID, "default",
+        MessageId.makeUnanchored());
+  }
+
+  /**
+   * @return A tick tuple, as sent by the system component
+   */
+  public static Tuple tick() {
+    return new TupleImpl(CONTEXT, new Values(1), (int) Constants.SYSTEM_TASK_ID,
+        Constants.SYSTEM_TICK_STREAM_ID, MessageId.makeUnanchored());
+  }
+
+  private static GeneralTopologyContext context() {
+    StormTopology topology = new StormTopology(new HashMap<String, SpoutSpec>(),
+        new HashMap<String, Bolt>(), new HashMap<String, StateSpoutSpec>());
+
+    int systemTaskId = (int) Constants.SYSTEM_TASK_ID;
+    Map<Integer, String> taskToComponent = new HashMap<Integer, String>();
+    taskToComponent.put(TASK_ID, COMPONENT);
+    taskToComponent.put(systemTaskId, Constants.SYSTEM_COMPONENT_ID);
+
+    Map<String, List<Integer>> componentToTasks = new HashMap<String, List<Integer>>();
+    componentToTasks.put(COMPONENT, Arrays.asList(TASK_ID));
+    componentToTasks.put(Constants.SYSTEM_COMPONENT_ID, Arrays.asList(systemTaskId));
+
+    Map<String, Map<String, Fields>> componentToStreams =
+        new HashMap<String, Map<String, Fields>>();
+    Map<String, Fields> streams = new HashMap<String, Fields>();
+    streams.put("default", FIELDS);
+    componentToStreams.put(COMPONENT, streams);
+    Map<String, Fields> systemStreams = new HashMap<String, Fields>();
+    systemStreams.put(Constants.SYSTEM_TICK_STREAM_ID, new Fields("rate_secs"));
+    componentToStreams.put(Constants.SYSTEM_COMPONENT_ID, systemStreams);
+
+    return new GeneralTopologyContext(topology, new HashMap<String, Object>(), taskToComponent,
+        componentToTasks, componentToStreams, "test");
+  }
+}
@@ -0,0 +1,231 @@
+package backtype.storm.contrib.hbase.trident.test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.Assert;
+
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import storm.trident.state.OpaqueValue;
+import storm.trident.state.StateType;
+import storm.trident.state.map.MapState;
+import backtype.storm.Config;
+import backtype.storm.contrib.hbase.trident.HBaseAggregateFactory;
+import backtype.storm.contrib.hbase.trident.HBaseAggregateState;
+import backtype.storm.contrib.hbase.trident.HBaseValueState;
+import backtype.storm.contrib.hbase.utils.BinaryOpaqueSerializer;
+import backtype.storm.contrib.hbase.utils.HBaseMetrics;
+import backtype.storm.contrib.hbase.utils.MemoryHTableFactory;
+import backtype.storm.contrib.hbase.utils.MemoryTable;
+import backtype.storm.contrib.hbase.utils.OffHeapCache;
+import backtype.storm.contrib.hbase.utils.OverloadPolicy;
+import backtype.storm.contrib.hbase.utils.TridentConfig;
+import backtype.storm.topology.FailedException;
+import backtype.storm.tuple.Values;
+
+@SuppressWarnings({ "rawtypes", "unchecked" })
+public class TestHBaseTridentState {
+  private static final String TABLE = "shorturl";
+  private static final byte[] DATA = Bytes.toBytes("data");
+  private static final byte[] URL = Bytes.toBytes("url");
+
+  private MemoryTable table;
+
+  @Before
+  public void setUp() {
+    table = MemoryTable.create(TABLE, "data", "daily", "weekly");
+  }
+
+  @After
+  public void tearDown() {
+    MemoryTable.drop(TABLE);
+  }
+
+  private TridentConfig valueConfig() {
+    TridentConfig conf = new TridentConfig(TABLE, "shortid");
+    conf.addColumn("data", "url");
+    conf.setTableFactory(new MemoryHTableFactory());
+    return conf;
+  }
+
+  private TridentConfig<OpaqueValue> aggregateConfig() {
+    TridentConfig<OpaqueValue> conf = new TridentConfig<OpaqueValue>(TABLE, "shortid");
+    conf.setStateSerializer(new BinaryOpaqueSerializer());
+    conf.setTableFactory(new MemoryHTableFactory());
+    return conf;
+  }
+
+  private static Put url(final String shortid, final String url) {
+    Put p = new Put(Bytes.toBytes(shortid));
+    p.add(DATA, URL, Bytes.toBytes(url));
+    return p;
+  }
+
+  private static String url(final Result r) {
+    byte[] value = r.getValue(DATA, URL);
+    return value == null ? null : Bytes.toString(value);
+  }
+
+  private static List<List<Object>> keys() {
+    List<List<Object>> keys = new ArrayList<List<Object>>();
+    keys.add(new Values("a", "daily", "20120810"));
+    keys.add(new Values("a", "weekly", "201232"));
+    keys.add(new Values("b", "daily", "20120810"));
+    return keys;
+  }
+
+  private static List<OpaqueValue> counts(final long txid, final long... counts) {
+    List<OpaqueValue> values = new ArrayList<OpaqueValue>();
+    for (long c : counts) {
+      values.add(new OpaqueValue<Long>(txid, c, null));
+    }
+    return values;
+  }
+
+  @Test
+  public void testValueStatePutAndGet() {
+    TridentConfig conf = valueConfig();
+    conf.setQueryCacheSize(10);
+    HBaseValueState state = new HBaseValueState(conf);
+
+    List<Get> gets = Arrays.asList(new Get(Bytes.toBytes("a")), new Get(Bytes.toBytes("b")),
+      new Get(Bytes.toBytes("a")));
+    Assert.assertNull(url(state.getValues(gets).get(0)));
+
+    // Writing a row removes it from the query cache
+    state.setValuesBulk(Arrays.asList(url("a", "www.example.com/a")));
+    List<Result> results = state.getValues(gets);
+    Assert.assertEquals("www.example.com/a", url(results.get(0)));
+    Assert.assertNull(url(results.get(1)));
+    Assert.assertEquals("www.example.com/a", url(results.get(2)));
+    state.close();
+  }
+
+  @Test
+  public void testAggregateStatePutAndGet() {
+    HBaseAggregateState<OpaqueValue> state = new HBaseAggregateState<OpaqueValue>(
+        aggregateConfig());
+
+    List<OpaqueValue> missing = state.multiGet(keys());
+    Assert.assertEquals(3, missing.size());
+    Assert.assertNull(missing.get(0));
+
+    state.multiPut(keys(), counts(1L, 3L, 5L, 7L));
+    Assert.assertEquals(2, table.size());
+
+    List<OpaqueValue> values = state.multiGet(keys());
+    Assert.assertEquals(Long.valueOf(1L), values.get(0).getCurrTxid());
+    Assert.assertEquals(Long.valueOf(3L), values.get(0).getCurr());
+    Assert.assertEquals(Long.valueOf(5L), values.get(1).getCurr());
+    Assert.assertEquals(Long.valueOf(7L), values.get(2).getCurr());
+    Assert.assertNull(values.get(2).getPrev());
+    state.close();
+  }
+
+  @Test
+  public void testValueStateWritesBatchInChunks() {
+    TridentConfig conf = valueConfig();
+    conf.setMaxPendingMutations(1);
+    HBaseMetrics metrics = new HBaseMetrics();
+    HBaseValueState state = new HBaseValueState(conf, metrics);
+
+    state.setValuesBulk(Arrays.asList(url("a", "www.example.com/a"),
+      url("b", "www.example.com/b")));
+    Assert.assertEquals(2, table.size());
+    Assert.assertEquals(2L, ((Map) metrics.getValueAndReset()).get("calls"));
+    state.close();
+  }
+
+  @Test
+  public void testValueStateRejectsBatchOverBudget() {
+    TridentConfig conf = valueConfig();
+    conf.setMaxPendingMutations(1);
+    conf.setOverloadPolicy(OverloadPolicy.FAIL_FAST);
+    HBaseMetrics metrics = new HBaseMetrics();
+    HBaseValueState state = new HBaseValueState(conf, metrics);
+
+    try {
+      state.setValuesBulk(Arrays.asList(url("a", "www.example.com/a"),
+        url("b", "www.example.com/b")));
+      Assert.fail("Expected the batch to be rejected");
+    } catch (FailedException ex) {
+      // Trident replays the batch
+    }
+    Assert.assertEquals(0, table.size());
+    Assert.assertEquals(1L, ((Map) metrics.getValueAndReset()).get("rejected"));
+
+    // A batch within the budget is written
+    state.setValuesBulk(Arrays.asList(url("a", "www.example.com/a")));
+    Assert.assertEquals(1, table.size());
+    state.close();
+  }
+
+  @Test
+  public void testAggregateStateRejectsBatchOverBudget() {
+    TridentConfig<OpaqueValue> conf = aggregateConfig();
+    conf.setMaxPendingMutations(1);
+    conf.setOverloadPolicy(OverloadPolicy.FAIL_FAST);
+    HBaseMetrics metrics = new HBaseMetrics();
+    HBaseAggregateState<OpaqueValue> state = new HBaseAggregateState<OpaqueValue>(conf, metrics);
+
+    // The keys are written as two rows
+    try {
+      state.multiPut(keys(), counts(1L, 3L, 5L, 7L));
+      Assert.fail("Expected the batch to be rejected");
+    } catch (FailedException ex) {
+      // Trident replays the batch
+    }
+    Assert.assertEquals(0, table.size());
+    Assert.assertEquals(1L, ((Map) metrics.getValueAndReset()).get("rejected"));
+    state.close();
+  }
+
+  @Test
+  public void testAggregateStateWritesBatchInChunks() {
+    TridentConfig<OpaqueValue> conf = aggregateConfig();
+    conf.setMaxPendingMutations(1);
+    HBaseMetrics metrics = new HBaseMetrics();
+    HBaseAggregateState<OpaqueValue> state = new HBaseAggregateState<OpaqueValue>(conf, metrics);
+
+    state.multiPut(keys(), counts(1L, 3L, 5L, 7L));
+    Assert.assertEquals(2, table.size());
+    Assert.assertEquals(2L, ((Map) metrics.getValueAndReset()).get("calls"));
+    Assert.assertEquals(Long.valueOf(7L), state.multiGet(keys()).get(2).getCurr());
+    state.close();
+  }
+
+  @Test
+  public void testAggregateStateSharedCache() {
+    String topologyId = "shared-" + System.nanoTime();
+    TridentConfig<OpaqueValue> conf = aggregateConfig();
+    conf.setSharedCacheBytes(1024);
+
+    Map stormConf = new HashMap();
+    stormConf.put(Config.STORM_ID, topologyId);
+    MapState<Long> state = (MapState<Long>) new HBaseAggregateFactory(conf, StateType.OPAQUE)
+        .makeState(stormConf, null, 0, 1);
+    OffHeapCache cache = OffHeapCache.acquire(topologyId, conf);
+
+    state.beginCommit(1L);
+    state.multiPut(keys(), Arrays.asList(3L, 5L, 7L));
+    state.commit(1L);
+
+    // Values are cached once written, and read back from the cache
+    Assert.assertEquals(3, cache.size());
+    Assert.assertEquals(2, table.size());
+    state.beginCommit(2L);
+    Assert.assertEquals(Arrays.asList(3L, 5L, 7L), state.multiGet(keys()));
+    Assert.assertEquals(3L, cache.getHits());
+    cache.release();
+  }
+}
@@ -0,0 +1,52 @@
+package backtype.storm.contrib.hbase.utils.test;
+
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.apache.hadoop.hbase.client.Increment;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Test;
+
+import backtype.storm.contrib.hbase.utils.CounterAccumulator;
+
+public class TestCounterAccumulator {
+  private static final byte[] CF = Bytes.toBytes("cf");
+  private static final byte[] CQ1 = Bytes.toBytes("cq1");
+  private static final byte[] CQ2 = Bytes.toBytes("cq2");
+
+  @Test
+  public void testSumsPerCell() {
+    CounterAccumulator counters = new CounterAccumulator();
+    counters.add(Bytes.toBytes("r1"), CF, CQ1, 1L);
+    counters.add(Bytes.toBytes("r1"), CF, CQ1, 2L); // a different array with the same row
+    counters.add(Bytes.toBytes("r1"), CF, CQ2, 5L);
+
+    Assert.assertEquals(2, counters.size());
+    Assert.assertEquals(3L, counters.get(Bytes.toBytes("r1"), CF, CQ1));
+    Assert.assertEquals(5L, counters.get(Bytes.toBytes("r1"), CF, CQ2));
+    Assert.assertEquals(0L, counters.get(Bytes.toBytes("r2"), CF, CQ1));
+  }
+
+  @Test
+  public void testIncrementsSortedByRow() {
+    CounterAccumulator counters = new CounterAccumulator(1);
+    for (int i = 999; i >= 0; i--) {
+      counters.add(Bytes.toBytes(i), CF, CQ1, i);
+      counters.add(Bytes.toBytes(i), CF, CQ2, 1L);
+    }
+
+    List<Increment> incs = counters.toIncrements(true);
+    Assert.assertEquals(1000, incs.size());
+    for (int i = 0; i < incs.size(); i++) {
+      Increment inc = incs.get(i);
+      Assert.assertEquals(i, Bytes.toInt(inc.getRow()));
+      Assert.assertEquals(Long.valueOf(i), inc.getFamilyMap().get(CF).get(CQ1));
+      Assert.assertEquals(Long.valueOf(1L), inc.getFamilyMap().get(CF).get(CQ2));
+    }
+
+    counters.clear();
+    Assert.assertTrue(counters.isEmpty());
+    Assert.assertEquals(0L, counters.get(Bytes.toBytes(1), CF, CQ1));
+  }
+}
@@ -0,0 +1,61 @@
+package backtype.storm.contrib.hbase.utils.test;
+
+import java.util.Map;
+
+import junit.framework.Assert;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Test;
+
+import backtype.storm.contrib.hbase.utils.HBaseMetrics;
+import backtype.storm.contrib.hbase.utils.OffHeapCache;
+import backtype.storm.contrib.hbase.utils.TtlCache;
+
+public class TestHBaseMetrics {
+  private static final byte[] K1 = "k1".getBytes();
+  private static final byte[] K2 = "k2".getBytes();
+  private static final byte[] K3 = "k3".getBytes();
+
+  @SuppressWarnings("unchecked")
+  private static Map<String, Object> report(final HBaseMetrics metrics) {
+    return (Map<String, Object>) metrics.getValueAndReset();
+  }
+
+  @Test
+  public void testReportsCacheEvictionsAndBytes() {
+    OffHeapCache cache = new OffHeapCache(20); // room for two 8 byte values
+    cache.put(K1, Bytes.toBytes(1L)); // counted before the metrics see the cache
+
+    HBaseMetrics metrics = new HBaseMetrics();
+    metrics.setCache(cache);
+    cache.get(K1);
+    cache.get(K2);
+    cache.put(K2, Bytes.toBytes(2L));
+    cache.put(K3, Bytes.toBytes(3L)); // evicts K1
+
+    Map<String, Object> values = report(metrics);
+    Assert.assertEquals(1L, values.get("cache-hits"));
+    Assert.assertEquals(1L, values.get("cache-misses"));
+    Assert.assertEquals(1L, values.get("cache-evictions"));
+    Assert.assertEquals(16L, values.get("cache-used-bytes"));
+
+    // Counts are reset each time bucket, the bytes used are not
+    values = report(metrics);
+    Assert.assertEquals(0L, values.get("cache-hits"));
+    Assert.assertEquals(0L, values.get("cache-evictions"));
+    Assert.assertEquals(16L, values.get("cache-used-bytes"));
+  }
+
+  @Test
+  public void testOmitsBytesOfUnmeasuredCache() {
+    TtlCache<String, Long> cache = new TtlCache<String, Long>(1, 60000L);
+    HBaseMetrics metrics = new HBaseMetrics();
+    metrics.setCache(cache);
+    cache.put("k1", 1L);
+    cache.put("k2", 2L);
+
+    Map<String, Object> values = report(metrics);
+    Assert.assertEquals(1L, values.get("cache-evictions"));
+    Assert.assertFalse(values.containsKey("cache-used-bytes"));
+  }
+}
@@ -0,0 +1,172 @@
+package backtype.storm.contrib.hbase.utils.test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.Row;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import backtype.storm.contrib.hbase.utils.HTableBatch;
+import backtype.storm.contrib.hbase.utils.MemoryHTable;
+import backtype.storm.contrib.hbase.utils.MemoryTable;
+import backtype.storm.contrib.hbase.utils.TupleTableConfig;
+
+public class TestHTableBatch {
+  private static final String TABLE = "shorturl";
+  private static final byte[] DATA = Bytes.toBytes("data");
+  private static final byte[] URL = Bytes.toBytes("url");
+
+  private MemoryTable table;
+
+  /**
+   * Fails the actions for one row, as if its region had moved, for a number of calls
+   */
+  private static class FlakyHTable extends MemoryHTable {
+    private final byte[] flakyRow;
+    private int failures;
+    private final List<Integer> calls = new ArrayList<Integer>();
+
+    FlakyHTable(final MemoryTable table, final String flakyRow, final int failures) {
+      super(table, HBaseConfiguration.create(), 0);
+      this.flakyRow = Bytes.toBytes(flakyRow);
+      this.failures = failures;
+    }
+
+    @Override
+    public void batch(final List<? extends Row> actions, final Object[] results)
+        throws IOException, InterruptedException {
+      calls.add(actions.size());
+      if (failures == 0) {
+        super.batch(actions, results);
+        return;
+      }
+      failures--;
+
+      List<Row> others = new ArrayList<Row>();
+      for (Row r : actions) {
+        if (!Bytes.equals(flakyRow, r.getRow())) {
+          others.add(r);
+        }
+      }
+      Object[] applied = new Object[others.size()];
+      super.batch(others, applied);
+
+      int j = 0;
+      for (int i = 0; i < actions.size(); i++) {
+        if (Bytes.equals(flakyRow, actions.get(i).getRow())) {
+          results[i] = new IOException("Region moved");
+        } else {
+          results[i] = applied[j++];
+        }
+      }
+      throw new IOException("1 action failed");
+    }
+  }
+
+  @Before
+  public void setUp() {
+    table = MemoryTable.create(TABLE, "data");
+  }
+
+  @After
+  public void tearDown() {
+    MemoryTable.drop(TABLE);
+  }
+
+  private static List<Put> puts(final String... rows) {
+    List<Put> puts = new ArrayList<Put>();
+    for (String row : rows) {
+      Put p = new Put(Bytes.toBytes(row));
+      p.add(DATA, URL, Bytes.toBytes("www.example.com/" + row));
+      puts.add(p);
+    }
+    return puts;
+  }
+
+  @Test
+  public void testRetriesOnlyFailedActions() throws IOException {
+    FlakyHTable htable = new FlakyHTable(table, "b", 1);
+
+    HTableBatch.batch(htable, puts("a", "b", "c"), 2, 1L);
+
+    Assert.assertEquals(3, table.size());
+    Assert.assertEquals(2, htable.calls.size());
+    Assert.assertEquals(3, (int) htable.calls.get(0));
+    Assert.assertEquals(1, (int) htable.calls.get(1)); // only the failed put
+  }
+
+  @Test
+  public void testResultsInActionOrder() throws IOException {
+    HTableBatch.batch(new MemoryHTable(table, HBaseConfiguration.create(), 0),
+      puts("a", "b", "c"), 0, 1L);
+    FlakyHTable htable = new FlakyHTable(table, "a", 1);
+
+    List<Get> gets = new ArrayList<Get>();
+    for (String row : new String[] { "c", "a", "x" }) {
+      gets.add(new Get(Bytes.toBytes(row)));
+    }
+    Object[] results = HTableBatch.batch(htable, gets, 1, 1L);
+
+    Assert.assertEquals("www.example.com/c", Bytes.toString(((Result) results[0]).getValue(DATA,
+      URL)));
+    Assert.assertEquals("www.example.com/a", Bytes.toString(((Result) results[1]).getValue(DATA,
+      URL)));
+    Assert.assertTrue(((Result) results[2]).isEmpty());
+  }
+
+  @Test
+  public void testBacksOffExponentially() throws IOException {
+    FlakyHTable htable = new FlakyHTable(table, "b", 2);
+
+    long start = System.currentTimeMillis();
+    HTableBatch.batch(htable, puts("a", "b"), 2, 50L);
+
+    // Waits 50 ms before the first retry and 100 ms before the second
+    Assert.assertTrue(System.currentTimeMillis() - start >= 150L);
+    Assert.assertEquals(3, htable.calls.size());
+    Assert.assertEquals(2, table.size());
+  }
+
+  @Test
+  public void testFailsAfterLastRetry() {
+    FlakyHTable htable = new FlakyHTable(table, "b", 5);
+
+    try {
+      HTableBatch.batch(htable, puts("a", "b", "c"), 2, 1L);
+      Assert.fail("Expected the batch to fail");
+    } catch (IOException ex) {
+      Assert.assertEquals("1 of 3 actions failed after 2 retries", ex.getMessage());
+    }
+
+    // The first call and two retries, and the other rows are still written
+    Assert.assertEquals(3, htable.calls.size());
+    Assert.assertEquals(2, table.size());
+  }
+
+  @Test
+  public void testSplitsWithinBudget() {
+    TupleTableConfig conf = new TupleTableConfig(TABLE, "shortid");
+    Assert.assertEquals(1, HTableBatch.split(puts("a", "b", "c"), conf).size());
+
+    conf.setMaxPendingMutations(2);
+    List<List<Put>> chunks = HTableBatch.split(puts("a", "b", "c"), conf);
+    Assert.assertEquals(2, chunks.size());
+    Assert.assertEquals(2, chunks.get(0).size());
+    Assert.assertEquals("c", Bytes.toString(chunks.get(1).get(0).getRow()));
+
+    // A put over the budget on its own gets a chunk of its own
+    conf.setMaxPendingMutations(0);
+    conf.setMaxPendingBytes(1L);
+    Assert.assertEquals(3, HTableBatch.split(puts("a", "b", "c"), conf).size());
+  }
+}
@@ -0,0 +1,50 @@
+package backtype.storm.contrib.hbase.utils.test;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import backtype.storm.contrib.hbase.utils.Histogram;
+
+public class TestHistogram {
+
+  @Test
+  public void testSmallValuesAreExact() {
+    Histogram h = new Histogram();
+    for (int v = 1; v <= 7; v++) {
+      h.record(v);
+    }
+
+    Assert.assertEquals(7, h.getCount());
+    Assert.assertEquals(4L, h.percentile(0.5));
+    Assert.assertEquals(7L, h.percentile(0.99));
+    Assert.assertEquals(4.0, h.getMean(), 0.0001);
+  }
+
+  @Test
+  public void testPercentilesWithinBucketError() {
+    Histogram h = new Histogram();
+    for (int v = 1; v <= 10000; v++) {
+      h.record(v);
+    }
+
+    long p50 = h.percentile(0.5);
+    long p99 = h.percentile(0.99);
+    Assert.assertTrue(p50 >= 5000 && p50 <= 5000 * 1.125);
+    Assert.assertTrue(p99 >= 9900 && p99 <= 10000);
+    Assert.assertEquals(10000L, h.getMax());
+  }
+
+  @Test
+  public void testReset() {
+    Histogram h = new Histogram();
+    h.record(Long.MAX_VALUE);
+    h.record(-1);
+    Assert.assertEquals(Long.MAX_VALUE, h.percentile(1.0));
+    Assert.assertEquals(0L, h.percentile(0.5));
+
+    h.reset();
+    Assert.assertEquals(0, h.getCount());
+    Assert.assertEquals(0L, h.percentile(0.5));
+  }
+}
@@ -0,0 +1,100 @@
+package backtype.storm.contrib.hbase.utils.test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Test;
+
+import backtype.storm.contrib.hbase.utils.MappingPlan;
+import backtype.storm.contrib.hbase.utils.SaltedRowKeyStrategy;
+import backtype.storm.contrib.hbase.utils.TupleTableConfig;
+import backtype.storm.contrib.hbase.utils.ValueCodecs;
+import backtype.storm.tuple.Fields;
+
+public class TestMappingPlan {
+
+  private static TupleTableConfig config() {
+    TupleTableConfig conf = new TupleTableConfig("shorturl", "shortid");
+    conf.addColumn("data", "url");
+    conf.addColumn("data", "clicks");
+    conf.setColumnCodec("data", "clicks", ValueCodecs.LONG);
+    return conf;
+  }
+
+  @Test
+  public void testIndexOf() {
+    MappingPlan plan = config().compile();
+
+    Assert.assertEquals(2, plan.size());
+    int url = plan.indexOf("url");
+    int clicks = plan.indexOf("clicks");
+    Assert.assertTrue(url != MappingPlan.NOT_A_FIELD && clicks != MappingPlan.NOT_A_FIELD);
+    Assert.assertTrue(url != clicks);
+    Assert.assertEquals(MappingPlan.NOT_A_FIELD, plan.indexOf("date"));
+
+    Assert.assertEquals("data", Bytes.toString(plan.family(url)));
+    Assert.assertEquals("url", Bytes.toString(plan.qualifier(url)));
+    Assert.assertEquals("clicks", plan.field(clicks));
+    Assert.assertEquals(ValueCodecs.STRING, plan.codec(url));
+    Assert.assertEquals(ValueCodecs.LONG, plan.codec(clicks));
+  }
+
+  @Test
+  public void testDecode() {
+    MappingPlan plan = config().compile();
+    int url = plan.indexOf("url");
+    int clicks = plan.indexOf("clicks");
+
+    Assert.assertEquals("www.example.com", plan.decode(url, plan.encode(url, "www.example.com")));
+    Assert.assertEquals(42L, plan.decode(clicks, plan.encode(clicks, 42)));
+    Assert.assertNull(plan.decode(clicks, null));
+  }
+
+  @Test
+  public void testRowKey() {
+    MappingPlan plan = config().compile();
+    List<Object> values = Arrays.<Object> asList("www.example.com", "a1b2");
+
+    byte[] rowKey = plan.rowKey(new Fields("url", "shortid"), values);
+    Assert.assertEquals("a1b2", Bytes.toString(rowKey));
+  }
+
+  @Test
+  public void testResolvesEachStream() {
+    MappingPlan plan = config().compile();
+    int url = plan.indexOf("url");
+    int clicks = plan.indexOf("clicks");
+
+    MappingPlan.Resolved first = plan.resolve(new Fields("shortid", "url"));
+    MappingPlan.Resolved second = plan.resolve(new Fields("url", "clicks", "shortid"));
+
+    Assert.assertEquals(0, first.rowKey());
+    Assert.assertEquals(1, first.column(url));
+    Assert.assertEquals(MappingPlan.NOT_A_FIELD, first.column(clicks));
+    Assert.assertEquals(MappingPlan.NOT_A_FIELD, first.timestamp());
+
+    Assert.assertEquals(2, second.rowKey());
+    Assert.assertEquals(0, second.column(url));
+    Assert.assertEquals(1, second.column(clicks));
+  }
+
+  @Test
+  public void testCompositeSaltedRowKey() {
+    TupleTableConfig conf = config();
+    conf.addRowKeyField("date", ValueCodecs.REVERSED_LONG);
+    SaltedRowKeyStrategy salt = new SaltedRowKeyStrategy(8);
+    conf.setRowKeyStrategy(salt);
+    MappingPlan plan = conf.compile();
+
+    byte[] key = Bytes.add(Bytes.toBytes("a1b2"), ValueCodecs.REVERSED_LONG.encode(1000L));
+    byte[] rowKey = plan.rowKey(new Fields("date", "shortid"), Arrays.<Object> asList(1000L,
+      "a1b2"));
+
+    Assert.assertTrue(Bytes.equals(salt.toRowKey(key), rowKey));
+    Assert.assertTrue(Bytes.equals(key, salt.toKey(rowKey)));
+    Assert.assertTrue(Bytes.equals(rowKey, plan.encodeRowKey(new Object[] { "a1b2", 1000L })));
+  }
+}
@@ -0,0 +1,153 @@
+package backtype.storm.contrib.hbase.utils.test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.Increment;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Row;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import backtype.storm.contrib.hbase.utils.HTableBatch;
+import backtype.storm.contrib.hbase.utils.HTableConnector;
+import backtype.storm.contrib.hbase.utils.MemoryHTable;
+import backtype.storm.contrib.hbase.utils.MemoryHTableFactory;
+import backtype.storm.contrib.hbase.utils.MemoryTable;
+import backtype.storm.contrib.hbase.utils.TupleTableConfig;
+
+public class TestMemoryHTable {
+  private static final String TABLE = "test";
+  private static final byte[] CF = Bytes.toBytes("cf");
+  private static final byte[] Q = Bytes.toBytes("q");
+
+  private MemoryTable table;
+
+  @Before
+  public void setUp() {
+    table = MemoryTable.create(TABLE, "cf");
+  }
+
+  @After
+  public void tearDown() {
+    MemoryTable.drop(TABLE);
+  }
+
+  @Test
+  public void testPutGetVersions() throws IOException {
+    HTableInterface htable = new MemoryHTable(table, HBaseConfiguration.create(), 0);
+    for (long ts = 1; ts <= 5; ts++) {
+      Put p = new Put(Bytes.toBytes("row"));
+      p.add(CF, Q, ts, Bytes.toBytes(ts));
+      htable.put(p);
+    }
+
+    Result r = htable.get(new Get(Bytes.toBytes("row")));
+    Assert.assertEquals(5L, Bytes.toLong(r.getValue(CF, Q)));
+
+    // The family keeps the default of 3 versions
+    Get g = new Get(Bytes.toBytes("row"));
+    g.setMaxVersions();
+    Assert.assertEquals(3, htable.get(g).size());
+
+    g.setTimeRange(0, 5);
+    Assert.assertEquals(4L, Bytes.toLong(htable.get(g).getValue(CF, Q)));
+
+    Assert.assertTrue(htable.get(new Get(Bytes.toBytes("missing"))).isEmpty());
+  }
+
+  @Test
+  public void testIncrement() throws IOException {
+    HTableInterface htable = new MemoryHTable(table, HBaseConfiguration.create(), 0);
+    Increment inc = new Increment(Bytes.toBytes("row"));
+    inc.addColumn(CF, Q, 2L);
+    htable.increment(inc);
+    htable.increment(inc);
+
+    Assert.assertEquals(5L, htable.incrementColumnValue(Bytes.toBytes("row"), CF, Q, 1L));
+
+    Put p = new Put(Bytes.toBytes("row"));
+    p.add(CF, Q, Bytes.toBytes("abc"));
+    htable.put(p);
+    try {
+      htable.increment(inc);
+      Assert.fail("Incremented a value that isn't 64 bits wide");
+    } catch (IOException expected) {
+    }
+  }
+
+  @Test
+  public void testScanIsSorted() throws IOException {
+    HTableInterface htable = new MemoryHTable(table, HBaseConfiguration.create(), 0);
+    for (String row : Arrays.asList("c", "a", "d", "b")) {
+      Put p = new Put(Bytes.toBytes(row));
+      p.add(CF, Q, Bytes.toBytes(row));
+      htable.put(p);
+    }
+
+    ResultScanner scanner = htable.getScanner(new Scan(Bytes.toBytes("b"), Bytes.toBytes("d")));
+    List<String> rows = new ArrayList<String>();
+    for (Result r : scanner) {
+      rows.add(Bytes.toString(r.getRow()));
+    }
+    scanner.close();
+    Assert.assertEquals(Arrays.asList("b", "c"), rows);
+  }
+
+  @Test
+  public void testBatchRetriesFailedActions() throws IOException {
+    HTableInterface htable = new MemoryHTable(table, HBaseConfiguration.create(), 0);
+    Put good = new Put(Bytes.toBytes("row"));
+    good.add(CF, Q, Bytes.toBytes(1L));
+    Put bad = new Put(Bytes.toBytes("row"));
+    bad.add(Bytes.toBytes("nosuchfamily"), Q, Bytes.toBytes(1L));
+
+    List<Row> actions = new ArrayList<Row>();
+    actions.add(good);
+    actions.add(bad);
+    try {
+      HTableBatch.batch(htable, actions, 1, 1L);
+      Assert.fail("Applied a put to a missing column family");
+    } catch (IOException expected) {
+    }
+    Assert.assertEquals(1, table.size());
+  }
+
+  @Test
+  public void testConnectorWriteBuffer() throws IOException {
+    TupleTableConfig conf = new TupleTableConfig(TABLE, "key");
+    conf.addColumn("cf", "q");
+    conf.setTableFactory(new MemoryHTableFactory());
+    HTableConnector connector = new HTableConnector(conf);
+
+    Put p = new Put(Bytes.toBytes("row"));
+    p.add(CF, Q, Bytes.toBytes(1L));
+    connector.getTable().put(p);
+    Assert.assertEquals(1, connector.getWriteBuffer().size());
+    Assert.assertEquals(0, table.size());
+
+    connector.close();
+    Assert.assertTrue(connector.getWriteBuffer().isEmpty());
+    Assert.assertEquals(1, table.size());
+  }
+
+  @Test
+  public void testInjectedLatency() throws IOException {
+    HTableInterface htable = new MemoryHTable(table, HBaseConfiguration.create(), 2000);
+    long start = System.nanoTime();
+    htable.get(new Get(Bytes.toBytes("row")));
+    Assert.assertTrue(System.nanoTime() - start >= 2000000L);
+  }
+}
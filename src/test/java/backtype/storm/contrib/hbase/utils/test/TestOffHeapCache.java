@@ -0,0 +1,98 @@
+package backtype.storm.contrib.hbase.utils.test;
+
+import java.util.Map;
+
+import junit.framework.Assert;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Test;
+
+import storm.trident.state.StateType;
+import backtype.storm.contrib.hbase.utils.HBaseMetrics;
+import backtype.storm.contrib.hbase.utils.OffHeapCache;
+import backtype.storm.contrib.hbase.utils.TridentConfig;
+
+public class TestOffHeapCache {
+  private static final byte[] K1 = "k1".getBytes();
+  private static final byte[] K2 = "k2".getBytes();
+  private static final byte[] K3 = "k3".getBytes();
+
+  @Test
+  public void testGetAndReplace() {
+    OffHeapCache cache = new OffHeapCache(64);
+    Assert.assertNull(cache.get(K1));
+
+    cache.put(K1, Bytes.toBytes(1L));
+    cache.put(K1, Bytes.toBytes(2L)); // replaces the cached value
+
+    Assert.assertEquals(2L, Bytes.toLong(cache.get(K1)));
+    Assert.assertEquals(1, cache.size());
+    Assert.assertEquals(8L, cache.getUsedBytes());
+    Assert.assertEquals(1L, cache.getHits());
+    Assert.assertEquals(1L, cache.getMisses());
+  }
+
+  @Test
+  public void testEvictsOldest() {
+    OffHeapCache cache = new OffHeapCache(20); // room for two 8 byte values
+
+    cache.put(K1, Bytes.toBytes(1L));
+    cache.put(K2, Bytes.toBytes(2L));
+    cache.put(K1, Bytes.toBytes(3L)); // K1 moves to the head of the log, wrapping around
+    cache.put(K3, Bytes.toBytes(4L)); // evicts K2, the oldest live value
+
+    Assert.assertNull(cache.get(K2));
+    Assert.assertEquals(3L, Bytes.toLong(cache.get(K1)));
+    Assert.assertEquals(4L, Bytes.toLong(cache.get(K3)));
+    Assert.assertEquals(1L, cache.getEvictions());
+  }
+
+  @SuppressWarnings({ "rawtypes", "unchecked" })
+  @Test
+  public void testSharedUntilLastRelease() {
+    TridentConfig conf = new TridentConfig("table", "key");
+    conf.setStateSerializer(TridentConfig.DEFAULT_SERIALZERS.get(StateType.OPAQUE));
+    conf.setSharedCacheBytes(64);
+
+    OffHeapCache a = OffHeapCache.acquire("topology-1", conf);
+    OffHeapCache b = OffHeapCache.acquire("topology-1", conf);
+    OffHeapCache other = OffHeapCache.acquire("topology-2", conf);
+    Assert.assertSame(a, b);
+    Assert.assertNotSame(a, other);
+
+    a.put(K1, Bytes.toBytes(1L));
+    a.release();
+    Assert.assertEquals(1L, Bytes.toLong(b.get(K1)));
+
+    b.release();
+    Assert.assertNull(b.get(K1));
+    Assert.assertEquals(0, b.size());
+    OffHeapCache recreated = OffHeapCache.acquire("topology-1", conf);
+    Assert.assertNotSame(b, recreated);
+    recreated.release();
+    other.release();
+  }
+
+  @SuppressWarnings({ "rawtypes", "unchecked" })
+  @Test
+  public void testReportedByOneState() {
+    TridentConfig conf = new TridentConfig("table", "key");
+    conf.setStateSerializer(TridentConfig.DEFAULT_SERIALZERS.get(StateType.OPAQUE));
+    conf.setSharedCacheBytes(64);
+    HBaseMetrics first = new HBaseMetrics();
+    HBaseMetrics second = new HBaseMetrics();
+
+    OffHeapCache cache = OffHeapCache.acquire("topology-3", conf, first);
+    OffHeapCache.acquire("topology-3", conf, second);
+    cache.get(K1);
+    Assert.assertEquals(1L, ((Map) first.getValueAndReset()).get("cache-misses"));
+    Assert.assertFalse(((Map) second.getValueAndReset()).containsKey("cache-misses"));
+
+    // The second state takes over once the first releases the cache
+    cache.release(first);
+    cache.get(K1);
+    Assert.assertFalse(((Map) first.getValueAndReset()).containsKey("cache-misses"));
+    Assert.assertEquals(1L, ((Map) second.getValueAndReset()).get("cache-misses"));
+    cache.release(second);
+  }
+}
@@ -0,0 +1,48 @@
+package backtype.storm.contrib.hbase.utils.test;
+
+import java.util.Arrays;
+
+import junit.framework.Assert;
+
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Test;
+
+import backtype.storm.contrib.hbase.utils.RegionAwareGrouping;
+
+public class TestRegionAwareGrouping {
+  private static final byte[][] START_KEYS = { HConstants.EMPTY_START_ROW, Bytes.toBytes("g"),
+      Bytes.toBytes("p") };
+
+  @Test
+  public void testRegionOf() {
+    Assert.assertEquals(0, RegionAwareGrouping.regionOf(START_KEYS, HConstants.EMPTY_START_ROW));
+    Assert.assertEquals(0, RegionAwareGrouping.regionOf(START_KEYS, Bytes.toBytes("a")));
+    Assert.assertEquals(1, RegionAwareGrouping.regionOf(START_KEYS, Bytes.toBytes("g")));
+    Assert.assertEquals(1, RegionAwareGrouping.regionOf(START_KEYS, Bytes.toBytes("oz")));
+    Assert.assertEquals(2, RegionAwareGrouping.regionOf(START_KEYS, Bytes.toBytes("p")));
+    Assert.assertEquals(2, RegionAwareGrouping.regionOf(START_KEYS, Bytes.toBytes("zzz")));
+
+    byte[][] single = { HConstants.EMPTY_START_ROW };
+    Assert.assertEquals(0, RegionAwareGrouping.regionOf(single, Bytes.toBytes("any")));
+  }
+
+  @Test
+  public void testFewerTasksThanServers() {
+    // Servers are numbered in name order, whatever order their regions are in
+    String[] servers = { "rs2:60020", "rs1:60020", "rs3:60020", "rs1:60020" };
+    Assert.assertEquals("[1, 0, 0, 0]",
+      Arrays.toString(RegionAwareGrouping.shareTasks(servers, 2)));
+    Assert.assertEquals("[0, 0, 0, 0]",
+      Arrays.toString(RegionAwareGrouping.shareTasks(servers, 1)));
+  }
+
+  @Test
+  public void testMoreTasksThanServers() {
+    // rs1 has tasks 0, 2 and 4, and rs2 has tasks 1 and 3, each taking its regions in turn
+    String[] servers = { "rs1:60020", "rs2:60020", "rs1:60020", "rs1:60020", "rs2:60020",
+        "rs1:60020" };
+    Assert.assertEquals("[0, 1, 2, 4, 3, 0]",
+      Arrays.toString(RegionAwareGrouping.shareTasks(servers, 5)));
+  }
+}
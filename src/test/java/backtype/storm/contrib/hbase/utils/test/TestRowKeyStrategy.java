@@ -0,0 +1,64 @@
+package backtype.storm.contrib.hbase.utils.test;
+
+import java.io.IOException;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Test;
+
+import backtype.storm.contrib.hbase.utils.SaltedRowKeyStrategy;
+import backtype.storm.contrib.hbase.utils.ValueCodecs;
+
+public class TestRowKeyStrategy {
+
+  @Test
+  public void testSaltedRoundTrip() {
+    SaltedRowKeyStrategy strategy = new SaltedRowKeyStrategy(8);
+    byte[] key = Bytes.toBytes("20130101-user1");
+    byte[] rowKey = strategy.toRowKey(key);
+
+    Assert.assertEquals(key.length + 1, rowKey.length);
+    Assert.assertEquals(strategy.bucket(key), rowKey[0]);
+    Assert.assertTrue(Bytes.equals(key, strategy.toKey(rowKey)));
+    Assert.assertTrue(Bytes.equals(rowKey, strategy.toRowKey(key))); // always the same bucket
+  }
+
+  @Test
+  public void testSaltedPrefixIsStable() {
+    // The salt is part of every stored row key, so it must never change between releases or JVMs
+    SaltedRowKeyStrategy strategy = new SaltedRowKeyStrategy(8);
+    Assert.assertEquals(4, strategy.bucket(Bytes.toBytes("20130101-user1")));
+    Assert.assertEquals(5, strategy.bucket(Bytes.toBytes("20130101-user2")));
+    Assert.assertEquals(5, strategy.bucket(Bytes.toBytes("shortid-42")));
+    Assert.assertEquals(12, new SaltedRowKeyStrategy(16).bucket(Bytes.toBytes("20130101-user1")));
+  }
+
+  @Test
+  public void testSaltedScansCoverEveryBucket() throws IOException {
+    SaltedRowKeyStrategy strategy = new SaltedRowKeyStrategy(4);
+
+    List<Scan> scans = strategy.getScans(new Scan(Bytes.toBytes("a"), Bytes.toBytes("b")));
+    Assert.assertEquals(4, scans.size());
+    for (int b = 0; b < 4; b++) {
+      Assert.assertTrue(Bytes.equals(new byte[] { (byte) b, 'a' }, scans.get(b).getStartRow()));
+      Assert.assertTrue(Bytes.equals(new byte[] { (byte) b, 'b' }, scans.get(b).getStopRow()));
+    }
+
+    scans = strategy.getScans(new Scan());
+    Assert.assertTrue(Bytes.equals(new byte[] { 1 }, scans.get(0).getStopRow()));
+    Assert.assertTrue(Bytes.equals(HConstants.EMPTY_END_ROW, scans.get(3).getStopRow()));
+  }
+
+  @Test
+  public void testReversedLong() {
+    byte[] newer = ValueCodecs.REVERSED_LONG.encode(2000L);
+    byte[] older = ValueCodecs.REVERSED_LONG.encode(1000L);
+
+    Assert.assertTrue(Bytes.compareTo(newer, older) < 0);
+    Assert.assertEquals(2000L, ValueCodecs.REVERSED_LONG.decode(newer));
+  }
+}
@@ -5,6 +5,16 @@ import junit.framework.Assert;
 import org.apache.hadoop.hbase.client.Increment;
 import org.junit.Test;
 
+import storm.trident.state.JSONOpaqueSerializer;
+import storm.trident.state.JSONTransactionalSerializer;
+import storm.trident.state.OpaqueValue;
+import storm.trident.state.Serializer;
+import storm.trident.state.StateType;
+import storm.trident.state.TransactionalValue;
+import backtype.storm.contrib.hbase.utils.BinaryNonTransactionalSerializer;
+import backtype.storm.contrib.hbase.utils.BinaryOpaqueSerializer;
+import backtype.storm.contrib.hbase.utils.BinaryTransactionalSerializer;
+import backtype.storm.contrib.hbase.utils.TridentConfig;
 import backtype.storm.contrib.hbase.utils.TupleTableConfig;
 
 public class TestSerialisation {
@@ -28,4 +38,62 @@ public class TestSerialisation {
     Assert.assertEquals(3L, (long) i.getFamilyMap().get(CF).get(CQ1));
     Assert.assertEquals(2L, (long) i.getFamilyMap().get(CF).get(CQ2));
   }
+
+  @SuppressWarnings({ "rawtypes", "unchecked" })
+  @Test
+  public void testBinaryTransactionalSerializer() {
+    BinaryTransactionalSerializer s = new BinaryTransactionalSerializer();
+    TransactionalValue v = s.deserialize(s.serialize(new TransactionalValue(123L, 42L)));
+
+    Assert.assertEquals(123L, (long) v.getTxid());
+    Assert.assertEquals(42L, v.getVal());
+
+    // Reads state written by the JSON serializer
+    byte[] json = new JSONTransactionalSerializer().serialize(new TransactionalValue(7L, 3L));
+    v = s.deserialize(json);
+    Assert.assertEquals(7L, (long) v.getTxid());
+    Assert.assertEquals(3L, v.getVal());
+  }
+
+  @SuppressWarnings({ "rawtypes", "unchecked" })
+  @Test
+  public void testBinaryOpaqueSerializer() {
+    BinaryOpaqueSerializer s = new BinaryOpaqueSerializer();
+    OpaqueValue v = s.deserialize(s.serialize(new OpaqueValue(9L, 2.5d, null)));
+
+    Assert.assertEquals(9L, (long) v.getCurrTxid());
+    Assert.assertEquals(2.5d, v.getCurr());
+    Assert.assertNull(v.getPrev());
+
+    byte[] json = new JSONOpaqueSerializer().serialize(new OpaqueValue(10L, 5L, 4L));
+    v = s.deserialize(json);
+    Assert.assertEquals(10L, (long) v.getCurrTxid());
+    Assert.assertEquals(5L, v.getCurr());
+    Assert.assertEquals(4L, v.getPrev());
+  }
+
+  @Test
+  public void testBinaryNonTransactionalSerializer() {
+    BinaryNonTransactionalSerializer s = new BinaryNonTransactionalSerializer();
+
+    Assert.assertEquals(-1L, s.deserialize(s.serialize(-1L)));
+    Assert.assertEquals(Integer.MAX_VALUE, s.deserialize(s.serialize(Integer.MAX_VALUE)));
+    Assert.assertEquals("20120816", s.deserialize(s.serialize("20120816")));
+    Assert.assertEquals(2, s.serialize(1L).length - 1);
+  }
+
+  @SuppressWarnings({ "rawtypes", "unchecked" })
+  @Test
+  public void testBinaryIsOptIn() {
+    Serializer json = TridentConfig.DEFAULT_SERIALZERS.get(StateType.OPAQUE);
+    Serializer binary = TridentConfig.BINARY_SERIALIZERS.get(StateType.OPAQUE);
+    Assert.assertTrue(json instanceof JSONOpaqueSerializer);
+    Assert.assertTrue(binary instanceof BinaryOpaqueSerializer);
+
+    // JSON reads an integer back as a long, the binary serializers keep its type
+    OpaqueValue v = new OpaqueValue<Integer>(1L, 42, null);
+    Assert.assertEquals(42L, ((OpaqueValue) json.deserialize(json.serialize(v))).getCurr());
+    Assert.assertEquals(42, ((OpaqueValue) binary.deserialize(binary.serialize(v))).getCurr());
+    Assert.assertEquals(42L, ((OpaqueValue) binary.deserialize(json.serialize(v))).getCurr());
+  }
 }
@@ -0,0 +1,36 @@
+package backtype.storm.contrib.hbase.utils.test;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import backtype.storm.contrib.hbase.utils.TtlCache;
+
+public class TestTtlCache {
+
+  @Test
+  public void testEvictsLeastRecentlyUsed() {
+    TtlCache<String, Long> cache = new TtlCache<String, Long>(2, 60000L);
+    cache.put("k1", 1L);
+    cache.put("k2", 2L);
+    Assert.assertEquals(Long.valueOf(1L), cache.get("k1")); // k2 is now least-recently-used
+    cache.put("k3", 3L);
+
+    Assert.assertNull(cache.get("k2"));
+    Assert.assertEquals(Long.valueOf(1L), cache.get("k1"));
+    Assert.assertEquals(Long.valueOf(3L), cache.get("k3"));
+    Assert.assertEquals(2, cache.size());
+    Assert.assertEquals(1L, cache.getEvictions());
+  }
+
+  @Test
+  public void testExpires() throws InterruptedException {
+    TtlCache<String, Long> cache = new TtlCache<String, Long>(10, 10L);
+    cache.put("k1", 1L);
+    Thread.sleep(20L);
+
+    Assert.assertNull(cache.get("k1"));
+    Assert.assertEquals(0, cache.size());
+    Assert.assertEquals(1L, cache.getMisses());
+  }
+}
@@ -0,0 +1,57 @@
+package backtype.storm.contrib.hbase.utils.test;
+
+import junit.framework.Assert;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Test;
+
+import backtype.storm.contrib.hbase.utils.ValueCodec;
+import backtype.storm.contrib.hbase.utils.ValueCodecs;
+
+public class TestValueCodecs {
+
+  private static Object roundTrip(final ValueCodec codec, final Object value) {
+    return codec.decode(codec.encode(value));
+  }
+
+  @Test
+  public void testString() {
+    Assert.assertEquals("www.example.com", roundTrip(ValueCodecs.STRING, "www.example.com"));
+    Assert.assertEquals("42", roundTrip(ValueCodecs.STRING, 42)); // converted with toString()
+  }
+
+  @Test
+  public void testBytes() {
+    byte[] value = { 0, 1, -1 };
+    Assert.assertTrue(Bytes.equals(value, (byte[]) roundTrip(ValueCodecs.BYTES, value)));
+  }
+
+  @Test
+  public void testLong() {
+    Assert.assertEquals(8, ValueCodecs.LONG.encode(1L).length);
+    Assert.assertEquals(-7L, roundTrip(ValueCodecs.LONG, -7L));
+    Assert.assertEquals(42L, roundTrip(ValueCodecs.LONG, 42)); // any Number
+    // The same encoding as a HBase counter
+    Assert.assertTrue(Bytes.equals(Bytes.toBytes(42L), ValueCodecs.LONG.encode(42L)));
+  }
+
+  @Test
+  public void testReversedLong() {
+    Assert.assertEquals(1000L, roundTrip(ValueCodecs.REVERSED_LONG, 1000L));
+    Assert.assertEquals(0L, roundTrip(ValueCodecs.REVERSED_LONG, 0L));
+  }
+
+  @Test
+  public void testInt() {
+    Assert.assertEquals(4, ValueCodecs.INT.encode(1).length);
+    Assert.assertEquals(Integer.MIN_VALUE, roundTrip(ValueCodecs.INT, Integer.MIN_VALUE));
+    Assert.assertEquals(7, roundTrip(ValueCodecs.INT, 7L));
+  }
+
+  @Test
+  public void testDouble() {
+    Assert.assertEquals(8, ValueCodecs.DOUBLE.encode(1.5).length);
+    Assert.assertEquals(-0.25, roundTrip(ValueCodecs.DOUBLE, -0.25));
+    Assert.assertEquals(3.0, roundTrip(ValueCodecs.DOUBLE, 3));
+  }
+}